@@ -0,0 +1,41 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed pool of direct buffers. All buffers are allocated up front, so receiving a datagram does not
+ * allocate. When every buffer is in use, acquire waits for one to be released instead of growing the pool.
+ */
+public class BufferPool {
+
+    private final BlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+
+    public BufferPool(int buffers, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = free.take();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public int available() {
+        return free.size();
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
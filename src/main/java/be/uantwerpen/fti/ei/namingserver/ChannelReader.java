@@ -0,0 +1,131 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered reader for the binary transfer formats. Headers are read from a read-ahead buffer, so a header costs
+ * one read call instead of one per field, and the bytes of a small file usually arrive together with its header.
+ * File bodies are copied from the buffer first and then straight from the socket with transferFrom.
+ */
+final class ChannelReader {
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer;
+
+    ChannelReader(SocketChannel channel) {
+        this.channel = channel;
+        // Large enough for the longest string field
+        this.buffer = ByteBuffer.allocate(128 * 1024);
+        this.buffer.flip();
+    }
+
+    // Make sure at least count bytes are buffered
+    private void require(int count) throws IOException {
+        if (buffer.remaining() >= count) {
+            return;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < count) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Connection closed");
+                }
+            }
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    byte readByte() throws IOException {
+        require(1);
+        return buffer.get();
+    }
+
+    int readInt() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    // The next int without consuming it
+    int peekInt() throws IOException {
+        require(4);
+        return buffer.getInt(buffer.position());
+    }
+
+    int readUnsignedShort() throws IOException {
+        require(2);
+        return buffer.getShort() & 0xFFFF;
+    }
+
+    long readLong() throws IOException {
+        require(8);
+        return buffer.getLong();
+    }
+
+    // A string field: 2 byte length followed by the UTF-8 bytes
+    String readString() throws IOException {
+        int length = readUnsignedShort();
+        require(length);
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    // Fill the remaining space of the buffer
+    void read(ByteBuffer dst) throws IOException {
+        if (buffer.hasRemaining()) {
+            int count = Math.min(buffer.remaining(), dst.remaining());
+            dst.put(dst.position(), buffer, buffer.position(), count);
+            dst.position(dst.position() + count);
+            buffer.position(buffer.position() + count);
+        }
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    // True when bytes of a next frame are already buffered
+    boolean hasBuffered() {
+        return buffer.hasRemaining();
+    }
+
+    // Write length bytes to the file from the given position on
+    void transferTo(FileChannel file, long position, long length) throws IOException {
+        long end = position + length;
+        if (buffer.hasRemaining()) {
+            int count = (int) Math.min(buffer.remaining(), length);
+            ByteBuffer slice = buffer.slice();
+            slice.limit(count);
+            while (slice.hasRemaining()) {
+                position += file.write(slice, position);
+            }
+            buffer.position(buffer.position() + count);
+        }
+        while (position < end) {
+            long transferred = file.transferFrom(channel, position, end - position);
+            if (transferred <= 0) {
+                throw new EOFException("Connection closed " + (end - position) + " bytes before the end of the file");
+            }
+            position += transferred;
+        }
+    }
+
+    // The rest of the connection as a stream, starting with the bytes that are still buffered
+    InputStream remainingAsStream() {
+        byte[] buffered = new byte[buffer.remaining()];
+        buffer.get(buffered);
+        return new SequenceInputStream(new ByteArrayInputStream(buffered), Channels.newInputStream(channel));
+    }
+}
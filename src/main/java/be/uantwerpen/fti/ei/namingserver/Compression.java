@@ -0,0 +1,177 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * On-the-wire compression of file transfers.
+ * The sender offers the codecs it supports when it opens a session or a chunked transfer and the receiver
+ * picks one. Files are then compressed in independent blocks, a block that does not get smaller is sent as is.
+ * Files that already look compressed, by extension or by a trial compression of their first bytes, are sent raw.
+
+ * Settings: ft.compression (default true), ft.compressionLevel (default 1, fastest).
+ */
+public class Compression {
+
+    // Codec of a file or a block on the wire
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+
+    // Bitmask of the codecs a sender offers
+    static final byte OFFER_DEFLATE = 1;
+
+    // Raw bytes per compressed block
+    static final int BLOCK_SIZE = 256 * 1024;
+
+    // Files smaller than this are not worth the block headers
+    private static final int MIN_FILE = 512;
+    // Bytes compressed to guess whether a file compresses
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // A sample has to shrink at least this much
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "gz", "tgz", "zip", "jar", "bz2", "xz", "zst", "7z", "rar", "lz4",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "avi", "mov", "ogg", "flac", "pdf");
+
+    private final boolean enabled = Boolean.parseBoolean(System.getProperty("ft.compression", "true"));
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final LongAdder rawBytesSent = new LongAdder();
+    private final LongAdder wireBytesSent = new LongAdder();
+    private final LongAdder rawBytesReceived = new LongAdder();
+    private final LongAdder wireBytesReceived = new LongAdder();
+    private final LongAdder skippedFiles = new LongAdder();
+
+    public Compression() {
+        int level = Integer.getInteger("ft.compressionLevel", Deflater.BEST_SPEED);
+        deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    // Codecs this side offers as a sender
+    byte offered() {
+        return enabled ? OFFER_DEFLATE : 0;
+    }
+
+    // Codec the receiver picks from the ones the sender offered
+    byte choose(byte offered) {
+        return enabled && (offered & OFFER_DEFLATE) != 0 ? DEFLATE : RAW;
+    }
+
+    // Whether a file is worth compressing with the negotiated codec
+    boolean worthCompressing(byte codec, File file, long length) {
+        if (codec == RAW || length < MIN_FILE) {
+            return false;
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            skippedFiles.increment();
+            return false;
+        }
+
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, length));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (sample.hasRemaining() && channel.read(sample) >= 0) {
+                // fill the sample
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        sample.flip();
+        int size = sample.remaining();
+        ByteBuffer compressed = ByteBuffer.allocate((int) (size * MAX_SAMPLE_RATIO));
+        if (!deflate(sample, compressed)) {
+            skippedFiles.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+    Compress the remaining bytes of src into dst as one independent block.
+    Returns false, leaving dst in an undefined state, when the block does not fit in dst.
+     */
+    boolean deflate(ByteBuffer src, ByteBuffer dst) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (!dst.hasRemaining()) {
+                return false;
+            }
+            deflater.deflate(dst);
+        }
+        return true;
+    }
+
+    // Decompress one block from src into dst, which must have room for exactly rawLength bytes
+    void inflate(ByteBuffer src, ByteBuffer dst, int rawLength) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src);
+        int start = dst.position();
+        try {
+            while (dst.position() - start < rawLength) {
+                if (inflater.inflate(dst) == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block", e);
+        }
+        if (dst.position() - start != rawLength) {
+            throw new IOException("Compressed block holds " + (dst.position() - start) + " instead of "
+                    + rawLength + " bytes");
+        }
+    }
+
+    void countSent(long raw, long wire) {
+        rawBytesSent.add(raw);
+        wireBytesSent.add(wire);
+    }
+
+    void countReceived(long raw, long wire) {
+        rawBytesReceived.add(raw);
+        wireBytesReceived.add(wire);
+    }
+
+    public long getRawBytesSent() {
+        return rawBytesSent.sum();
+    }
+
+    public long getWireBytesSent() {
+        return wireBytesSent.sum();
+    }
+
+    public long getRawBytesReceived() {
+        return rawBytesReceived.sum();
+    }
+
+    public long getWireBytesReceived() {
+        return wireBytesReceived.sum();
+    }
+
+    // Files sent raw because they already looked compressed
+    public long getSkippedFiles() {
+        return skippedFiles.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "sent " + getWireBytesSent() + " of " + getRawBytesSent() + " bytes, received "
+                + getWireBytesReceived() + " of " + getRawBytesReceived() + " bytes, "
+                + getSkippedFiles() + " files already compressed";
+    }
+}
@@ -1,14 +1,31 @@
 package be.uantwerpen.fti.ei.namingserver;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.InputStream;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/NS") // NS = Naming Server
 public class Controller {
 
+    private static final String NDJSON = "application/x-ndjson";
+
+    // Number of results written before the response is flushed to the client
+    private static final int FLUSH_EVERY = 256;
+
     Server server = new Server();
 
+    private final ObjectMapper mapper = new ObjectMapper();
+
     @PostMapping("/add/{ip}")
     public ResponseEntity<String> addNode(@PathVariable String ip){
         if (server.addNode(ip)){
@@ -27,12 +44,80 @@ public class Controller {
         }
     }
 
+    // Share of the ring every node owns, by host
+    @GetMapping("/load")
+    public ResponseEntity<Map<String, Double>> getLoad(){
+        return ResponseEntity.ok(server.getLoad());
+    }
+
+    // Failures detected so far, false positives and how long detection took
+    @GetMapping("/failures")
+    public ResponseEntity<FailureDetector.Stats> getFailures(){
+        return ResponseEntity.ok(server.getFailureStats());
+    }
+
+    // Nodes of the ring with its epoch, so a client can resolve file owners without asking for every file
+    @GetMapping("/ring")
+    public ResponseEntity<Server.RingState> getRing(){
+        return ResponseEntity.ok(server.getRingState());
+    }
+
     @GetMapping("/get/{filename}")
     public ResponseEntity<String> getHost(@PathVariable String filename){
         return ResponseEntity.ok(server.getFileHost(filename));
     }
 
+    /*
+    Resolve many filenames in one request. The body is a JSON array of filenames or NDJSON with one
+    filename per line, the response is streamed back in the same format as {"filename": ..., "host": ...}
+    objects while the body is still being read. Every filename in the batch is resolved on the same
+    snapshot of the ring.
+     */
+    @PostMapping(value = "/get/batch", consumes = {MediaType.APPLICATION_JSON_VALUE, NDJSON})
+    public ResponseEntity<StreamingResponseBody> getHosts(HttpServletRequest request) {
+        boolean ndjson = request.getContentType() != null && request.getContentType().startsWith(NDJSON);
+        Ring ring = server.getRing();
+
+        StreamingResponseBody body = out -> {
+            try (InputStream in = request.getInputStream();
+                 MappingIterator<String> filenames = mapper.readerFor(String.class).readValues(in);
+                 JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
 
+                // NDJSON separates results with a newline, a JSON array with a comma
+                generator.setRootValueSeparator(null);
+                if (!ndjson) {
+                    generator.writeStartArray();
+                }
+                int count = 0;
+                while (filenames.hasNextValue()) {
+                    String filename = filenames.nextValue();
+                    generator.writeStartObject();
+                    generator.writeStringField("filename", filename);
+                    generator.writeStringField("host", server.getFileHost(ring, filename));
+                    generator.writeEndObject();
+                    if (ndjson) {
+                        generator.writeRaw('\n');
+                    }
+                    if (++count % FLUSH_EVERY == 0) {
+                        generator.flush();
+                    }
+                }
+                if (!ndjson) {
+                    generator.writeEndArray();
+                }
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(ndjson ? MediaType.parseMediaType(NDJSON) : MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    // A batch body that is not a JSON array or NDJSON of filenames, as long as no results were sent yet
+    @ExceptionHandler(JsonProcessingException.class)
+    public ResponseEntity<String> invalidBatch(JsonProcessingException e){
+        return ResponseEntity.badRequest().contentType(MediaType.TEXT_PLAIN)
+                .body("Invalid batch: " + e.getOriginalMessage() + "\n");
+    }
 
 
 }
@@ -0,0 +1,392 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * rsync style delta encoding of a file against an older copy on another node.
+ * The node with the old copy signs every full block of it with a rolling weak hash and an MD5. The node with
+ * the new version slides a window over its file, looks the weak hash of the window up in the signatures and
+ * confirms a hit with the MD5, so only the ranges that are not in the old copy are sent as literal bytes.
+
+ * Signatures: block size (4) | block count (4) | per block: weak hash (4) | MD5 (16)
+ * Delta:      COPY (1) | first block (4) | block count (4)
+ *             LITERAL (1) | length (4) | bytes
+ *             END (1) | MD5 of the new file (16)
+ */
+public final class DeltaSync {
+
+    static final byte END = 0;
+    static final byte COPY = 1;
+    static final byte LITERAL = 2;
+
+    static final int MIN_BLOCK = 2 * 1024;
+    static final int MAX_BLOCK = 128 * 1024;
+    static final int STRONG_SIZE = 16;
+
+    // Largest literal run sent as one operation
+    static final int MAX_LITERAL = 1 << 20;
+
+    private DeltaSync() {
+    }
+
+    // Block signatures of an old copy
+    public static final class Signature {
+        final int blockSize;
+        final int[] weak;
+        final byte[] strong;
+
+        // Chained hash table from weak hash to block index, built by the sender
+        private int[] head;
+        private int[] next;
+
+        Signature(int blockSize, int[] weak, byte[] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        public int blockSize() {
+            return blockSize;
+        }
+
+        public int blocks() {
+            return weak.length;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(blockSize);
+            out.writeInt(weak.length);
+            for (int i = 0; i < weak.length; i++) {
+                out.writeInt(weak[i]);
+                out.write(strong, i * STRONG_SIZE, STRONG_SIZE);
+            }
+        }
+
+        // Returns null when the other side has no copy to sign
+        public static Signature read(DataInput in) throws IOException {
+            int blockSize = in.readInt();
+            int count = in.readInt();
+            if (blockSize == 0) {
+                return null;
+            }
+            if (blockSize < 0 || blockSize > MAX_BLOCK || count < 0) {
+                throw new IOException("Invalid signature header " + blockSize + "/" + count);
+            }
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * STRONG_SIZE];
+            for (int i = 0; i < count; i++) {
+                weak[i] = in.readInt();
+                in.readFully(strong, i * STRONG_SIZE, STRONG_SIZE);
+            }
+            return new Signature(blockSize, weak, strong);
+        }
+
+        private void index() {
+            int size = Integer.highestOneBit(Math.max(1, weak.length * 2 - 1)) << 1;
+            head = new int[size];
+            next = new int[weak.length];
+            Arrays.fill(head, -1);
+            // Insert backwards so the chains list the lowest block first
+            for (int i = weak.length - 1; i >= 0; i--) {
+                int slot = mix(weak[i]) & (size - 1);
+                next[i] = head[slot];
+                head[slot] = i;
+            }
+        }
+
+        // Block with this weak hash and contents, -1 if there is none. The preferred block is tried first.
+        private int find(int weakHash, byte[] data, int offset, MessageDigest md5, byte[] digest, int preferred) {
+            int candidate = head[mix(weakHash) & (head.length - 1)];
+            boolean hashed = false;
+            if (preferred >= 0 && preferred < weak.length && weak[preferred] == weakHash) {
+                strong(md5, data, offset, blockSize, digest);
+                hashed = true;
+                if (Arrays.equals(strong, preferred * STRONG_SIZE, (preferred + 1) * STRONG_SIZE,
+                        digest, 0, STRONG_SIZE)) {
+                    return preferred;
+                }
+            }
+            for (; candidate >= 0; candidate = next[candidate]) {
+                if (weak[candidate] != weakHash) {
+                    continue;
+                }
+                if (!hashed) {
+                    strong(md5, data, offset, blockSize, digest);
+                    hashed = true;
+                }
+                if (Arrays.equals(strong, candidate * STRONG_SIZE, (candidate + 1) * STRONG_SIZE,
+                        digest, 0, STRONG_SIZE)) {
+                    return candidate;
+                }
+            }
+            return -1;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16) * 0x45D9F3B;
+        }
+    }
+
+    // Block size for a file of this length, about the square root of the length
+    public static int blockSize(long length) {
+        long root = (long) Math.sqrt((double) length);
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, Long.highestOneBit(Math.max(1, root))));
+    }
+
+    // Sign every full block of the file, a shorter last block is always sent as literal bytes
+    public static Signature sign(FileChannel file, int blockSize) throws IOException {
+        int count = (int) (file.size() / blockSize);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_SIZE];
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        byte[] digest = new byte[STRONG_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        for (int i = 0; i < count; i++) {
+            buffer.clear();
+            long position = (long) i * blockSize;
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("File shrunk while it was being signed");
+                }
+            }
+            weak[i] = weakHash(block, 0, blockSize);
+            strong(md5, block, 0, blockSize, digest);
+            System.arraycopy(digest, 0, strong, i * STRONG_SIZE, STRONG_SIZE);
+        }
+        return new Signature(blockSize, weak, strong);
+    }
+
+    /*
+    Write the delta of the source against the signed copy. Returns the number of literal bytes, the rest of
+    the file is copied from blocks the other side already has.
+     */
+    public static long writeDelta(FileChannel source, Signature signature, DataOutput out) throws IOException {
+        signature.index();
+        int blockSize = signature.blockSize;
+        MessageDigest whole = md5();
+        MessageDigest md5 = md5();
+        byte[] digest = new byte[STRONG_SIZE];
+
+        // Window over the source: [literalStart, pos) is unmatched, the block being tested starts at pos
+        byte[] data = new byte[Math.max(MAX_LITERAL, 4 * blockSize) + blockSize];
+        int end = 0;
+        int pos = 0;
+        int literalStart = 0;
+        long filePosition = 0;
+        boolean eof = false;
+
+        long literalBytes = 0;
+        int copyFirst = -1;
+        int copyCount = 0;
+
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+
+        while (true) {
+            if (end - pos < blockSize && !eof) {
+                // Flush the unmatched bytes and move the window to the start of the buffer
+                if (pos > literalStart) {
+                    writeCopy(out, copyFirst, copyCount);
+                    copyCount = 0;
+                    literalBytes += writeLiteral(out, data, literalStart, pos - literalStart);
+                }
+                System.arraycopy(data, pos, data, 0, end - pos);
+                end -= pos;
+                pos = 0;
+                literalStart = 0;
+                ByteBuffer buffer = ByteBuffer.wrap(data, end, data.length - end);
+                while (buffer.hasRemaining()) {
+                    int read = source.read(buffer, filePosition);
+                    if (read < 0) {
+                        eof = true;
+                        break;
+                    }
+                    whole.update(data, end, read);
+                    filePosition += read;
+                    end += read;
+                }
+                continue;
+            }
+            if (end - pos < blockSize) {
+                break;
+            }
+
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = data[pos + i] & 0xFF;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                rolling = true;
+            }
+
+            int preferred = copyCount > 0 ? copyFirst + copyCount : -1;
+            int block = signature.find((b << 16) | (a & 0xFFFF), data, pos, md5, digest, preferred);
+            if (block >= 0) {
+                if (pos > literalStart) {
+                    writeCopy(out, copyFirst, copyCount);
+                    copyCount = 0;
+                    literalBytes += writeLiteral(out, data, literalStart, pos - literalStart);
+                }
+                if (copyCount > 0 && block == copyFirst + copyCount) {
+                    copyCount++;
+                } else {
+                    writeCopy(out, copyFirst, copyCount);
+                    copyFirst = block;
+                    copyCount = 1;
+                }
+                pos += blockSize;
+                literalStart = pos;
+                rolling = false;
+            } else {
+                if (pos + blockSize < end) {
+                    int out0 = data[pos] & 0xFF;
+                    int in = data[pos + blockSize] & 0xFF;
+                    a = (a - out0 + in) & 0xFFFF;
+                    b = (b - blockSize * out0 + a) & 0xFFFF;
+                } else {
+                    rolling = false;
+                }
+                pos++;
+                // Keep literal operations bounded
+                if (pos - literalStart == MAX_LITERAL) {
+                    writeCopy(out, copyFirst, copyCount);
+                    copyCount = 0;
+                    literalBytes += writeLiteral(out, data, literalStart, pos - literalStart);
+                    literalStart = pos;
+                }
+            }
+        }
+
+        writeCopy(out, copyFirst, copyCount);
+        if (end > literalStart) {
+            literalBytes += writeLiteral(out, data, literalStart, end - literalStart);
+        }
+        out.writeByte(END);
+        out.write(whole.digest());
+        return literalBytes;
+    }
+
+    private static void writeCopy(DataOutput out, int first, int count) throws IOException {
+        if (count > 0) {
+            out.writeByte(COPY);
+            out.writeInt(first);
+            out.writeInt(count);
+        }
+    }
+
+    // Literals longer than the receiver accepts, like the tail after the last block, are split
+    private static int writeLiteral(DataOutput out, byte[] data, int offset, int length) throws IOException {
+        for (int written = 0; written < length; written += MAX_LITERAL) {
+            int count = Math.min(MAX_LITERAL, length - written);
+            out.writeByte(LITERAL);
+            out.writeInt(count);
+            out.write(data, offset + written, count);
+        }
+        return length;
+    }
+
+    /*
+    Rebuild the new file into the target from the old copy and the delta.
+    Returns false when the result does not match the MD5 the sender computed over its file.
+     */
+    public static boolean applyDelta(FileChannel base, Signature signature, DataInput in, FileChannel target)
+            throws IOException {
+        MessageDigest whole = md5();
+        byte[] buffer = new byte[256 * 1024];
+        long position = 0;
+        while (true) {
+            byte op = in.readByte();
+            switch (op) {
+                case COPY -> {
+                    int first = in.readInt();
+                    int count = in.readInt();
+                    if (first < 0 || count <= 0 || (long) first + count > signature.blocks()) {
+                        throw new IOException("Invalid copy of " + count + " blocks from " + first);
+                    }
+                    long from = (long) first * signature.blockSize;
+                    long length = (long) count * signature.blockSize;
+                    while (length > 0) {
+                        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, length));
+                        while (chunk.hasRemaining()) {
+                            if (base.read(chunk, from + chunk.position()) < 0) {
+                                throw new IOException("Old copy shrunk while the delta was applied");
+                            }
+                        }
+                        position += write(target, whole, buffer, chunk.position(), position);
+                        from += chunk.position();
+                        length -= chunk.position();
+                    }
+                }
+                case LITERAL -> {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_LITERAL) {
+                        throw new IOException("Invalid literal of " + length + " bytes");
+                    }
+                    while (length > 0) {
+                        int count = Math.min(buffer.length, length);
+                        in.readFully(buffer, 0, count);
+                        position += write(target, whole, buffer, count, position);
+                        length -= count;
+                    }
+                }
+                case END -> {
+                    byte[] expected = new byte[STRONG_SIZE];
+                    in.readFully(expected);
+                    return MessageDigest.isEqual(expected, whole.digest());
+                }
+                default -> throw new IOException("Unknown delta operation " + op);
+            }
+        }
+    }
+
+    private static int write(FileChannel target, MessageDigest whole, byte[] buffer, int length, long position)
+            throws IOException {
+        whole.update(buffer, 0, length);
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+        while (chunk.hasRemaining()) {
+            target.write(chunk, position + chunk.position());
+        }
+        return length;
+    }
+
+    // Adler-32 like checksum without the modulo prime, so it can be rolled with shifts and adds
+    static int weakHash(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (b << 16) | (a & 0xFFFF);
+    }
+
+    private static void strong(MessageDigest md5, byte[] data, int offset, int length, byte[] digest) {
+        md5.update(data, offset, length);
+        try {
+            md5.digest(digest, 0, STRONG_SIZE);
+        } catch (java.security.DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+}
@@ -2,26 +2,41 @@ package be.uantwerpen.fti.ei.namingserver;
 
 import java.io.Serial;
 import java.io.Serializable;
-import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Repairs a node after the naming server declared another node failed. The nodes before and after the failed
+ * node are linked to each other, and the local files are reported again so the ones that had a replica on the
+ * failed node get a new replica holder. Every node that receives the failure announcement runs one.
+ */
 public class FailureAgent implements Runnable, Serializable {
 
+    @Serial
+    private static final long serialVersionUID = 1L;
+
     private static final Logger logger = Logger.getLogger(FailureAgent.class.getName());
 
-    private final Node currentNode;
-    private final int failingNodeId;
-    private final int startingNodeId;
+    private final transient Node currentNode;
+    private final String failingNodeIP;
+    private final long failingNodeId;
+    // Neighbours of the failed node
+    private final long previousId;
+    private final long nextId;
 
-    public FailureAgent(Node currentNode, int failingNodeId, int startingNodeId) {
+    public FailureAgent(Node currentNode, String failingNodeIP, long previousId, long nextId) {
         this.currentNode = currentNode;
-        this.failingNodeId = failingNodeId;
-        this.startingNodeId = startingNodeId;
+        this.failingNodeIP = failingNodeIP;
+        this.failingNodeId = Utils.hash(failingNodeIP);
+        this.previousId = previousId;
+        this.nextId = nextId;
     }
 
 
     @Override
     public void run() {
-
+        logger.log(Level.INFO, "Repairing the failure of node " + failingNodeId + " (" + failingNodeIP + ")");
+        currentNode.removeNeighbour(failingNodeIP, previousId, nextId);
+        currentNode.reportFilesForRepair(failingNodeIP);
     }
 }
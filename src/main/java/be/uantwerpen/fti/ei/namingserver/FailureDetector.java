@@ -0,0 +1,352 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Phi accrual failure detector for the heartbeats of the nodes.
+ * Every peer keeps a window of the intervals between its heartbeats. The suspicion phi of a peer is
+ * -log10 of the chance that its next heartbeat is still coming, assuming normally distributed intervals, and the
+ * peer is declared failed once phi reaches the threshold. A slow network raises the spread of the intervals and
+ * with it the time before a peer is suspected, instead of failing it on a fixed timeout.
+
+ * Peers are not polled. Every peer has one timer on a hashed timing wheel, set to the moment its phi would reach
+ * the threshold if no heartbeat arrives. Heartbeats only record their arrival time, when the timer fires the peer
+ * is either failed or, when heartbeats came in meanwhile, its timer is set again. A tick only visits the timers
+ * in its slot, so thousands of peers cost a handful of checks per tick.
+
+ * Detection time is measured from the last heartbeat of a failed peer to the moment it is declared failed.
+ * A heartbeat of a peer after it was declared failed counts as a false positive.
+ */
+public class FailureDetector implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(FailureDetector.class.getName());
+
+    // Called once for every peer that is declared failed, on the thread of the wheel
+    public interface Listener {
+        void failed(long id, long silentMillis);
+    }
+
+    public record Stats(int peers, long failures, long falsePositives, double meanDetectionMillis,
+                        long maxDetectionMillis) {}
+
+    // Intervals a peer remembers, older ones are dropped
+    private static final int WINDOW = 100;
+    // Failed peers are remembered this long, to count their heartbeats as false positives
+    private static final long FAILED_MEMORY_MILLIS = 10 * 60_000;
+
+    private final long tickMillis;
+    private final Slot[] wheel;
+    private final int mask;
+    private final double threshold;
+    private final long expectedIntervalMillis;
+    private final long acceptablePauseMillis;
+    private final long minStdDevMillis;
+    private final LongSupplier clock;
+    private final Listener listener;
+
+    // Standard deviations past the mean at which phi reaches the threshold
+    private final double thresholdDeviations;
+
+    private final Map<Long, Peer> peers = new ConcurrentHashMap<>();
+    private final Map<Long, Long> failedAt = new ConcurrentHashMap<>();
+    // Timers of new peers, moved onto the wheel by the next tick so only the wheel thread touches the slots
+    private final ConcurrentLinkedQueue<Peer> pending = new ConcurrentLinkedQueue<>();
+
+    private long tick;
+    private final long start;
+
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong detectionMillis = new AtomicLong();
+    private final AtomicLong maxDetectionMillis = new AtomicLong();
+
+    private volatile Thread thread;
+
+    public FailureDetector(long expectedIntervalMillis, Listener listener) {
+        this(expectedIntervalMillis, Double.parseDouble(System.getProperty("ns.phiThreshold", "8")),
+                Long.getLong("ns.acceptablePauseMillis", 500), Long.getLong("ns.minStdDevMillis", 100),
+                Long.getLong("ns.wheelTickMillis", 100), 512, () -> System.nanoTime() / 1_000_000, listener);
+    }
+
+    public FailureDetector(long expectedIntervalMillis, double threshold, long acceptablePauseMillis,
+                           long minStdDevMillis, long tickMillis, int wheelSize, LongSupplier clock,
+                           Listener listener) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+        }
+        this.expectedIntervalMillis = expectedIntervalMillis;
+        this.threshold = threshold;
+        this.acceptablePauseMillis = acceptablePauseMillis;
+        this.minStdDevMillis = minStdDevMillis;
+        this.tickMillis = tickMillis;
+        this.wheel = new Slot[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Slot();
+        }
+        this.mask = wheelSize - 1;
+        this.clock = clock;
+        this.listener = listener;
+        this.thresholdDeviations = deviationsFor(threshold);
+        this.start = clock.getAsLong();
+    }
+
+    // Turn the wheel on its own daemon thread
+    public void start() {
+        Thread wheelThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(tickMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                advance();
+            }
+        }, "ns-failure-detector");
+        wheelThread.setDaemon(true);
+        thread = wheelThread;
+        wheelThread.start();
+    }
+
+    // Record a heartbeat, an unknown peer is added
+    public void heartbeat(long id) {
+        long now = clock.getAsLong();
+        Peer peer = peers.get(id);
+        if (peer == null) {
+            if (failedAt.remove(id) != null) {
+                falsePositives.incrementAndGet();
+                logger.log(Level.WARNING, "Node " + id + " was declared failed but is still sending heartbeats");
+            }
+            peer = new Peer(id, now);
+            if (peers.putIfAbsent(id, peer) == null) {
+                pending.add(peer);
+            }
+            return;
+        }
+        peer.arrived(now);
+    }
+
+    // A peer that bootstrapped again, after it was declared failed it restarted, which is no false positive
+    public void rejoined(long id) {
+        failedAt.remove(id);
+        heartbeat(id);
+    }
+
+    // Stop watching a peer that left on its own
+    public void remove(long id) {
+        Peer peer = peers.remove(id);
+        if (peer != null) {
+            peer.removed = true;
+        }
+    }
+
+    public boolean isWatching(long id) {
+        return peers.containsKey(id);
+    }
+
+    // Current suspicion of a peer, 0 for an unknown one
+    public double phi(long id) {
+        Peer peer = peers.get(id);
+        return peer == null ? 0 : peer.phi(clock.getAsLong());
+    }
+
+    public Stats stats() {
+        long failed = failures.get();
+        return new Stats(peers.size(), failed, falsePositives.get(),
+                failed == 0 ? 0 : detectionMillis.get() / (double) failed, maxDetectionMillis.get());
+    }
+
+    /*
+    Process every tick up to now: move new timers onto the wheel and check the peers whose timer expires in
+    the slots passed. Only called from one thread at a time.
+     */
+    synchronized void advance() {
+        long now = clock.getAsLong();
+        long target = (now - start) / tickMillis;
+        for (Peer peer; (peer = pending.poll()) != null; ) {
+            if (!peer.removed) {
+                schedule(peer);
+            }
+        }
+        while (tick < target) {
+            tick++;
+            expire(wheel[(int) (tick & mask)], now);
+        }
+        // Forget old failures, so the map does not grow with every node that ever failed
+        failedAt.values().removeIf(at -> now - at > FAILED_MEMORY_MILLIS);
+    }
+
+    private void expire(Slot slot, long now) {
+        Peer peer = slot.head;
+        while (peer != null) {
+            Peer next = peer.next;
+            if (peer.removed) {
+                slot.unlink(peer);
+            } else if (peer.rounds > 0) {
+                peer.rounds--;
+            } else {
+                slot.unlink(peer);
+                check(peer, now);
+            }
+            peer = next;
+        }
+    }
+
+    private void check(Peer peer, long now) {
+        if (peer.phi(now) < threshold) {
+            schedule(peer);
+            return;
+        }
+        if (!peers.remove(peer.id, peer)) {
+            return;
+        }
+        long silent = now - peer.last;
+        failures.incrementAndGet();
+        detectionMillis.addAndGet(silent);
+        maxDetectionMillis.accumulateAndGet(silent, Math::max);
+        failedAt.put(peer.id, now);
+        logger.log(Level.WARNING, "Node " + peer.id + " failed, no heartbeat for " + silent + " ms");
+        try {
+            listener.failed(peer.id, silent);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to handle the failure of node " + peer.id, e);
+        }
+    }
+
+    // Put the timer of the peer in the slot of the moment its phi reaches the threshold
+    private void schedule(Peer peer) {
+        long deadline = peer.deadline();
+        long ticks = Math.max(1, (deadline - start + tickMillis - 1) / tickMillis - tick);
+        peer.rounds = (ticks - 1) / wheel.length;
+        wheel[(int) ((tick + ticks) & mask)].link(peer);
+    }
+
+    /*
+    Deviations y at which phi(y) = threshold, for the logistic approximation of the normal distribution used
+    by phi. Phi grows with y, so a bisection finds it.
+     */
+    private static double deviationsFor(double threshold) {
+        double low = -10;
+        double high = 40;
+        for (int i = 0; i < 100; i++) {
+            double middle = (low + high) / 2;
+            if (phi(middle) < threshold) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return high;
+    }
+
+    // -log10 of the chance that a normally distributed interval is longer than y deviations past its mean
+    private static double phi(double y) {
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return y > 0 ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    @Override
+    public void close() {
+        Thread wheelThread = thread;
+        if (wheelThread != null) {
+            wheelThread.interrupt();
+        }
+    }
+
+    /*
+    Heartbeat history of one peer, also the timer of the peer on the wheel. The intervals are kept in a ring
+    buffer with their running sum and sum of squares.
+     */
+    private final class Peer {
+        private final long id;
+        private final long[] intervals = new long[WINDOW];
+        private int count;
+        private int position;
+        private double sum;
+        private double squares;
+        private volatile long last;
+        private volatile boolean removed;
+
+        // Wheel links, only touched by the wheel thread
+        private Peer previous, next;
+        private long rounds;
+
+        Peer(long id, long now) {
+            this.id = id;
+            this.last = now;
+            // Start from the expected interval, so a peer that dies right after joining is still detected
+            add(expectedIntervalMillis);
+        }
+
+        synchronized void arrived(long now) {
+            add(now - last);
+            last = now;
+        }
+
+        private void add(long interval) {
+            if (count == WINDOW) {
+                long dropped = intervals[position];
+                sum -= dropped;
+                squares -= (double) dropped * dropped;
+            } else {
+                count++;
+            }
+            intervals[position] = interval;
+            position = (position + 1) % WINDOW;
+            sum += interval;
+            squares += (double) interval * interval;
+        }
+
+        synchronized double mean() {
+            return sum / count + acceptablePauseMillis;
+        }
+
+        synchronized double stdDev() {
+            double mean = sum / count;
+            double variance = Math.max(0, squares / count - mean * mean);
+            return Math.max(Math.sqrt(variance), minStdDevMillis);
+        }
+
+        double phi(long now) {
+            return FailureDetector.phi((now - last - mean()) / stdDev());
+        }
+
+        // Moment the phi of the peer reaches the threshold without a new heartbeat
+        long deadline() {
+            return last + (long) Math.ceil(mean() + thresholdDeviations * stdDev());
+        }
+    }
+
+    // Slot of the wheel, a doubly linked list through the peers
+    private static final class Slot {
+        private Peer head;
+
+        void link(Peer peer) {
+            peer.previous = null;
+            peer.next = head;
+            if (head != null) {
+                head.previous = peer;
+            }
+            head = peer;
+        }
+
+        void unlink(Peer peer) {
+            if (peer.previous != null) {
+                peer.previous.next = peer.next;
+            } else {
+                head = peer.next;
+            }
+            if (peer.next != null) {
+                peer.next.previous = peer.previous;
+            }
+            peer.previous = null;
+            peer.next = null;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Persisted state of the files in a folder: size, modification time and an MD5 of the content of every file,
+ * as it was last replicated. At startup the folder is diffed against it, so only files that were added, changed
+ * or removed while the node was down are reported again. The content is only hashed when the size or
+ * modification time differs, a file that was touched without changing is not reported.
+
+ * Reports to the naming server are not acknowledged and the server only answers with a replication when the
+ * file has replica holders. A new or changed file is therefore kept pending until the node confirmed that it
+ * was replicated, a file whose report got lost or that had nowhere to go is reported again at the next start.
+
+ * Records: "PUT\tfilename\tsize\tmodified\thash" and "DEL\tfilename", kept in a Journal like the ReplicaCatalog.
+ */
+public class FileStateIndex implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(FileStateIndex.class.getName());
+
+    // Folders with more files than this are diffed in parallel
+    private static final int PARALLEL_THRESHOLD = 1000;
+
+    public record FileState(long size, long modified, String hash) {}
+
+    private final Path directory;
+    private final Map<String, FileState> states = new ConcurrentHashMap<>();
+    // Reported states that were not replicated yet, only kept in memory
+    private final Map<String, FileState> pending = new ConcurrentHashMap<>();
+    private final Journal journal;
+
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 * 1024));
+
+    public FileStateIndex(Path directory, File stateDirectory) throws IOException {
+        this(directory, new File(stateDirectory, "localFiles.journal"), new File(stateDirectory, "localFiles.snapshot"),
+                1000);
+    }
+
+    public FileStateIndex(Path directory, File logFile, File snapshotFile, int compactThreshold) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(logFile.toPath().toAbsolutePath().getParent());
+        journal = new Journal(logFile, snapshotFile, compactThreshold);
+        journal.replay(this::applyRecord);
+    }
+
+    /*
+    Diff the folder against the index and bring the index up to date.
+    Returns the files that were created, modified or deleted since they were last replicated.
+     */
+    public FolderWatcher.Changes reconcile() throws IOException {
+        List<String> filenames = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                filenames.add(file.getFileName().toString());
+            }
+        }
+
+        List<CompletableFuture<Void>> writes = Collections.synchronizedList(new ArrayList<>());
+        List<String> created = Collections.synchronizedList(new ArrayList<>());
+        List<String> modified = Collections.synchronizedList(new ArrayList<>());
+        Stream<String> stream = filenames.size() > PARALLEL_THRESHOLD ? filenames.parallelStream() : filenames.stream();
+        stream.forEach(filename -> {
+            FileState previous = states.get(filename);
+            FileState current = stateOf(filename, previous);
+            if (current != null && current != previous) {
+                changed(filename, current, created, modified, writes);
+            }
+        });
+
+        Set<String> present = new HashSet<>(filenames);
+        Set<String> known = new HashSet<>(states.keySet());
+        known.addAll(pending.keySet());
+        List<String> deleted = new ArrayList<>();
+        for (String filename : known) {
+            if (!present.contains(filename)) {
+                forget(filename, writes);
+                deleted.add(filename);
+            }
+        }
+
+        sync(writes);
+        return new FolderWatcher.Changes(List.copyOf(created), List.copyOf(modified), deleted);
+    }
+
+    /*
+    Record changes seen while running. Returns the changes that remain once files whose content
+    did not change are left out.
+     */
+    public FolderWatcher.Changes update(FolderWatcher.Changes changes) {
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        List<String> created = new ArrayList<>();
+        List<String> modified = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        for (String filename : changes.created()) {
+            FileState current = stateOf(filename, null);
+            if (current != null) {
+                changed(filename, current, created, modified, writes);
+            }
+        }
+        for (String filename : changes.modified()) {
+            FileState previous = states.get(filename);
+            FileState current = stateOf(filename, previous);
+            if (current != null && current != previous) {
+                changed(filename, current, created, modified, writes);
+            }
+        }
+        for (String filename : changes.deleted()) {
+            if (states.containsKey(filename) || pending.containsKey(filename)) {
+                forget(filename, writes);
+                deleted.add(filename);
+            }
+        }
+        sync(writes);
+        return new FolderWatcher.Changes(created, modified, deleted);
+    }
+
+    /*
+    A file with new content is reported and stays pending until it is replicated. A file that was only
+    touched, or changed back to the content that was replicated, is recorded right away.
+     */
+    private void changed(String filename, FileState current, List<String> created, List<String> modified,
+                         List<CompletableFuture<Void>> writes) {
+        FileState previous = states.get(filename);
+        if (previous != null && previous.hash().equals(current.hash())) {
+            pending.remove(filename);
+            record(filename, current, writes);
+        } else {
+            pending.put(filename, current);
+            (previous == null ? created : modified).add(filename);
+        }
+    }
+
+    // State of a file that was reported but not replicated yet, null when there is none
+    public FileState pending(String filename) {
+        return pending.get(filename);
+    }
+
+    /*
+    Record that the given state of a file was replicated, it is only reported again when it changes.
+    Nothing happens when the file changed again in the meantime, its newer state stays pending.
+     */
+    public void confirm(String filename, FileState state) {
+        if (state == null || !pending.remove(filename, state)) {
+            return;
+        }
+        record(filename, state, new ArrayList<>());
+        journal.compactIfNeeded(this::snapshotRecords);
+    }
+
+    // State of the file as it was last replicated
+    public FileState get(String filename) {
+        return states.get(filename);
+    }
+
+    // Files in the folder, replicated or not
+    public int size() {
+        int size = states.size();
+        for (String filename : pending.keySet()) {
+            if (!states.containsKey(filename)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /*
+    Current state of a file, the previous state itself when size and modification time did not change.
+    The content is only hashed when they did. Null when the file is gone or not a regular file.
+     */
+    private FileState stateOf(String filename, FileState previous) {
+        Path file = directory.resolve(filename);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            long size = attributes.size();
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (previous != null && previous.size() == size && previous.modified() == modified) {
+                return previous;
+            }
+            return new FileState(size, modified, hash(file));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read the state of " + file, e);
+            return null;
+        }
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = buffers.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md5.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(md5.digest());
+    }
+
+    private void record(String filename, FileState state, List<CompletableFuture<Void>> writes) {
+        states.put(filename, state);
+        // Names that do not fit in the journal are reported again after a restart
+        if (Journal.fits(filename, '\t')) {
+            writes.add(journal.append("PUT\t" + filename + "\t" + state.size() + "\t" + state.modified()
+                    + "\t" + state.hash()));
+        }
+    }
+
+    private void forget(String filename, List<CompletableFuture<Void>> writes) {
+        pending.remove(filename);
+        if (states.remove(filename) != null && Journal.fits(filename, '\t')) {
+            writes.add(journal.append("DEL\t" + filename));
+        }
+    }
+
+    // Wait until the recorded changes are on disk
+    private void sync(List<CompletableFuture<Void>> writes) {
+        Journal.await(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])));
+        journal.compactIfNeeded(this::snapshotRecords);
+    }
+
+    private void applyRecord(String record) {
+        String[] parts = record.split("\t");
+        switch (parts[0]) {
+            case "PUT" -> {
+                if (parts.length == 5) {
+                    try {
+                        states.put(parts[1], new FileState(Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]));
+                    } catch (NumberFormatException e) {
+                        logger.log(Level.WARNING, "Ignoring malformed file state: " + record);
+                    }
+                }
+            }
+            case "DEL" -> {
+                if (parts.length == 2) {
+                    states.remove(parts[1]);
+                }
+            }
+            default -> logger.log(Level.WARNING, "Ignoring unknown file state record: " + record);
+        }
+    }
+
+    private List<String> snapshotRecords() {
+        List<String> records = new ArrayList<>(states.size());
+        states.forEach((filename, state) -> {
+            if (Journal.fits(filename, '\t')) {
+                records.add("PUT\t" + filename + "\t" + state.size() + "\t" + state.modified() + "\t" + state.hash());
+            }
+        });
+        return records;
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+    }
+}
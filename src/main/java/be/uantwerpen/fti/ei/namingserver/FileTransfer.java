@@ -1,49 +1,438 @@
 package be.uantwerpen.fti.ei.namingserver;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32C;
 
+/**
+ * Sends files to other nodes over TCP and receives the files sent to this node.
+ * Three modes are supported on the wire, the receiver detects which one a connection uses from its first bytes:
+ * - STREAM: the original object stream, the file is copied through a heap buffer.
+ * - ZERO_COPY: one file per connection, a small binary header followed by the raw file, copied by the kernel
+ *   with FileChannel.transferTo on the sender and transferFrom on the receiver.
+ * - SESSION: many zero-copy files over one persistent connection per peer with pipelined acknowledgements,
+ *   see TransferSession.
+
+ * Zero-copy header: magic (4) | SINGLE_FILE (1) | filename (2 + UTF-8) | owner message (2 + UTF-8) | length (8)
+
+ * Files of at least ft.chunkedThreshold bytes are sent in chunks with a CRC32C each, over their own connection:
+ *   magic (4) | CHUNKED (1) | filename | owner message | length (8) | version (8) | offered codecs (1)
+ * The receiver answers with the offset it already verified for that version of the file (8) and the codec it
+ * picked (1), after which the sender streams chunks from there on: raw size (4) | wire size (4) | CRC32C of the
+ * raw bytes (4) | bytes, ended by a chunk of raw size 0. A chunk is compressed when its wire size is smaller.
+ * The receiver
+ * writes into the partial directory, persists the verified offset regularly and answers one status byte once
+ * the complete file is moved to its final name. A dropped connection is resumed from the verified offset.
+
+ * Modified files of at least ft.deltaThreshold bytes are first offered as a delta, see DeltaSync. Only files
+ * marked with markModified and files forwarded after they were received as a delta are offered, a new file
+ * goes straight to the configured mode. Header:
+ *   magic (4) | DELTA (1) | filename | owner message | length (8)
+ * The receiver answers with the signatures of its current copy, or a block size of 0 when it has none, in which
+ * case the sender closes the connection and sends the whole file. Otherwise the sender streams the delta and
+ * the receiver answers one status byte once the rebuilt file is verified and moved to its final name.
+
+ * Sessions and chunked transfers negotiate compression, see Compression. Zero-copy and delta transfers are raw.
+
+ * Every received file is written under a temporary name first and renamed atomically once it is complete.
+
+ * Replicas are chain replicated: the owner message of a file sent with transferChain is CHAIN followed by the
+ * remaining replica holders. A holder forwards the file to the next one as soon as it has stored it, while it
+ * keeps receiving the next files, so the sender only sends one copy whatever the number of replicas.
+
+ * Received connections are handled concurrently by a bounded pool of workers. When all workers are busy and
+ * the queue is full, the node stops accepting and new senders wait in the TCP backlog. The bytes of the files
+ * being received at the same time are limited as well, a large file waits until enough budget is free.
+ */
 public class FileTransfer {
 
     private static final Logger logger = Logger.getLogger(FileTransfer.class.getName());
 
+    public enum Mode { STREAM, ZERO_COPY, SESSION }
+
+    // "NSFT", never the start of an object stream (0xACED), followed by the kind of connection
+    static final int MAGIC = 0x4E534654;
+    static final byte SINGLE_FILE = 1;
+    static final byte SESSION = 2;
+    static final byte CHUNKED = 3;
+    static final byte DELTA = 4;
+    static final byte DELTA_FAILED = 0;
+
+    // Owner message of a file sent down a chain of replica holders, followed by the holders still to go
+    static final String CHAIN = "->";
+
+    // Incomplete files of a receive directory live here until they are renamed to their final name
+    static final String PARTIAL_DIRECTORY = ".partial";
+
+    // Largest chunk a receiver accepts
+    private static final int MAX_CHUNK = 16 << 20;
+    // The verified offset of a chunked transfer is persisted every this many chunks
+    private static final int PROGRESS_EVERY = 8;
+    // Attempts of a chunked transfer before it is given up, every retry resumes at the verified offset
+    private static final int CHUNKED_ATTEMPTS = 5;
+
+    // Files up to this size are sent with their header in one write instead of through transferTo
+    private static final int SMALL_FILE = 64 * 1024;
+
+    // Sessions without traffic for this long are closed, an open session holds a worker on the receiver
+    private static final long SESSION_IDLE_SECONDS = 5;
+
+    // Times a file is sent over a session before it is given up, the pause between two attempts grows by this
+    private static final int SESSION_ATTEMPTS = 3;
+    private static final long SESSION_RETRY_MILLIS = 500;
+
     private final int port;
 
-    private ServerSocket sSocket;
+    private final Compression compression = new Compression();
+
+    private final String localDirectory;
+
+    private final String replicatedDirectory;
+
+    // Records the owners of the replicas received by this node
+    private final ReplicaCatalog catalog;
+
+    private volatile Mode mode = Mode.valueOf(System.getProperty("ft.mode", Mode.SESSION.name()));
+
+    // Files this large are sent as resumable chunked transfers, in every mode except STREAM
+    private final long chunkedThreshold = Long.getLong("ft.chunkedThreshold", 64L << 20);
+    private final int chunkSize = Integer.getInteger("ft.chunkSize", 1 << 20);
+
+    // Files this large are synchronized as a delta against the copy of the receiver, if it has one
+    private final long deltaThreshold = Long.getLong("ft.deltaThreshold", 1L << 20);
+
+    // Local files modified since they were last replicated, their replica holders have an older copy
+    private final Set<String> modifiedFiles = ConcurrentHashMap.newKeySet();
+
+    // Open session per peer, reused by every transfer to that peer
+    private final Map<String, TransferSession> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sessionReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ft-session-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Sends files again that a session did not get acknowledged
+    private final ScheduledExecutorService retrier = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ft-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Forwards received files to the next replica holder of their chain, in the order they were received
+    private final ExecutorService forwarder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ft-forwarder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ServerSocketChannel sSocket;
+
+    private volatile boolean listening = true;
+
+    // Transfers received at the same time and accepted transfers waiting for a worker
+    private final int maxInFlight;
+    private final int maxQueued;
+
+    // Bytes of the files being received at the same time
+    private final ByteBudget bufferedBytes;
+
+    private final AtomicInteger queuedTransfers = new AtomicInteger();
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicLong completedTransfers = new AtomicLong();
+    private final AtomicLong failedTransfers = new AtomicLong();
+
+    // Time to put a file on the wire, acknowledgements of sessions arrive later
+    private static final Metrics.Histogram SEND_TIME = Metrics.global().histogram("ft_send_seconds",
+            "Time to send a file");
+
+    public FileTransfer(int port, ReplicaCatalog catalog) throws IOException {
+        this(port, "/root/localFiles", "/root/replicatedFiles", catalog);
+    }
+
+    // Without a catalog, the owners of received replicas are not recorded
+    public FileTransfer(int port, String localDirectory, String replicatedDirectory) throws IOException {
+        this(port, localDirectory, replicatedDirectory, null);
+    }
+
+    public FileTransfer(int port, String localDirectory, String replicatedDirectory, ReplicaCatalog catalog)
+            throws IOException {
+        this(port, localDirectory, replicatedDirectory, catalog, Integer.getInteger("ft.maxInFlight", 8),
+                Integer.getInteger("ft.maxQueued", 64), Long.getLong("ft.maxBufferedBytes", 512L << 20));
+    }
+
+    public FileTransfer(int port, String localDirectory, String replicatedDirectory, ReplicaCatalog catalog,
+                        int maxInFlight, int maxQueued, long maxBufferedBytes) throws IOException {
+        this.port = port;
+        this.localDirectory = localDirectory;
+        this.replicatedDirectory = replicatedDirectory;
+        this.catalog = catalog;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.bufferedBytes = new ByteBudget(maxBufferedBytes);
+        sessionReaper.scheduleWithFixedDelay(this::closeIdleSessions, 1, 1, TimeUnit.SECONDS);
 
-    private  boolean listening = true;
+        Metrics metrics = Metrics.global();
+        metrics.gauge("ft_transfers_queued", "Accepted connections waiting for a worker", queuedTransfers::get);
+        metrics.gauge("ft_transfers_in_flight", "Connections being received", activeTransfers::get);
+        metrics.gauge("ft_buffered_bytes", "Bytes reserved by the files being received", bufferedBytes::used);
+        metrics.counter("ft_received_files_total", "Files received", completedTransfers::get);
+        metrics.counter("ft_failed_receives_total", "Connections that failed while receiving", failedTransfers::get);
+        metrics.counter("ft_sent_bytes_total", "Bytes of the files sent", compression::getRawBytesSent);
+        metrics.counter("ft_sent_wire_bytes_total", "Bytes put on the wire for the files sent",
+                compression::getWireBytesSent);
+        metrics.counter("ft_received_bytes_total", "Bytes of the files received", compression::getRawBytesReceived);
+        metrics.counter("ft_received_wire_bytes_total", "Bytes read from the wire for the files received",
+                compression::getWireBytesReceived);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
 
-    public FileTransfer(int port) throws IOException {
-           this.port = port;
+    public void setMode(Mode mode) {
+        this.mode = mode;
     }
 
-    public void transferFile(String IP, String filename, String potentialMessage) {
+    // The future completes with true once the file is acknowledged, see send
+    public CompletableFuture<Boolean> transferFile(String IP, String filename, String potentialMessage) {
         File fileToSend;
         if(potentialMessage == null) {
             potentialMessage = "";
-            fileToSend = new File("/root/localFiles/" + filename);
+            fileToSend = new File(localDirectory, filename);
         } else {
             potentialMessage = potentialMessage+ ":" + IP;
-            fileToSend = new File("/root/replicatedFiles/" + filename);
+            fileToSend = new File(replicatedDirectory, filename);
+        }
+
+        return send(IP, fileToSend, potentialMessage);
+    }
+
+    /*
+    Send a local file down a chain of replica holders: only to the first one, which forwards it to the next one
+    and so on. Nothing is sent for an empty chain. The future completes with true once the first holder
+    acknowledged the file.
+     */
+    public CompletableFuture<Boolean> transferChain(List<String> chain, String filename) {
+        if (chain.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return send(chain.get(0), new File(localDirectory, filename), chainMessage(chain.subList(1, chain.size())),
+                modifiedFiles.remove(filename));
+    }
+
+    // Offer the next replication of these local files as a delta
+    public void markModified(Collection<String> filenames) {
+        modifiedFiles.addAll(filenames);
+    }
+
+    /*
+    Hand a replica over to another node, which records the local owner and the given replica holders.
+    The future completes with true once the node acknowledged the file.
+     */
+    public CompletableFuture<Boolean> handOver(String IP, String filename, String localOwnerIP, List<String> replicas) {
+        return send(IP, new File(replicatedDirectory, filename),
+                localOwnerIP + ":" + IP + ":" + String.join(",", replicas));
+    }
+
+    static String chainMessage(List<String> remaining) {
+        return CHAIN + String.join(",", remaining);
+    }
+
+    /*
+    Send a file in the configured mode. The future completes with true once the file is acknowledged, which for
+    sessions happens asynchronously, and with false when it could not be sent.
+     */
+    private CompletableFuture<Boolean> send(String IP, File fileToSend, String potentialMessage) {
+        return send(IP, fileToSend, potentialMessage, false);
+    }
+
+    // A delta is only offered when the receiver is expected to have an older copy of the file
+    private CompletableFuture<Boolean> send(String IP, File fileToSend, String potentialMessage, boolean delta) {
+        long start = System.nanoTime();
+        try {
+            return sendFile(IP, fileToSend, potentialMessage, delta);
+        } finally {
+            SEND_TIME.recordSince(start);
         }
+    }
 
+    private CompletableFuture<Boolean> sendFile(String IP, File fileToSend, String potentialMessage,
+                                                boolean delta) {
         if (!fileToSend.exists()) {
-            logger.log(Level.WARNING, "File not found: " + filename);
-            return;
+            logger.log(Level.WARNING, "File not found: " + fileToSend.getName());
+            return CompletableFuture.completedFuture(false);
         }
 
+        try {
+            if (delta && mode != Mode.STREAM && fileToSend.length() >= deltaThreshold
+                    && transferDelta(IP, fileToSend, potentialMessage)) {
+                logger.log(Level.INFO, "File sent successfully");
+                return CompletableFuture.completedFuture(true);
+            }
+            if (mode != Mode.STREAM && fileToSend.length() >= chunkedThreshold) {
+                transferChunked(IP, fileToSend, potentialMessage);
+                logger.log(Level.INFO, "File sent successfully");
+                return CompletableFuture.completedFuture(true);
+            }
+            CompletableFuture<Boolean> acknowledged = switch (mode) {
+                case SESSION -> transferInSession(IP, fileToSend, potentialMessage);
+                case ZERO_COPY -> {
+                    transferZeroCopy(IP, fileToSend, potentialMessage);
+                    yield CompletableFuture.completedFuture(true);
+                }
+                case STREAM -> {
+                    transferStream(IP, fileToSend, potentialMessage);
+                    yield CompletableFuture.completedFuture(true);
+                }
+            };
+            logger.log(Level.INFO, "File sent successfully");
+            return acknowledged;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to send file", e);
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /*
+    Send the file over the session to the peer, opening one if there is none yet. The acknowledgement is
+    handled asynchronously. When the cached session turned out to be broken, the file is sent once more over
+    a new session. A file that is not acknowledged, because the session dropped after it was written or the
+    peer could not store it, is sent again up to SESSION_ATTEMPTS times before the future completes with false.
+     */
+    private CompletableFuture<Boolean> transferInSession(String IP, File fileToSend, String potentialMessage)
+            throws IOException {
+        return transferInSession(IP, fileToSend, potentialMessage, 1);
+    }
 
-        try (Socket clientSocket = new Socket(IP, port);
-             ObjectOutputStream outputStream = new ObjectOutputStream(clientSocket.getOutputStream());
+    private CompletableFuture<Boolean> transferInSession(String IP, File fileToSend, String potentialMessage,
+                                                         int attempt) throws IOException {
+        CompletableFuture<Boolean> sent;
+        try {
+            sent = sessionTo(IP).send(fileToSend, potentialMessage);
+        } catch (IOException e) {
+            closeSession(IP);
+            logger.log(Level.INFO, "Session to " + IP + " broke, retrying on a new one");
+            sent = sessionTo(IP).send(fileToSend, potentialMessage);
+        }
+        return sent.handle((ok, e) -> {
+            boolean acknowledged = e == null && Boolean.TRUE.equals(ok);
+            logAck(IP, fileToSend.getName(), acknowledged, e, attempt);
+            if (acknowledged || attempt >= SESSION_ATTEMPTS) {
+                return CompletableFuture.completedFuture(acknowledged);
+            }
+            return retryInSession(IP, fileToSend, potentialMessage, attempt + 1);
+        }).thenCompose(retried -> retried);
+    }
+
+    /*
+    Send the file again after a pause that grows with every attempt. It runs on the retry thread, the
+    acknowledgements complete on the thread reading them, which must not open or close sessions.
+     */
+    private CompletableFuture<Boolean> retryInSession(String IP, File fileToSend, String potentialMessage,
+                                                      int attempt) {
+        CompletableFuture<Boolean> retried = new CompletableFuture<>();
+        retrier.schedule(() -> {
+            if (!fileToSend.exists()) {
+                logger.log(Level.INFO, "Not sending " + fileToSend.getName() + " again, it was deleted");
+                retried.complete(false);
+                return;
+            }
+            try {
+                transferInSession(IP, fileToSend, potentialMessage, attempt)
+                        .whenComplete((ok, e) -> retried.complete(e == null && Boolean.TRUE.equals(ok)));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to send " + fileToSend.getName() + " to " + IP + " again", e);
+                retried.complete(false);
+            }
+        }, SESSION_RETRY_MILLIS * (attempt - 1), TimeUnit.MILLISECONDS);
+        return retried;
+    }
+
+    private void logAck(String IP, String filename, boolean acknowledged, Throwable e, int attempt) {
+        if (acknowledged) {
+            logger.log(Level.FINE, "File " + filename + " acknowledged by " + IP);
+        } else if (attempt < SESSION_ATTEMPTS) {
+            logger.log(Level.INFO, "File " + filename + " was not acknowledged by " + IP + ", sending it again", e);
+        } else {
+            logger.log(Level.WARNING, "File " + filename + " was not acknowledged by " + IP + " after " + attempt
+                    + " attempts", e);
+        }
+    }
+
+    // Session to the peer, a new one replaces a missing or broken one
+    public TransferSession sessionTo(String IP) throws IOException {
+        TransferSession session = sessions.get(IP);
+        if (session != null && !session.isBroken()) {
+            return session;
+        }
+        synchronized (sessions) {
+            session = sessions.get(IP);
+            if (session == null || session.isBroken()) {
+                if (session != null) {
+                    session.close();
+                }
+                session = new TransferSession(IP, port, compression);
+                sessions.put(IP, session);
+            }
+            return session;
+        }
+    }
+
+    private void closeSession(String IP) {
+        TransferSession session = sessions.remove(IP);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    // Close every open session, waits until all the files sent over them are acknowledged
+    public void closeSessions() {
+        for (String IP : sessions.keySet()) {
+            closeSession(IP);
+        }
+    }
+
+    private void closeIdleSessions() {
+        for (Map.Entry<String, TransferSession> entry : sessions.entrySet()) {
+            TransferSession session = entry.getValue();
+            if (session.pendingAcks() == 0
+                    && session.idleNanos() > TimeUnit.SECONDS.toNanos(SESSION_IDLE_SECONDS)
+                    && sessions.remove(entry.getKey(), session)) {
+                session.close();
+            }
+        }
+    }
+
+    private void transferStream(String IP, File fileToSend, String potentialMessage) throws IOException {
+        try (SocketChannel clientChannel = SocketChannel.open(new InetSocketAddress(IP, port));
+             ObjectOutputStream outputStream = new ObjectOutputStream(Channels.newOutputStream(clientChannel));
              FileInputStream fileInputStream = new FileInputStream(fileToSend)) {
 
-            logger.log(Level.INFO, "Sending file: " + filename);
+            logger.log(Level.INFO, "Sending file: " + fileToSend.getName());
 
             // Send the file name
-            outputStream.writeUTF(filename);
+            outputStream.writeUTF(fileToSend.getName());
 
             // Send the file length
             outputStream.writeLong(fileToSend.length());
@@ -57,79 +446,805 @@ public class FileTransfer {
                 outputStream.write(buffer, 0, bytesRead);
             }
 
-
-
             outputStream.writeUTF(potentialMessage);
             // Ensure all data is sent immediately
             outputStream.flush();
+        }
+    }
 
-            logger.log(Level.INFO, "File sent successfully");
+    private void transferZeroCopy(String IP, File fileToSend, String potentialMessage) throws IOException {
+        try (SocketChannel clientChannel = SocketChannel.open(new InetSocketAddress(IP, port));
+             FileChannel fileChannel = FileChannel.open(fileToSend.toPath(), StandardOpenOption.READ)) {
+
+            logger.log(Level.INFO, "Sending file: " + fileToSend.getName());
 
+            long length = fileChannel.size();
+            writeFile(clientChannel, zeroCopyHeader(fileToSend.getName(), potentialMessage, length),
+                    fileChannel, length);
+            compression.countSent(length, length);
+        }
+    }
+
+    /*
+    Send a header followed by the file. Small files are read into memory and written together with the
+    header in one gathering write, larger ones are copied by the kernel straight to the socket.
+     */
+    static void writeFile(SocketChannel channel, ByteBuffer header, FileChannel fileChannel, long length)
+            throws IOException {
+        if (length <= SMALL_FILE) {
+            ByteBuffer body = ByteBuffer.allocate((int) length);
+            while (body.hasRemaining() && fileChannel.read(body) >= 0) {
+                // keep reading
+            }
+            if (body.hasRemaining()) {
+                throw new IOException("File shrunk while it was being sent");
+            }
+            ByteBuffer[] buffers = { header, body.flip() };
+            while (body.hasRemaining()) {
+                channel.write(buffers);
+            }
+        } else {
+            writeFully(channel, header);
+            transferAll(fileChannel, length, channel);
+        }
+    }
+
+    // Send the file in chunks, a failed attempt is resumed from the offset the receiver verified
+    private void transferChunked(String IP, File fileToSend, String potentialMessage) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                sendChunks(IP, fileToSend, potentialMessage);
+                return;
+            } catch (IOException e) {
+                if (attempt == CHUNKED_ATTEMPTS) {
+                    throw e;
+                }
+                logger.log(Level.INFO, "Chunked transfer of " + fileToSend.getName() + " to " + IP
+                        + " failed (" + e.getMessage() + "), resuming");
+                try {
+                    Thread.sleep(attempt * 1000L);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void sendChunks(String IP, File fileToSend, String potentialMessage) throws IOException {
+        try (SocketChannel clientChannel = SocketChannel.open(new InetSocketAddress(IP, port));
+             FileChannel fileChannel = FileChannel.open(fileToSend.toPath(), StandardOpenOption.READ)) {
+
+            long length = fileChannel.size();
+            writeFully(clientChannel, chunkedHeader(fileToSend.getName(), potentialMessage, length,
+                    fileToSend.lastModified(), compression.offered()));
+
+            ByteBuffer reply = ByteBuffer.allocate(9);
+            readFully(clientChannel, reply);
+            long position = reply.getLong(0);
+            if (position < 0 || position > length) {
+                throw new IOException("Invalid resume offset " + position);
+            }
+            boolean compress = compression.worthCompressing(reply.get(8), fileToSend, length);
+            logger.log(Level.INFO, "Sending file: " + fileToSend.getName()
+                    + (position > 0 ? " from offset " + position : "") + (compress ? " compressed" : ""));
+
+            ByteBuffer chunkHeader = ByteBuffer.allocate(12);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+            ByteBuffer packed = compress ? ByteBuffer.allocateDirect(chunkSize) : null;
+            CRC32C crc = new CRC32C();
+            long raw = 0;
+            long wire = 0;
+            while (position < length) {
+                chunk.clear().limit((int) Math.min(chunkSize, length - position));
+                while (chunk.hasRemaining()) {
+                    if (fileChannel.read(chunk, position + chunk.position()) < 0) {
+                        throw new IOException("File shrunk while it was being sent");
+                    }
+                }
+                chunk.flip();
+                int rawSize = chunk.remaining();
+                crc.reset();
+                crc.update(chunk);
+                chunk.rewind();
+                position += rawSize;
+
+                // Send the chunk compressed only when that makes it smaller
+                ByteBuffer body = chunk;
+                if (compress) {
+                    packed.clear().limit(rawSize - 1);
+                    if (compression.deflate(chunk, packed)) {
+                        body = packed.flip();
+                    } else {
+                        chunk.rewind();
+                    }
+                }
+                raw += rawSize;
+                wire += body.remaining();
+
+                chunkHeader.clear().putInt(rawSize).putInt(body.remaining()).putInt((int) crc.getValue()).flip();
+                ByteBuffer[] buffers = { chunkHeader, body };
+                while (body.hasRemaining()) {
+                    clientChannel.write(buffers);
+                }
+            }
+            writeFully(clientChannel, chunkHeader.clear().putInt(0).putInt(0).putInt(0).flip());
+            compression.countSent(raw, wire);
+
+            ByteBuffer status = ByteBuffer.allocate(1);
+            readFully(clientChannel, status);
+            if (status.get(0) != TransferSession.ACK_OK) {
+                throw new IOException("Receiver rejected " + fileToSend.getName());
+            }
+        }
+    }
+
+    /*
+    Send only the ranges the receiver does not have yet. Returns false when the receiver has no copy or could
+    not rebuild the file, the caller then sends the whole file.
+     */
+    private boolean transferDelta(String IP, File fileToSend, String potentialMessage) {
+        try (SocketChannel clientChannel = SocketChannel.open(new InetSocketAddress(IP, port));
+             FileChannel fileChannel = FileChannel.open(fileToSend.toPath(), StandardOpenOption.READ)) {
+
+            writeFully(clientChannel, deltaHeader(fileToSend.getName(), potentialMessage, fileChannel.size()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(clientChannel)));
+            DeltaSync.Signature signature = DeltaSync.Signature.read(in);
+            if (signature == null) {
+                return false;
+            }
+
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(clientChannel), 64 * 1024));
+            long literalBytes = DeltaSync.writeDelta(fileChannel, signature, out);
+            out.flush();
+            compression.countSent(fileChannel.size(), literalBytes);
+
+            if (in.readByte() != TransferSession.ACK_OK) {
+                logger.log(Level.INFO, "Delta of " + fileToSend.getName() + " was rejected by " + IP);
+                return false;
+            }
+            logger.log(Level.INFO, "Synchronized " + fileToSend.getName() + " with " + IP + ": sent "
+                    + literalBytes + " of " + fileChannel.size() + " bytes");
+            return true;
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Unable to send file", e);
+            logger.log(Level.INFO, "Delta transfer of " + fileToSend.getName() + " to " + IP + " failed", e);
+            return false;
         }
+    }
 
+    static ByteBuffer deltaHeader(String filename, String potentialMessage, long length) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        byte[] message = potentialMessage.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 2 + name.length + 2 + message.length + 8);
+        header.putInt(MAGIC).put(DELTA);
+        header.putShort((short) name.length).put(name);
+        header.putShort((short) message.length).put(message);
+        header.putLong(length);
+        return header.flip();
+    }
+
+    static ByteBuffer chunkedHeader(String filename, String potentialMessage, long length, long version,
+                                    byte codecs) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        byte[] message = potentialMessage.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 2 + name.length + 2 + message.length + 8 + 8 + 1);
+        header.putInt(MAGIC).put(CHUNKED);
+        header.putShort((short) name.length).put(name);
+        header.putShort((short) message.length).put(message);
+        header.putLong(length).putLong(version).put(codecs);
+        return header.flip();
+    }
+
+    /*
+    Send the file as independently compressed blocks: raw length (4) | wire length (4) | bytes.
+    A block that does not get smaller is sent as is, with equal lengths. Returns the bytes put on the wire.
+     */
+    static long writeCompressed(SocketChannel channel, FileChannel fileChannel, long length,
+                                Compression compression) throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate((int) Math.min(Compression.BLOCK_SIZE, Math.max(length, 1)));
+        ByteBuffer packed = ByteBuffer.allocate(raw.capacity());
+        ByteBuffer blockHeader = ByteBuffer.allocate(8);
+        long position = 0;
+        long wire = 0;
+        while (position < length) {
+            raw.clear().limit((int) Math.min(raw.capacity(), length - position));
+            while (raw.hasRemaining()) {
+                if (fileChannel.read(raw, position + raw.position()) < 0) {
+                    throw new IOException("File shrunk while it was being sent");
+                }
+            }
+            raw.flip();
+            int rawLength = raw.remaining();
+            position += rawLength;
+
+            ByteBuffer body = raw;
+            packed.clear().limit(rawLength - 1);
+            if (compression.deflate(raw, packed)) {
+                body = packed.flip();
+            } else {
+                raw.rewind();
+            }
+            wire += body.remaining();
+
+            blockHeader.clear().putInt(rawLength).putInt(body.remaining()).flip();
+            ByteBuffer[] buffers = { blockHeader, body };
+            while (body.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+        return wire;
+    }
+
+    // The kernel copies the file straight to the socket
+    static void transferAll(FileChannel fileChannel, long length, SocketChannel channel) throws IOException {
+        long position = 0;
+        while (position < length) {
+            long transferred = fileChannel.transferTo(position, length - position, channel);
+            if (transferred <= 0 && position >= fileChannel.size()) {
+                throw new IOException("File shrunk while it was being sent");
+            }
+            position += transferred;
+        }
+    }
+
+    static ByteBuffer zeroCopyHeader(String filename, String potentialMessage, long length) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        byte[] message = potentialMessage.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 2 + name.length + 2 + message.length + 8);
+        header.putInt(MAGIC).put(SINGLE_FILE);
+        header.putShort((short) name.length).put(name);
+        header.putShort((short) message.length).put(message);
+        header.putLong(length);
+        return header.flip();
     }
 
     public void receiveFiles(String directory) {
         listening = true;
 
+        // A slot is taken before accepting, so at most maxInFlight + maxQueued connections are held
+        Semaphore slots = new Semaphore(maxInFlight + maxQueued);
+        ExecutorService workers = Executors.newFixedThreadPool(maxInFlight, r -> {
+            Thread thread = new Thread(r, "ft-receiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         try {
-            sSocket = new ServerSocket(port);
+            sSocket = ServerSocketChannel.open();
+            sSocket.bind(new InetSocketAddress(port), 128);
             while (listening) {
-                Socket cSocket = sSocket.accept();
-                System.out.println("accepted socket");
-                handleFileTransfer(cSocket, directory);
-
+                slots.acquire();
+                SocketChannel cSocket;
+                try {
+                    cSocket = sSocket.accept();
+                } catch (IOException e) {
+                    slots.release();
+                    throw e;
+                }
+                logger.log(Level.FINE, "accepted socket");
+                queuedTransfers.incrementAndGet();
+                workers.execute(() -> {
+                    queuedTransfers.decrementAndGet();
+                    activeTransfers.incrementAndGet();
+                    try {
+                        handleFileTransfer(cSocket, directory);
+                    } finally {
+                        activeTransfers.decrementAndGet();
+                        slots.release();
+                    }
+                });
             }
         } catch (IOException e) {
-            logger.log(Level.WARNING, "ERROR receiving file", e);
+            if (listening) {
+                logger.log(Level.WARNING, "ERROR receiving file", e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdown();
         }
     }
 
-    private void handleFileTransfer(Socket cSocket, String directory) {
-        try (ObjectInputStream in = new ObjectInputStream(cSocket.getInputStream())) {
+    private void handleFileTransfer(SocketChannel cSocket, String directory) {
+        try {
             // Create directory if it does not exist
             File dir = new File(directory);
             if (!dir.exists()) {
                 dir.mkdirs();
             }
 
+            // The first four bytes tell the object stream apart from the binary formats
+            ChannelReader reader = new ChannelReader(cSocket);
+            if (reader.peekInt() == MAGIC) {
+                reader.readInt();
+                byte kind = reader.readByte();
+                switch (kind) {
+                    case SINGLE_FILE -> receiveZeroCopy(reader, dir);
+                    case CHUNKED -> receiveChunked(cSocket, reader, dir);
+                    case DELTA -> {
+                        if (!receiveDelta(cSocket, reader, dir)) {
+                            return;
+                        }
+                    }
+                    case SESSION -> {
+                        receiveSession(cSocket, reader, dir);
+                        return;
+                    }
+                    default -> throw new IOException("Unsupported transfer kind " + kind);
+                }
+            } else {
+                receiveStream(reader.remainingAsStream(), dir);
+            }
+            completedTransfers.incrementAndGet();
+
+        } catch (IOException e) {
+            failedTransfers.incrementAndGet();
+            logger.log(Level.WARNING, "ERROR receiving file", e);
+        } catch (InterruptedException e) {
+            failedTransfers.incrementAndGet();
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                cSocket.close();
+               // System.out.println("closed csocket");
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "ERROR closing socket", e);
+            }
+        }
+    }
+
+    private void receiveStream(InputStream input, File dir) throws IOException, InterruptedException {
+        try (ObjectInputStream in = new ObjectInputStream(input)) {
             // Read file name
             String fileName = in.readUTF();
-            File file = new File(directory, fileName);
+            File file = partialFile(dir, fileName);
 
             // Read file length
             long length = in.readLong();
 
             // Read file data
+            long reserved = bufferedBytes.acquire(length);
             try (FileOutputStream fos = new FileOutputStream(file)) {
-                //System.out.println("Starting to read file");
                 byte[] buf = new byte[8192];
                 int bytes;
                 while (length > 0 && (bytes = in.read(buf, 0, (int) Math.min(buf.length, length))) != -1) {
                     fos.write(buf, 0, bytes);
                     length -= bytes;
                 }
-                logger.log(Level.INFO, "File received successfully: " + fileName);
+                if (length > 0) {
+                    throw new EOFException("Connection closed " + length + " bytes before the end of " + fileName);
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(file.toPath());
+                throw e;
+            } finally {
+                bufferedBytes.release(reserved);
             }
+            complete(file, new File(dir, fileName));
+            logger.log(Level.INFO, "File received successfully: " + fileName);
+
+            logOwner(in.readUTF(), dir, fileName);
+        }
+    }
+
+    private void receiveZeroCopy(ChannelReader reader, File dir) throws IOException, InterruptedException {
+        String fileName = reader.readString();
+        String message = reader.readString();
+        long length = reader.readLong();
+
+        receiveBody(reader, dir, fileName, length);
+        logger.log(Level.INFO, "File received successfully: " + fileName);
+
+        logOwner(message, dir, fileName);
+    }
+
+    /*
+    Receive a chunked file into the partial directory. A chunk only counts once its CRC32C matches, the
+    verified offset is persisted every few chunks and when the connection breaks, so the next attempt of the
+    sender resumes there. The complete file is moved to its final name atomically.
+     */
+    private void receiveChunked(SocketChannel cSocket, ChannelReader reader, File dir)
+            throws IOException, InterruptedException {
+        String fileName = reader.readString();
+        String message = reader.readString();
+        long length = reader.readLong();
+        long version = reader.readLong();
+        byte codec = compression.choose(reader.readByte());
 
-            String msg = in.readUTF();
-            if(!msg.isEmpty())
-            {
-                String[] parts = msg.split(":");
-                Node.updateLogFile(parts[0], parts[1], fileName);
+        File partialDir = new File(dir, PARTIAL_DIRECTORY);
+        partialDir.mkdirs();
+        File partial = new File(partialDir, fileName + ".part");
+        File progress = new File(partialDir, fileName + ".progress");
+
+        long verified = resumeOffset(partial, progress, length, version);
+        if (verified > 0) {
+            logger.log(Level.INFO, "Resuming " + fileName + " at offset " + verified);
+        }
+        writeFully(cSocket, ByteBuffer.allocate(9).putLong(verified).put(codec).flip());
+
+        long reserved = bufferedBytes.acquire(length - verified);
+        try (FileChannel fileChannel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            // Whatever was written after the verified offset is not trusted
+            fileChannel.truncate(verified);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(0);
+            ByteBuffer packed = ByteBuffer.allocateDirect(0);
+            CRC32C crc = new CRC32C();
+            int unsaved = 0;
+            long wire = 0;
+            long received = verified;
+            try {
+                while (true) {
+                    int size = reader.readInt();
+                    int wireSize = reader.readInt();
+                    int checksum = reader.readInt();
+                    if (size == 0) {
+                        break;
+                    }
+                    if (size < 0 || size > MAX_CHUNK || verified + size > length || wireSize <= 0 || wireSize > size
+                            || (wireSize < size && codec == Compression.RAW)) {
+                        throw new IOException("Invalid chunk of " + size + "/" + wireSize + " bytes for " + fileName);
+                    }
+                    if (chunk.capacity() < size) {
+                        chunk = ByteBuffer.allocateDirect(size);
+                    }
+                    chunk.clear().limit(size);
+                    if (wireSize == size) {
+                        reader.read(chunk);
+                    } else {
+                        if (packed.capacity() < wireSize) {
+                            packed = ByteBuffer.allocateDirect(size);
+                        }
+                        packed.clear().limit(wireSize);
+                        reader.read(packed);
+                        compression.inflate(packed.flip(), chunk, size);
+                    }
+                    wire += wireSize;
+                    chunk.flip();
+                    crc.reset();
+                    crc.update(chunk);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("Checksum mismatch in " + fileName + " at offset " + verified);
+                    }
+                    chunk.rewind();
+                    long position = verified;
+                    while (chunk.hasRemaining()) {
+                        position += fileChannel.write(chunk, position);
+                    }
+                    verified = position;
+                    if (++unsaved == PROGRESS_EVERY) {
+                        saveProgress(fileChannel, progress, length, version, verified);
+                        unsaved = 0;
+                    }
+                }
+            } catch (IOException e) {
+                // Keep what was verified for the next attempt
+                if (unsaved > 0) {
+                    try {
+                        saveProgress(fileChannel, progress, length, version, verified);
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+                throw e;
             }
+            if (verified != length) {
+                throw new IOException("Transfer of " + fileName + " ended at " + verified + " of " + length + " bytes");
+            }
+            fileChannel.force(true);
+            compression.countReceived(length - received, wire);
+        } finally {
+            bufferedBytes.release(reserved);
+        }
+
+        complete(partial, new File(dir, fileName));
+        Files.deleteIfExists(progress.toPath());
+        writeFully(cSocket, ByteBuffer.allocate(1).put(TransferSession.ACK_OK).flip());
+        logger.log(Level.INFO, "File received successfully: " + fileName);
+
+        logOwner(message, dir, fileName);
+    }
+
+    /*
+    Sign the current copy of the file and rebuild the new version from it and the delta of the sender.
+    Returns false when there is no copy to sign and the sender will send the whole file instead.
+     */
+    private boolean receiveDelta(SocketChannel cSocket, ChannelReader reader, File dir)
+            throws IOException, InterruptedException {
+        String fileName = reader.readString();
+        String message = reader.readString();
+        long length = reader.readLong();
 
+        File current = new File(dir, fileName);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(cSocket), 64 * 1024));
+        if (!current.isFile()) {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.flush();
+            return false;
+        }
+
+        File partial = partialFile(dir, fileName);
+        boolean verified;
+        long reserved = bufferedBytes.acquire(length);
+        try (FileChannel base = FileChannel.open(current.toPath(), StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE)) {
+            DeltaSync.Signature signature = DeltaSync.sign(base, DeltaSync.blockSize(base.size()));
+            signature.write(out);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(reader.remainingAsStream(), 64 * 1024));
+            verified = DeltaSync.applyDelta(base, signature, in, target);
+            if (verified) {
+                target.force(true);
+            }
         } catch (IOException e) {
-            logger.log(Level.WARNING, "ERROR receiving file", e);
+            Files.deleteIfExists(partial.toPath());
+            throw e;
         } finally {
-            try {
-                cSocket.close();
-               // System.out.println("closed csocket");
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "ERROR closing socket", e);
+            bufferedBytes.release(reserved);
+        }
+
+        if (!verified) {
+            Files.deleteIfExists(partial.toPath());
+            writeFully(cSocket, ByteBuffer.allocate(1).put(DELTA_FAILED).flip());
+            throw new IOException("Delta of " + fileName + " does not match the file of the sender");
+        }
+        complete(partial, current);
+        writeFully(cSocket, ByteBuffer.allocate(1).put(TransferSession.ACK_OK).flip());
+        logger.log(Level.INFO, "File synchronized successfully: " + fileName);
+
+        logOwner(message, dir, fileName, true);
+        return true;
+    }
+
+    // Offset verified by an earlier attempt for the same version of the file, 0 to start over
+    private static long resumeOffset(File partial, File progress, long length, long version) {
+        if (!partial.exists() || !progress.exists()) {
+            return 0;
+        }
+        try {
+            List<String> lines = Files.readAllLines(progress.toPath(), StandardCharsets.UTF_8);
+            if (lines.size() == 3 && Long.parseLong(lines.get(0)) == length
+                    && Long.parseLong(lines.get(1)) == version) {
+                long offset = Long.parseLong(lines.get(2));
+                if (offset >= 0 && offset <= Math.min(length, partial.length())) {
+                    return offset;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.FINE, "Ignoring unreadable progress " + progress, e);
+        }
+        return 0;
+    }
+
+    // The data is forced to disk before the offset that covers it is recorded
+    private static void saveProgress(FileChannel fileChannel, File progress, long length, long version,
+                                     long verified) throws IOException {
+        fileChannel.force(false);
+        Path tmp = progress.toPath().resolveSibling(progress.getName() + ".tmp");
+        Files.writeString(tmp, length + "\n" + version + "\n" + verified + "\n", StandardCharsets.UTF_8);
+        Files.move(tmp, progress.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // A fresh temporary file in the partial directory, so concurrent transfers of one name do not collide
+    private static File partialFile(File dir, String fileName) throws IOException {
+        File partialDir = new File(dir, PARTIAL_DIRECTORY);
+        partialDir.mkdirs();
+        return Files.createTempFile(partialDir.toPath(), fileName, ".tmp").toFile();
+    }
+
+    private static void complete(File partial, File target) throws IOException {
+        Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+    Receive files until the sender ends the session, every file is acknowledged once it is written.
+    While the next frame is already buffered the acknowledgements are collected and written together.
+     */
+    private void receiveSession(SocketChannel cSocket, ChannelReader reader, File dir)
+            throws IOException, InterruptedException {
+        cSocket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        byte codec = compression.choose(reader.readByte());
+        writeFully(cSocket, ByteBuffer.allocate(1).put(codec).flip());
+
+        ByteBuffer acks = ByteBuffer.allocate(5 * 256);
+        while (true) {
+            int sequence = reader.readInt();
+            if (sequence == TransferSession.END_OF_SESSION) {
+                writeFully(cSocket, acks.flip());
+                return;
+            }
+            String fileName = reader.readString();
+            String message = reader.readString();
+            long length = reader.readLong();
+            byte encoding = reader.readByte();
+
+            if (encoding == Compression.RAW) {
+                receiveBody(reader, dir, fileName, length);
+            } else if (encoding == codec) {
+                receiveCompressedBody(reader, dir, fileName, length);
+            } else {
+                throw new IOException("File " + fileName + " uses codec " + encoding + " instead of " + codec);
             }
+            logger.log(Level.INFO, "File received successfully: " + fileName);
+            logOwner(message, dir, fileName);
+            completedTransfers.incrementAndGet();
+
+            acks.putInt(sequence).put(TransferSession.ACK_OK);
+            if (!reader.hasBuffered() || !acks.hasRemaining()) {
+                writeFully(cSocket, acks.flip());
+                acks.clear();
+            }
+        }
+    }
+
+    // Buffered bytes are written first, the rest is copied by the kernel from the socket into the file
+    private void receiveBody(ChannelReader reader, File dir, String fileName, long length)
+            throws IOException, InterruptedException {
+        File partial = partialFile(dir, fileName);
+        long reserved = bufferedBytes.acquire(length);
+        try (FileChannel fileChannel = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE)) {
+            reader.transferTo(fileChannel, 0, length);
+            compression.countReceived(length, length);
+        } catch (IOException e) {
+            Files.deleteIfExists(partial.toPath());
+            throw e;
+        } finally {
+            bufferedBytes.release(reserved);
+        }
+        complete(partial, new File(dir, fileName));
+    }
+
+    // Receive a file sent with writeCompressed
+    private void receiveCompressedBody(ChannelReader reader, File dir, String fileName, long length)
+            throws IOException, InterruptedException {
+        File partial = partialFile(dir, fileName);
+        long reserved = bufferedBytes.acquire(length);
+        try (FileChannel fileChannel = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer packed = ByteBuffer.allocate(Compression.BLOCK_SIZE);
+            ByteBuffer raw = ByteBuffer.allocate(Compression.BLOCK_SIZE);
+            long position = 0;
+            long wire = 0;
+            while (position < length) {
+                int rawLength = reader.readInt();
+                int wireLength = reader.readInt();
+                if (rawLength <= 0 || rawLength > Compression.BLOCK_SIZE || wireLength <= 0
+                        || wireLength > rawLength || position + rawLength > length) {
+                    throw new IOException("Invalid compressed block " + rawLength + "/" + wireLength);
+                }
+                packed.clear().limit(wireLength);
+                reader.read(packed);
+                packed.flip();
+                ByteBuffer block = packed;
+                if (wireLength < rawLength) {
+                    raw.clear().limit(rawLength);
+                    compression.inflate(packed, raw, rawLength);
+                    block = raw.flip();
+                }
+                while (block.hasRemaining()) {
+                    position += fileChannel.write(block, position);
+                }
+                wire += wireLength;
+            }
+            compression.countReceived(length, wire);
+        } catch (IOException e) {
+            Files.deleteIfExists(partial.toPath());
+            throw e;
+        } finally {
+            bufferedBytes.release(reserved);
+        }
+        complete(partial, new File(dir, fileName));
+    }
+
+    /*
+    Replicas sent on shutdown carry localOwnerIP:replicatedOwnerIP, optionally followed by :replicaHolders,
+    record the new owner. Replicas sent down a chain are logged by the server, they are only passed on to the
+    next holder.
+     */
+    private void logOwner(String msg, File dir, String fileName) {
+        logOwner(msg, dir, fileName, false);
+    }
+
+    // A file received as a delta is passed on as a delta too, the next holder has the older copy as well
+    private void logOwner(String msg, File dir, String fileName, boolean delta) {
+        if (msg.startsWith(CHAIN)) {
+            forward(msg.substring(CHAIN.length()), dir, fileName, delta);
+        } else if(!msg.isEmpty() && catalog != null)
+        {
+            String[] parts = msg.split(":");
+            if (parts.length > 2) {
+                catalog.put(fileName, parts[0], parts[1], List.of(parts[2].split(",")));
+            } else {
+                catalog.put(fileName, parts[0], parts[1]);
+            }
+        }
+    }
+
+    // Send a received file on to the next holder of its chain, off the receiving worker
+    private void forward(String remaining, File dir, String fileName, boolean delta) {
+        if (remaining.isEmpty()) {
+            return;
+        }
+        List<String> chain = List.of(remaining.split(","));
+        File received = new File(dir, fileName);
+        forwarder.execute(() -> send(chain.get(0), received, chainMessage(chain.subList(1, chain.size())), delta));
+        logger.log(Level.FINE, "Forwarding " + fileName + " to " + chain.get(0));
+    }
+
+    // Accepted connections waiting for a worker
+    public int getQueuedTransfers() {
+        return queuedTransfers.get();
+    }
+
+    // Connections being received right now
+    public int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    public long getCompletedTransfers() {
+        return completedTransfers.get();
+    }
+
+    public long getFailedTransfers() {
+        return failedTransfers.get();
+    }
+
+    // Raw and on-the-wire bytes of the files sent and received
+    public Compression getCompression() {
+        return compression;
+    }
+
+    // Bytes reserved by the files being received right now
+    public long getBufferedBytes() {
+        return bufferedBytes.used();
+    }
+
+    /*
+    Limits the bytes received at the same time. A transfer reserves its length before it reads the body,
+    a file larger than the whole budget reserves the whole budget so it can still go through on its own.
+     */
+    static final class ByteBudget {
+        private final long limit;
+        private long used;
+
+        ByteBudget(long limit) {
+            this.limit = limit;
+        }
+
+        synchronized long acquire(long bytes) throws InterruptedException {
+            long reserve = Math.min(Math.max(bytes, 0), limit);
+            while (used + reserve > limit) {
+                wait();
+            }
+            used += reserve;
+            return reserve;
+        }
+
+        synchronized void release(long reserved) {
+            used -= reserved;
+            notifyAll();
+        }
+
+        synchronized long used() {
+            return used;
+        }
+    }
+
+    static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
     }
 
@@ -139,7 +1254,7 @@ public class FileTransfer {
     {
         listening = false;
 
-        if (sSocket != null && !sSocket.isClosed()) {
+        if (sSocket != null && sSocket.isOpen()) {
             try {
                 sSocket.close();
                 System.out.println("listening stopped.");
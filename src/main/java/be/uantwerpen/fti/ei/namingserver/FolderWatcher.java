@@ -0,0 +1,237 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a folder and reports which files were created, modified or deleted.
+ * Events are coalesced per file: a file is only reported when no event arrived for it during the quiet window
+ * and its size and modification time did not change meanwhile, so a file that is still being written is
+ * reported once, when it is complete. What a burst amounts to is decided by comparing the file with the state
+ * that was reported last: a create followed by a delete is nothing, a create followed by writes is a create.
+ * When the watch service overflows, the folder is rescanned and only files that differ from the last
+ * reported state are reported.
+ */
+public class FolderWatcher implements Runnable, Closeable {
+
+    private static final Logger logger = Logger.getLogger(FolderWatcher.class.getName());
+
+    // Receives the changes that settled together
+    public interface Listener {
+        void changed(Changes changes);
+    }
+
+    public record Changes(List<String> created, List<String> modified, List<String> deleted) {
+        public boolean isEmpty() {
+            return created.isEmpty() && modified.isEmpty() && deleted.isEmpty();
+        }
+    }
+
+    private record State(long size, long modified) {}
+
+    // A file with events that did not settle yet
+    private static final class Pending {
+        long lastEvent;
+        State seen;
+    }
+
+    private final Path directory;
+    private final long quietNanos;
+    private final Listener listener;
+    private final WatchService watchService;
+
+    // Last reported state of every file
+    private final Map<String, State> known = new HashMap<>();
+    private final Map<String, Pending> pending = new HashMap<>();
+
+    public FolderWatcher(Path directory, long quietMillis, Listener listener) throws IOException {
+        this.directory = directory;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.listener = listener;
+        this.watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        // The files that are already there are reported by the node when it joins
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                State state = stateOf(file);
+                if (state != null) {
+                    known.put(file.getFileName().toString(), state);
+                }
+            }
+        }
+    }
+
+    // Watch until the watcher is closed or the folder disappears
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    key = watchService.poll(nextDeadline() - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                while (key != null) {
+                    if (!collect(key)) {
+                        logger.log(Level.WARNING, "Stopped watching " + directory + ", it is no longer accessible");
+                        return;
+                    }
+                    key = watchService.poll();
+                }
+                settle(System.nanoTime());
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Record the events of a key, returns false when the key can no longer be used
+    private boolean collect(WatchKey key) {
+        long now = System.nanoTime();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                logger.log(Level.INFO, "Missed events in " + directory + ", rescanning");
+                rescan(now);
+            } else {
+                touch(event.context().toString(), now);
+            }
+        }
+        return key.reset();
+    }
+
+    // Mark a file as changed, restarting its quiet window
+    private void touch(String filename, long now) {
+        Pending entry = pending.get(filename);
+        if (entry == null) {
+            entry = new Pending();
+            entry.seen = stateOf(directory.resolve(filename));
+            pending.put(filename, entry);
+        }
+        entry.lastEvent = now;
+    }
+
+    // Mark every file that differs from the reported state, including the ones that are gone
+    private void rescan(long now) {
+        Set<String> present = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String filename = file.getFileName().toString();
+                State state = stateOf(file);
+                if (state != null) {
+                    present.add(filename);
+                    if (!state.equals(known.get(filename))) {
+                        touch(filename, now);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to rescan " + directory, e);
+            return;
+        }
+        for (String filename : known.keySet()) {
+            if (!present.contains(filename)) {
+                touch(filename, now);
+            }
+        }
+    }
+
+    // Report the files whose quiet window has passed
+    private void settle(long now) {
+        List<String> created = new ArrayList<>();
+        List<String> modified = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+
+        Iterator<Map.Entry<String, Pending>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Pending> entry = iterator.next();
+            Pending file = entry.getValue();
+            if (now - file.lastEvent < quietNanos) {
+                continue;
+            }
+            String filename = entry.getKey();
+            State current = stateOf(directory.resolve(filename));
+            // Still being written without events, give it another window
+            if (current != null && !current.equals(file.seen)) {
+                file.seen = current;
+                file.lastEvent = now;
+                continue;
+            }
+            iterator.remove();
+
+            State previous = known.get(filename);
+            if (current == null) {
+                if (previous != null) {
+                    known.remove(filename);
+                    deleted.add(filename);
+                }
+            } else if (previous == null) {
+                known.put(filename, current);
+                created.add(filename);
+            } else if (!previous.equals(current)) {
+                known.put(filename, current);
+                modified.add(filename);
+            }
+        }
+
+        Changes changes = new Changes(created, modified, deleted);
+        if (!changes.isEmpty()) {
+            try {
+                listener.changed(changes);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Unable to handle changes in " + directory, e);
+            }
+        }
+    }
+
+    private long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (Pending file : pending.values()) {
+            deadline = Math.min(deadline, file.lastEvent + quietNanos);
+        }
+        return deadline;
+    }
+
+    // Size and modification time of a regular file, null when it does not exist
+    private static State stateOf(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            return new State(attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,206 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hash function that places node IPs and filenames on the ring.
+ * Every node and the naming server have to use the same one, it is picked with the ns.hash system property:
+
+ *   murmur3 (default)  low 64 bits of MurmurHash3 x64 128 of the UTF-8 bytes, over the whole long range
+ *   legacy             the original String.hashCode scaled onto 0 .. 32767, for rings built with it
+
+ * The range of a strategy is its number of positions, 0 stands for the full 2^64 of a long.
+ */
+public interface HashStrategy {
+
+    long hash(String key);
+
+    // Number of positions hashes fall in, 0 for all 2^64 longs
+    long range();
+
+    String name();
+
+    // Position of virtual token t of a node, only used for t > 0
+    default long token(String ip, int t) {
+        return hash(ip + "#" + t);
+    }
+
+    // Distance going forward on the ring from one position to another, as an unsigned long
+    default long distance(long from, long to) {
+        return range() == 0 ? to - from : Math.floorMod(to - from, range());
+    }
+
+    // Share of the ring a distance covers
+    default double fraction(long distance) {
+        if (range() == 0) {
+            // Unsigned long to double
+            double value = (double) (distance >>> 1) * 2 + (distance & 1);
+            return value / 0x1p64;
+        }
+        return distance / (double) range();
+    }
+
+    HashStrategy LEGACY = new HashStrategy() {
+        @Override
+        public long hash(String key) {
+            double max = Integer.MAX_VALUE;
+            double min = Integer.MIN_VALUE;
+
+            double hashValue = (key.hashCode() + max) * (32768/(max + Math.abs(min)));
+            return (int) hashValue;
+        }
+
+        @Override
+        public long range() {
+            return 32768;
+        }
+
+        @Override
+        public String name() {
+            return "legacy";
+        }
+
+        // Keys that only differ in their last character land next to each other, so the tokens are mixed
+        @Override
+        public long token(String ip, int t) {
+            int h = ip.hashCode() ^ (t * 0x9E3779B9);
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            h ^= h >>> 16;
+            return ((long) h - Integer.MIN_VALUE) * 32768 >>> 32;
+        }
+    };
+
+    HashStrategy MURMUR3 = new HashStrategy() {
+        @Override
+        public long hash(String key) {
+            return Murmur3.hash64(key.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public long range() {
+            return 0;
+        }
+
+        @Override
+        public String name() {
+            return "murmur3";
+        }
+    };
+
+    static HashStrategy named(String name) {
+        return switch (name) {
+            case "murmur3" -> MURMUR3;
+            case "legacy" -> LEGACY;
+            default -> throw new IllegalArgumentException("Unknown hash strategy: " + name);
+        };
+    }
+
+    // The strategy picked with ns.hash
+    static HashStrategy configured() {
+        return named(System.getProperty("ns.hash", "murmur3"));
+    }
+
+    /**
+     * MurmurHash3 x64 128 with seed 0, only the first 64 bits of the result are returned.
+     */
+    final class Murmur3 {
+
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+        private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+                ByteOrder.LITTLE_ENDIAN);
+
+        private Murmur3() {
+        }
+
+        // The tail switch falls through on purpose, like the reference implementation
+        @SuppressWarnings("fallthrough")
+        static long hash64(byte[] data) {
+            int length = data.length;
+            long h1 = 0;
+            long h2 = 0;
+
+            int blocks = length / 16;
+            for (int i = 0; i < blocks; i++) {
+                long k1 = getLong(data, i * 16);
+                long k2 = getLong(data, i * 16 + 8);
+
+                h1 ^= mixK1(k1);
+                h1 = Long.rotateLeft(h1, 27);
+                h1 += h2;
+                h1 = h1 * 5 + 0x52dce729;
+
+                h2 ^= mixK2(k2);
+                h2 = Long.rotateLeft(h2, 31);
+                h2 += h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+
+            // Tail of up to 15 bytes
+            int tail = blocks * 16;
+            long k1 = 0;
+            long k2 = 0;
+            switch (length & 15) {
+                case 15: k2 ^= (long) (data[tail + 14] & 0xFF) << 48;
+                case 14: k2 ^= (long) (data[tail + 13] & 0xFF) << 40;
+                case 13: k2 ^= (long) (data[tail + 12] & 0xFF) << 32;
+                case 12: k2 ^= (long) (data[tail + 11] & 0xFF) << 24;
+                case 11: k2 ^= (long) (data[tail + 10] & 0xFF) << 16;
+                case 10: k2 ^= (long) (data[tail + 9] & 0xFF) << 8;
+                case 9: k2 ^= data[tail + 8] & 0xFF;
+                    h2 ^= mixK2(k2);
+                case 8: k1 ^= (long) (data[tail + 7] & 0xFF) << 56;
+                case 7: k1 ^= (long) (data[tail + 6] & 0xFF) << 48;
+                case 6: k1 ^= (long) (data[tail + 5] & 0xFF) << 40;
+                case 5: k1 ^= (long) (data[tail + 4] & 0xFF) << 32;
+                case 4: k1 ^= (long) (data[tail + 3] & 0xFF) << 24;
+                case 3: k1 ^= (long) (data[tail + 2] & 0xFF) << 16;
+                case 2: k1 ^= (long) (data[tail + 1] & 0xFF) << 8;
+                case 1: k1 ^= data[tail] & 0xFF;
+                    h1 ^= mixK1(k1);
+                default:
+                    break;
+            }
+
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            return h1;
+        }
+
+        private static long getLong(byte[] data, int offset) {
+            return (long) LONGS.get(data, offset);
+        }
+
+        private static long mixK1(long k1) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            return k1 * C2;
+        }
+
+        private static long mixK2(long k2) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            return k2 * C1;
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
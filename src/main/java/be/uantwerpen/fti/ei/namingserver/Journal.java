@@ -0,0 +1,319 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of text records with group commit.
+ * Records are queued by the callers and written by a single writer thread, which appends everything that
+ * is waiting and then does one fsync for the whole batch. A compacted snapshot can replace the journal,
+ * the snapshot holds records in the same format so replay is the same for both files.
+
+ * Records must be idempotent and state setting (f.e. "ADD id ip"), replay applies the snapshot first and
+ * then the journal, in the order the records were appended. Every record is one line ending in a line break,
+ * a last line without one was torn by a crash and is cut off when the journal is opened.
+ */
+public class Journal implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(Journal.class.getName());
+
+    private final File logFile;
+    private final File snapshotFile;
+
+    // Number of appended records after which the owner is asked to compact
+    private final int compactThreshold;
+
+    // Queued by close to stop the writer once everything before it is written
+    private static final Entry STOP = new Entry(null, null, null);
+
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final FileChannel channel;
+
+    // Records in the journal since the last snapshot, only written by the writer thread
+    private volatile int recordsSinceSnapshot;
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+    private final Metrics.Counter records;
+    private final Metrics.Histogram syncTime;
+    private volatile boolean closed;
+
+    // A queued record or a compaction request, compaction runs on the writer thread in journal order
+    private record Entry(String record, Supplier<? extends Collection<String>> snapshot,
+                         CompletableFuture<Void> done) {}
+
+    public Journal(File logFile, File snapshotFile, int compactThreshold) throws IOException {
+        this.logFile = logFile;
+        this.snapshotFile = snapshotFile;
+        this.compactThreshold = compactThreshold;
+
+        File directory = logFile.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.exists()) {
+            directory.mkdirs();
+        }
+        channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            truncateTornRecord();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        Metrics metrics = Metrics.global();
+        records = metrics.counter("journal_records_total", "Records written to the journal",
+                "journal", logFile.getName());
+        syncTime = metrics.histogram("journal_sync_seconds", "Time to sync a batch of records to disk",
+                "journal", logFile.getName());
+
+        writer = new Thread(this::writeLoop, "journal-" + logFile.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Feed every record of the snapshot and then the journal to the consumer
+    public void replay(Consumer<String> consumer) {
+        int fromSnapshot = replayFile(snapshotFile, consumer);
+        recordsSinceSnapshot = replayFile(logFile, consumer);
+        logger.log(Level.INFO, "Replayed " + fromSnapshot + " snapshot records and " + recordsSinceSnapshot
+                + " journal records from " + logFile.getName());
+    }
+
+    // Cut the log after its last complete record, so the next record does not continue a torn one
+    private void truncateTornRecord() throws IOException {
+        long size = channel.size();
+        long complete;
+        try (FileChannel in = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            complete = afterLastLineBreak(in, size);
+        }
+        if (complete < size) {
+            logger.log(Level.WARNING, "Dropping " + (size - complete) + " bytes of a torn record at the end of "
+                    + logFile.getName());
+            channel.truncate(complete);
+            channel.force(true);
+        }
+    }
+
+    // Position after the last line break in the first size bytes, 0 when there is none
+    private static long afterLastLineBreak(FileChannel in, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (long end = size; end > 0; end -= buffer.capacity()) {
+            long from = Math.max(0, end - buffer.capacity());
+            buffer.clear().limit((int) (end - from));
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer, from + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return from + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private int replayFile(File file, Consumer<String> consumer) {
+        if (!file.exists()) {
+            return 0;
+        }
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    consumer.accept(line);
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            // Everything before the unreadable part is applied
+            logger.log(Level.WARNING, "Unable to fully replay " + file.getName(), e);
+        }
+        return count;
+    }
+
+    // Queue a record, the future completes once it is on disk
+    public CompletableFuture<Void> append(String record) {
+        return enqueue(new Entry(record, null, new CompletableFuture<>()));
+    }
+
+    // Nothing is queued after STOP, the writer would never complete it
+    private CompletableFuture<Void> enqueue(Entry entry) {
+        synchronized (queue) {
+            if (closed) {
+                entry.done().completeExceptionally(new IOException("Journal closed"));
+            } else {
+                queue.add(entry);
+            }
+        }
+        return entry.done();
+    }
+
+    // Queue a record and wait until the batch it is part of is synced
+    public void appendAndWait(String record) {
+        await(append(record));
+    }
+
+    // Queue a compaction once the journal holds more records than the threshold
+    public void compactIfNeeded(Supplier<? extends Collection<String>> snapshot) {
+        if (recordsSinceSnapshot >= compactThreshold && compactionQueued.compareAndSet(false, true)) {
+            compact(snapshot).whenComplete((ignored, e) -> compactionQueued.set(false));
+        }
+    }
+
+    /*
+    Write the records from the supplier as the new snapshot and empty the journal.
+    The supplier is called on the writer thread after every record queued before this call is written,
+    so the snapshot contains at least their effect.
+     */
+    public CompletableFuture<Void> compact(Supplier<? extends Collection<String>> snapshot) {
+        return enqueue(new Entry(null, snapshot, new CompletableFuture<>()));
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch);
+
+            List<CompletableFuture<Void>> written = new ArrayList<>();
+            try {
+                for (Entry entry : batch) {
+                    if (entry == STOP) {
+                        stop = true;
+                    } else if (entry.snapshot() == null) {
+                        writeRecord(entry.record());
+                        written.add(entry.done());
+                    } else {
+                        // Everything before the compaction point has to be durable first
+                        sync(written);
+                        writeSnapshot(entry.snapshot().get());
+                        entry.done().complete(null);
+                    }
+                }
+                sync(written);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Unable to write to journal " + logFile.getName(), e);
+                for (Entry entry : batch) {
+                    if (entry != STOP) {
+                        entry.done().completeExceptionally(e);
+                    }
+                }
+            }
+            batch.clear();
+        }
+        // Only the writer closes the channel, so a batch is never cut off while it is written
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to close journal " + logFile.getName(), e);
+        }
+    }
+
+    private void writeRecord(String record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        recordsSinceSnapshot++;
+        records.increment();
+    }
+
+    // One fsync for all the records written since the previous one
+    private void sync(List<CompletableFuture<Void>> written) throws IOException {
+        if (written.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        channel.force(false);
+        syncTime.recordSince(start);
+        for (CompletableFuture<Void> done : written) {
+            done.complete(null);
+        }
+        written.clear();
+    }
+
+    private void writeSnapshot(Collection<String> records) throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder builder = new StringBuilder();
+            for (String record : records) {
+                builder.append(record).append('\n');
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        // The snapshot covers the whole journal now, start a new one
+        channel.truncate(0);
+        channel.force(true);
+        recordsSinceSnapshot = 0;
+        logger.log(Level.INFO, "Compacted " + logFile.getName() + " into " + records.size() + " records");
+    }
+
+    // Every record is one line, a field fits when it has no line break and not the separator of its owner
+    static boolean fits(String field, char separator) {
+        return field.indexOf(separator) < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0;
+    }
+
+    static void await(CompletableFuture<Void> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Journal write failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(STOP);
+        }
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            logger.log(Level.WARNING, "Journal " + logFile.getName() + " is still writing, it closes once done");
+        }
+    }
+}
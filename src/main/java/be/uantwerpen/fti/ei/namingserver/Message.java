@@ -0,0 +1,351 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Binary wire format of the control messages exchanged between the naming server and the nodes.
+ * A datagram holds one or more frames, every frame looks like:
+
+ *   magic (1 byte) | type (1 byte) | body length (2 bytes) | long0 (8) | long1 (8) | count (1) | strings
+
+ * where every string is a 2 byte length followed by its UTF-8 bytes. Which ints and strings a frame uses
+ * depends on its type, see the constants below.
+
+ * Batch frames carry, after their strings, long0 entries of: hash (8) | filename (2 + UTF-8).
+ * They are written with a BatchWriter, which starts a new frame whenever the current one is full.
+
+ * An instance is a reusable view on a frame inside a buffer: decoding only records offsets and never
+ * allocates, a String is only created when a handler asks for one.
+ */
+public final class Message {
+
+    // string0 = IP of the node, long0 = ID of the node
+    public static final byte BOOTSTRAP = 1;
+    // string0 = IP of the node, long0 = previous ID, long1 = next ID
+    public static final byte SHUTDOWN = 2;
+    // string0 = IP of the node, string1 = filename, long0 = file hash
+    public static final byte REPORT = 3;
+    // string0 = IP of the node, string1 = indication
+    public static final byte AIP = 4;
+    // string0 = replica holders to replicate to in chain order, comma separated, string1 = filename,
+    // long0 = file hash
+    public static final byte REPLICATE = 5;
+    // string0 = IP of the local owner, string1 = filename, string2 = all replica holders, long0 = file hash
+    public static final byte LOG = 6;
+    // long0 = number of nodes
+    public static final byte NUMNODES = 7;
+    // string0 = previous host, string1 = host before the previous one, string2 = indication
+    public static final byte RIP = 8;
+    // string0 = IP of the node, long0 = number of entries, entries = the files of the node
+    public static final byte REPORT_BATCH = 9;
+    // string0 = replica holders to replicate to in chain order, comma separated, long0 = number of entries,
+    // entries = the files to replicate there
+    public static final byte REPLICATE_BATCH = 10;
+    // string0 = IP of the local owner, string1 = all replica holders, long0 = number of entries,
+    // entries = the files replicated to the receiver
+    public static final byte LOG_BATCH = 11;
+    // string0 = IP of the local owner, long0 = number of entries, entries = the files deleted by the local owner
+    public static final byte DELETE_BATCH = 12;
+    // string0 = IP of the node, long0 = ID of the node
+    public static final byte HEARTBEAT = 13;
+    // string0 = IP of the failed node, long0 = its previous ID, long1 = its next ID
+    public static final byte FAILED = 14;
+    // string0 = IP of the node, string1 = IP of the failed node, long0 = number of entries,
+    // entries = the files of the node, only those that had a replica on the failed node are replicated again
+    public static final byte REPAIR_BATCH = 15;
+    // string0 = IP of the node that joined or left, string1 = JOIN or LEAVE, string2 = replication factor,
+    // long0 = number of entries, long1 = number of frames of the announcement, entries = the ranges whose owners
+    // changed: hash = start of the range (exclusive), filename = end of the range (inclusive) and the owners
+    // after the change in chain order, see Rebalancer
+    public static final byte REBALANCE = 16;
+    // string0 = IP of the node, string1 = ADD, REMOVE or CLEAR, string2 = incarnation of the server,
+    // long0 = ring epoch after the change
+    public static final byte RING_DELTA = 17;
+    // string0 = incarnation of the server, string1 = ring epoch, string2 = tokens per node, string3 = hash strategy,
+    // long0 = number of entries, long1 = index of the frame << 32 | number of frames of the snapshot,
+    // entries: hash = node ID, filename = IP
+    public static final byte RING_SNAPSHOT = 18;
+    // string0 = IP of the node, long0 = ring epoch the node has
+    public static final byte RING_REQUEST = 19;
+
+    static final byte MAGIC = (byte) 0xB5;
+    static final int HEADER_SIZE = 4;
+    static final int FIXED_BODY_SIZE = 17;
+    static final int MAX_STRINGS = 4;
+    static final int MAX_FRAME_SIZE = HEADER_SIZE + 0xFFFF;
+
+    private ByteBuffer buffer;
+    private byte type;
+    private long long0, long1;
+    private int stringCount;
+    private final int[] stringOffsets = new int[MAX_STRINGS];
+    private final int[] stringLengths = new int[MAX_STRINGS];
+    // Bytes after the strings, the entries of a batch frame
+    private int entriesOffset, end;
+
+    // Receives the entries of a batch frame
+    public interface EntryConsumer {
+        void accept(long hash, String filename);
+    }
+
+    /*
+    Decode the frame at the position of the buffer and move the position past it.
+    Returns false, without moving the position, when the remaining bytes are not a complete valid frame.
+     */
+    public boolean next(ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (limit - start < HEADER_SIZE + FIXED_BODY_SIZE || buffer.get(start) != MAGIC) {
+            return false;
+        }
+        int end = start + HEADER_SIZE + (buffer.getShort(start + 2) & 0xFFFF);
+        // A body shorter than the fixed fields would read them from the next frame
+        if (end > limit || end - start - HEADER_SIZE < FIXED_BODY_SIZE) {
+            return false;
+        }
+
+        int offset = start + HEADER_SIZE;
+        int count = buffer.get(offset + 16) & 0xFF;
+        if (count > MAX_STRINGS) {
+            return false;
+        }
+        offset += FIXED_BODY_SIZE;
+        for (int i = 0; i < count; i++) {
+            if (offset + 2 > end) {
+                return false;
+            }
+            int length = buffer.getShort(offset) & 0xFFFF;
+            offset += 2;
+            if (offset + length > end) {
+                return false;
+            }
+            stringOffsets[i] = offset;
+            stringLengths[i] = length;
+            offset += length;
+        }
+
+        this.buffer = buffer;
+        this.type = buffer.get(start + 1);
+        this.long0 = buffer.getLong(start + HEADER_SIZE);
+        this.long1 = buffer.getLong(start + HEADER_SIZE + 8);
+        this.stringCount = count;
+        this.entriesOffset = offset;
+        this.end = end;
+        buffer.position(end);
+        return true;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public long long0() {
+        return long0;
+    }
+
+    public long long1() {
+        return long1;
+    }
+
+    public int stringCount() {
+        return stringCount;
+    }
+
+    // Materialize a string field, missing fields are empty
+    public String string(int index) {
+        if (index >= stringCount) {
+            return "";
+        }
+        byte[] bytes = new byte[stringLengths[index]];
+        buffer.get(stringOffsets[index], bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+    Feed the entries of a batch frame to the consumer, the strings are only created here.
+    Returns the number of entries, which is smaller than long0 when the frame is truncated.
+     */
+    public int forEachEntry(EntryConsumer consumer) {
+        int offset = entriesOffset;
+        int decoded = 0;
+        byte[] bytes = new byte[0];
+        while (decoded < long0 && offset + 10 <= end) {
+            long hash = buffer.getLong(offset);
+            int length = buffer.getShort(offset + 8) & 0xFFFF;
+            offset += 10;
+            if (offset + length > end) {
+                break;
+            }
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, 64)];
+            }
+            buffer.get(offset, bytes, 0, length);
+            offset += length;
+            consumer.accept(hash, new String(bytes, 0, length, StandardCharsets.UTF_8));
+            decoded++;
+        }
+        return decoded;
+    }
+
+    /**
+     * Writes (hash, filename) entries into batch frames of at most maxFrameSize bytes. A full frame is handed
+     * to the sink and the next entry starts a new frame with the same type and strings.
+     */
+    public static final class BatchWriter {
+        private final Consumer<byte[]> sink;
+        private final ByteBuffer frame;
+        private final int headerEnd;
+        private int count;
+        private int frames;
+
+        public BatchWriter(byte type, String string0, int maxFrameSize, Consumer<byte[]> sink) {
+            this(type, new String[] { string0 }, maxFrameSize, sink);
+        }
+
+        public BatchWriter(byte type, String[] strings, int maxFrameSize, Consumer<byte[]> sink) {
+            if (strings.length > MAX_STRINGS) {
+                throw new IllegalArgumentException("Too many string fields: " + strings.length);
+            }
+            this.sink = sink;
+            this.frame = ByteBuffer.allocate(Math.min(maxFrameSize, MAX_FRAME_SIZE));
+            frame.put(MAGIC).put(type).putShort((short) 0);
+            frame.putLong(0).putLong(0).put((byte) strings.length);
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                frame.putShort((short) bytes.length).put(bytes);
+            }
+            headerEnd = frame.position();
+        }
+
+        public void add(long hash, String filename) {
+            byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+            int size = 10 + name.length;
+            if (size > frame.capacity() - headerEnd) {
+                throw new IllegalArgumentException("Filename too long for a batch frame: " + filename);
+            }
+            if (size > frame.remaining()) {
+                flush();
+            }
+            frame.putLong(hash).putShort((short) name.length).put(name);
+            count++;
+        }
+
+        // Hand the current frame to the sink, if it holds any entries
+        public void flush() {
+            if (count == 0) {
+                return;
+            }
+            frame.putShort(2, (short) (frame.position() - HEADER_SIZE));
+            frame.putLong(HEADER_SIZE, count);
+            byte[] bytes = new byte[frame.position()];
+            frame.get(0, bytes);
+            sink.accept(bytes);
+            frame.position(headerEnd);
+            count = 0;
+            frames++;
+        }
+
+        // Frames handed to the sink so far
+        public int frames() {
+            return frames;
+        }
+    }
+
+    /*
+    Append a frame to the buffer, throws BufferOverflowException when it does not fit and
+    IllegalArgumentException when it is not a valid frame. Nothing is written in both cases.
+     */
+    public static void encode(ByteBuffer dst, byte type, long long0, long long1, String... strings) {
+        byte[][] encoded = encodeStrings(strings);
+        int size = frameSize(encoded);
+        if (size > dst.remaining()) {
+            throw new BufferOverflowException();
+        }
+        write(dst, type, long0, long1, encoded, size);
+    }
+
+    // Encode a single frame into its own array
+    public static byte[] encode(byte type, long long0, long long1, String... strings) {
+        byte[][] encoded = encodeStrings(strings);
+        int size = frameSize(encoded);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        write(buffer, type, long0, long1, encoded, size);
+        return buffer.array();
+    }
+
+    private static byte[][] encodeStrings(String... strings) {
+        if (strings.length > MAX_STRINGS) {
+            throw new IllegalArgumentException("Too many string fields: " + strings.length);
+        }
+        byte[][] encoded = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    // Size of a frame with the given strings, a string or frame that does not fit its length field is refused
+    private static int frameSize(byte[][] encoded) {
+        int size = HEADER_SIZE + FIXED_BODY_SIZE;
+        for (byte[] bytes : encoded) {
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("String field too large: " + bytes.length);
+            }
+            size += 2 + bytes.length;
+        }
+        if (size > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Frame too large: " + size);
+        }
+        return size;
+    }
+
+    private static void write(ByteBuffer dst, byte type, long long0, long long1, byte[][] encoded, int size) {
+        dst.put(MAGIC).put(type).putShort((short) (size - HEADER_SIZE));
+        dst.putLong(long0).putLong(long1).put((byte) encoded.length);
+        for (byte[] bytes : encoded) {
+            dst.putShort((short) bytes.length).put(bytes);
+        }
+    }
+
+    // Overwrite long1 of an encoded frame, for fields only known once all frames are written
+    public static void setLong1(byte[] frame, long value) {
+        ByteBuffer.wrap(frame).putLong(HEADER_SIZE + 8, value);
+    }
+
+    public static String typeName(byte type) {
+        return switch (type) {
+            case BOOTSTRAP -> "BOOTSTRAP";
+            case SHUTDOWN -> "SHUTDOWN";
+            case REPORT -> "REPORT";
+            case AIP -> "AIP";
+            case REPLICATE -> "REPLICATE";
+            case LOG -> "LOG";
+            case NUMNODES -> "NUMNODES";
+            case RIP -> "RIP";
+            case REPORT_BATCH -> "REPORT_BATCH";
+            case REPLICATE_BATCH -> "REPLICATE_BATCH";
+            case LOG_BATCH -> "LOG_BATCH";
+            case DELETE_BATCH -> "DELETE_BATCH";
+            case HEARTBEAT -> "HEARTBEAT";
+            case FAILED -> "FAILED";
+            case REPAIR_BATCH -> "REPAIR_BATCH";
+            case REBALANCE -> "REBALANCE";
+            case RING_DELTA -> "RING_DELTA";
+            case RING_SNAPSHOT -> "RING_SNAPSHOT";
+            case RING_REQUEST -> "RING_REQUEST";
+            default -> "UNKNOWN(" + type + ")";
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(typeName(type));
+        for (int i = 0; i < stringCount; i++) {
+            builder.append(':').append(string(i));
+        }
+        return builder.append(':').append(long0).append(':').append(long1).toString();
+    }
+}
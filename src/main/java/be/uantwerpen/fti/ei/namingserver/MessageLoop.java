@@ -0,0 +1,255 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Event loop that receives the control messages of the server or a node.
+ * One selector thread reads datagrams from all the bound channels into pooled direct buffers and hands them
+ * to the handler thread of the channel, so slow handlers never block the receiving. Every channel has its own
+ * handler thread: messages on one port are handled in the order they arrived, different ports run in parallel.
+ */
+public class MessageLoop implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(MessageLoop.class.getName());
+
+    // Kernel receive buffer asked for every channel, absorbs bursts while all pooled buffers are in use
+    private static final int RECEIVE_BUFFER = 4 * 1024 * 1024;
+
+    // One message view per handler thread
+    private static final ThreadLocal<Message> VIEW = ThreadLocal.withInitial(Message::new);
+
+    @FunctionalInterface
+    public interface Handler {
+        void handle(Message message, InetSocketAddress sender) throws IOException;
+    }
+
+    // A bound channel with its handler and the thread the handler runs on
+    private record Binding(String purpose, DatagramChannel channel, Handler handler, ExecutorService executor) {}
+
+    private final String name;
+    private final Selector selector;
+    private final BufferPool pool;
+    private final Queue<Binding> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Datagrams that were not (completely) made of valid frames
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    // Datagrams handed to a handler thread that it did not start on yet
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // Time to handle a message, by type, created the first time a type arrives
+    private final AtomicReferenceArray<Metrics.Histogram> handleTimes = new AtomicReferenceArray<>(256);
+
+    public MessageLoop(String name) throws IOException {
+        this(name, 256, 16 * 1024);
+    }
+
+    public MessageLoop(String name, int buffers, int bufferSize) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.pool = new BufferPool(buffers, bufferSize);
+        this.thread = new Thread(this::run, name + "-loop");
+        this.thread.setDaemon(true);
+
+        Metrics metrics = Metrics.global();
+        metrics.counter("messages_received_datagrams_total", "Datagrams received", received::get, "loop", name);
+        metrics.counter("messages_dropped_datagrams_total", "Datagrams dropped as oversized or malformed",
+                dropped::get, "loop", name);
+        metrics.gauge("messages_queued_datagrams", "Datagrams waiting for their handler thread", queued::get,
+                "loop", name);
+        metrics.gauge("messages_free_buffers", "Pooled receive buffers available", pool::available, "loop", name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Listen for unicast messages on the port
+    public void listen(String purpose, int port, Handler handler) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        channel.bind(new InetSocketAddress(port));
+        register(purpose, channel, handler);
+    }
+
+    // Join the multicast group and listen for its messages on the port
+    public void listenMulticast(String purpose, String group, int port, Handler handler) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        channel.bind(new InetSocketAddress(port));
+
+        NetworkInterface networkInterface = Utils.multicastInterface();
+        if (networkInterface == null) {
+            channel.close();
+            throw new IOException("No network interface supports multicast");
+        }
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        channel.join(InetAddress.getByName(group), networkInterface);
+        register(purpose, channel, handler);
+    }
+
+    private void register(String purpose, DatagramChannel channel, Handler handler) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread handlerThread = new Thread(r, name + "-" + channel.socket().getLocalPort());
+            handlerThread.setDaemon(true);
+            return handlerThread;
+        });
+        pending.add(new Binding(purpose, channel, handler, executor));
+        selector.wakeup();
+        logger.log(Level.INFO, "Connected to receive socket: " + purpose);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                registerPending();
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        receiveAll((Binding) key.attachment());
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error in message loop " + name, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void registerPending() throws IOException {
+        Binding binding;
+        while ((binding = pending.poll()) != null) {
+            binding.channel().configureBlocking(false);
+            binding.channel().register(selector, SelectionKey.OP_READ, binding);
+        }
+    }
+
+    // Drain every datagram waiting on the channel
+    private void receiveAll(Binding binding) throws IOException, InterruptedException {
+        while (true) {
+            ByteBuffer buffer = pool.acquire();
+            SocketAddress sender;
+            try {
+                sender = binding.channel().receive(buffer);
+            } catch (IOException e) {
+                pool.release(buffer);
+                throw e;
+            }
+            if (sender == null) {
+                pool.release(buffer);
+                return;
+            }
+            received.incrementAndGet();
+            queued.incrementAndGet();
+            buffer.flip();
+            binding.executor().execute(() -> dispatch(binding, buffer, (InetSocketAddress) sender));
+        }
+    }
+
+    // Runs on the handler thread of the binding, which is the only user of its message view
+    private void dispatch(Binding binding, ByteBuffer buffer, InetSocketAddress sender) {
+        queued.decrementAndGet();
+        Message message = VIEW.get();
+        try {
+            // A datagram that fills the whole buffer may have been truncated
+            if (buffer.limit() == buffer.capacity()) {
+                dropped.incrementAndGet();
+                logger.log(Level.WARNING, "Dropped oversized datagram on " + binding.purpose());
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                if (!message.next(buffer)) {
+                    dropped.incrementAndGet();
+                    logger.log(Level.WARNING, "Dropped malformed datagram on " + binding.purpose()
+                            + " from " + sender);
+                    return;
+                }
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, binding.purpose() + " received: " + message);
+                }
+                long start = System.nanoTime();
+                try {
+                    binding.handler().handle(message, sender);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Unable to handle " + Message.typeName(message.type())
+                            + " on " + binding.purpose(), e);
+                }
+                handleTime(message.type()).recordSince(start);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private Metrics.Histogram handleTime(byte type) {
+        Metrics.Histogram histogram = handleTimes.get(type & 0xFF);
+        if (histogram == null) {
+            histogram = Metrics.global().histogram("messages_handle_seconds", "Time to handle a message",
+                    "loop", name, "type", Message.typeName(type));
+            handleTimes.set(type & 0xFF, histogram);
+        }
+        return histogram;
+    }
+
+    public long received() {
+        return received.get();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public int buffersAvailable() {
+        return pool.available();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        thread.interrupt();
+        for (SelectionKey key : selector.keys()) {
+            Binding binding = (Binding) key.attachment();
+            binding.executor().shutdown();
+            try {
+                binding.channel().close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to close " + binding.purpose(), e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to close message loop " + name, e);
+        }
+    }
+}
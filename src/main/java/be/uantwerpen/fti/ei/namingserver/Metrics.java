@@ -0,0 +1,198 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters, gauges and latency histograms of the naming server and the nodes, written out in the Prometheus
+ * text format. The naming server serves them on /metrics next to the Controller, a node on its own small
+ * HTTP server (see serve).
+
+ * Metrics are created once, typically in a static field or a constructor, and then only updated. Updating
+ * never allocates or takes a lock: counters are LongAdders and a histogram only increments the count of the
+ * bucket a value falls in. Values that a class already counts are registered as functions and read when the
+ * metrics are written.
+
+ * Histogram buckets are powers of two nanoseconds from about 1 µs up to about 17 s, so finding the bucket
+ * is a single leading zero count.
+ */
+public final class Metrics {
+
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final Metrics GLOBAL = new Metrics();
+
+    // Upper bound of bucket i is 2^(i + SMALLEST_BUCKET) ns, the last bucket is +Inf
+    private static final int SMALLEST_BUCKET = 10;
+    private static final int BUCKETS = 25;
+
+    // Metric families by name, written in name order
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    // Registry of the process, shared by the server or node and all its parts
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS + 1);
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            int bucket = Math.max(0, 64 - Long.numberOfLeadingZeros(value - 1) - SMALLEST_BUCKET);
+            buckets.incrementAndGet(value == 0 ? 0 : Math.min(bucket, BUCKETS));
+            sum.add(value);
+        }
+
+        // Record the time since a System.nanoTime() taken before
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i <= BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+    }
+
+    // Series of one metric name, by their labels
+    private record Family(String name, String help, String type, Map<String, Object> series) {}
+
+    // Labels are given as name, value pairs
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series().computeIfAbsent(labels(labels), key -> new Counter());
+    }
+
+    // Counter kept elsewhere, read when the metrics are written. It replaces a function with the same labels.
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "counter").series().put(labels(labels), value);
+    }
+
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").series().put(labels(labels), value);
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").series().computeIfAbsent(labels(labels),
+                key -> new Histogram());
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name,
+                key -> new Family(name, help, type, new ConcurrentSkipListMap<>()));
+        if (!family.type().equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type() + ", not a " + type);
+        }
+        return family;
+    }
+
+    // All metrics in the Prometheus text format
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+            out.append("# TYPE ").append(family.name()).append(' ').append(family.type()).append('\n');
+            for (Map.Entry<String, Object> series : family.series().entrySet()) {
+                write(out, family.name(), series.getKey(), series.getValue());
+            }
+        }
+        return out.toString();
+    }
+
+    private static void write(StringBuilder out, String name, String labels, Object value) {
+        if (value instanceof Counter counter) {
+            sample(out, name, labels, counter.get());
+        } else if (value instanceof LongSupplier supplier) {
+            sample(out, name, labels, supplier.getAsLong());
+        } else if (value instanceof Histogram histogram) {
+            long cumulative = 0;
+            for (int i = 0; i <= BUCKETS; i++) {
+                cumulative += histogram.buckets.get(i);
+                String le = i == BUCKETS ? "+Inf" : Double.toString((1L << (i + SMALLEST_BUCKET)) / 1e9);
+                String bucketLabels = labels.isEmpty() ? "le=\"" + le + "\"" : labels + ",le=\"" + le + "\"";
+                sample(out, name + "_bucket", bucketLabels, cumulative);
+            }
+            out.append(name).append("_sum");
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ').append(histogram.sum.sum() / 1e9).append('\n');
+            sample(out, name + "_count", labels, cumulative);
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels come in name, value pairs");
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\")
+                    .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return builder.toString();
+    }
+
+    /*
+    Serve the metrics on http://host:port/metrics, for a node that does not run the web server of the naming
+    server. Returns the server, so it can be stopped.
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        logger.log(Level.INFO, "Serving metrics on port " + port);
+        return server;
+    }
+}
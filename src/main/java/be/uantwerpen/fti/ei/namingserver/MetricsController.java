@@ -0,0 +1,18 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+// Metrics of the naming server in the Prometheus text format, scraped from /metrics
+@RestController
+public class MetricsController {
+
+    @GetMapping("/metrics")
+    public ResponseEntity<String> getMetrics(){
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(Metrics.CONTENT_TYPE))
+                .body(Metrics.global().scrape());
+    }
+}
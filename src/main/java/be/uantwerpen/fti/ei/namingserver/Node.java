@@ -5,12 +5,10 @@ import java.net.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 /**
  * This is the class that represents a node in the system. It has the property hostname, ip address,
  * previous, next and currentID and numOfNodes (needs to find a better way).
@@ -22,20 +20,69 @@ import org.json.JSONObject;
 public class Node {
 
     private final String IP;
-    private int previousID, nextID;
-    private final int currentID;
-    private int numOfNodes;
+    // Written by the handler threads of the message loop, read everywhere
+    private volatile long previousID, nextID;
+    private final long currentID;
+    private final AtomicInteger numOfNodes = new AtomicInteger();
+
+    // IDs of the nodes whose bootstrap was handled, a retried bootstrap is only counted once
+    private final Set<Long> members = ConcurrentHashMap.newKeySet();
+
+    // Completed with the number of nodes once the server answered the bootstrap
+    private final CompletableFuture<Integer> joined = new CompletableFuture<>();
+    // Completed once the replicas of this node are handed over during shutdown
+    private final CompletableFuture<Void> handedOver = new CompletableFuture<>();
+
+    // Time it took to join and to leave the ring, -1 until it happened
+    private volatile long joinMillis = -1, leaveMillis = -1;
 
     private final FileTransfer ft;
     private final ServerSocket serverSocket;
-    private String serverIP;
-    private boolean finishSending;
+    private volatile String serverIP;
     private static final Logger logger = Logger.getLogger(Node.class.getName());
-    private static final File fileLog = new File("/root/logs/fileLog.json");
+
+    // The bootstrap is sent again when the server did not answer in time, waiting longer every attempt
+    private static final int BOOTSTRAP_ATTEMPTS = Integer.getInteger("node.bootstrapAttempts", 5);
+    private static final long BOOTSTRAP_TIMEOUT = Long.getLong("node.bootstrapTimeoutMillis", 1000);
+    // Time the neighbours get to answer a join and the replicas get to be handed over at shutdown
+    private static final int NEIGHBOUR_TIMEOUT = Integer.getInteger("node.neighbourTimeoutMillis", 5000);
+    private static final long HANDOVER_TIMEOUT = Long.getLong("node.handoverTimeoutMillis", 60_000);
+    // Report frames sent before the node pauses for a millisecond
+    private static final int REPORT_BURST = 64;
+    // Interval of the heartbeats to the naming server, which declares the node failed when they stop
+    private static final long HEARTBEAT_INTERVAL = Long.getLong("node.heartbeatMillis", 1000);
+    // Port the metrics are served on, 0 to not serve them
+    private static final int METRICS_PORT = Integer.getInteger("node.metricsPort", Ports.metricsPort);
+
+    // Sends the heartbeats once the node joined
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "node-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Replicas stored on this node and their local owners
+    private final ReplicaCatalog catalog;
+
+    // State of the local files as last reported to the server, kept across restarts
+    private final FileStateIndex localIndex;
+
+    // Copy of the ring of the naming server, to resolve file owners without asking it
+    private final RingView ringView = new RingView(this::requestRing);
+
+    // Moves the replicas when a node joins or leaves
+    private final Rebalancer rebalancer;
+
+    // Moves started for our own leave and the number of its announcement frames seen so far
+    private final List<CompletableFuture<Void>> leaveMoves = new ArrayList<>();
+    private int leaveFrames;
 
     // ExecutorService to run multiple methods on different threads
     private final ExecutorService executor;
 
+    // Event loop receiving the multicast messages of other nodes and the unicast messages of the server
+    private final MessageLoop messageLoop;
+
     // Sync agent to sync the files
     private final SyncAgent agent;
 
@@ -49,14 +96,15 @@ public class Node {
         logger.log(Level.INFO, "node IP: " + IP);
 
         try {
-            ft = new FileTransfer(Ports.ftPort);
+            catalog = new ReplicaCatalog(new File("/root/logs"));
+            localIndex = new FileStateIndex(Paths.get("/root/localFiles"), new File("/root/state"));
+            ft = new FileTransfer(Ports.ftPort, catalog);
+            rebalancer = new Rebalancer(catalog, new File("/root/replicatedFiles"), IP, new File("/root/state"),
+                    ft::handOver);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        numOfNodes = 0;
-        finishSending = false;
-
         currentID = hash(IP);
         nextID = currentID;
         previousID = currentID;
@@ -69,6 +117,26 @@ public class Node {
 
         agent = new SyncAgent(filesMap);
 
+        try {
+            messageLoop = new MessageLoop("node");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        Metrics metrics = Metrics.global();
+        metrics.gauge("node_ring_nodes", "Nodes in the ring as this node counts them", numOfNodes::get);
+        metrics.gauge("node_replicas", "Replicas stored on this node", catalog::size);
+        metrics.counter("node_rebalance_moved_total", "Replicas moved by the rebalancer",
+                () -> rebalancer.progress().moved());
+        metrics.gauge("node_rebalance_pending", "Replica moves not done yet", () -> rebalancer.progress().pending());
+        if (METRICS_PORT > 0) {
+            try {
+                metrics.serve(METRICS_PORT);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to serve metrics on port " + METRICS_PORT, e);
+            }
+        }
+
         // Initialization of the executor with a pool of 8 threads
         executor = Executors.newFixedThreadPool(8);
         runFunctionsOnThreads();
@@ -78,15 +146,20 @@ public class Node {
     // Thread executor method to run the functions on different threads
     public void runFunctionsOnThreads() {
 
-        executor.submit(this::listenNodeMulticast);
-        executor.submit(this::Bootstrap);
-        executor.submit(this::receiveNumOfNodes);
+        // Every port gets its own handler thread in the message loop
+        try {
+            messageLoop.listenMulticast("listen for incoming messages", "224.0.0.1", Ports.multicastPort,
+                    this::processReceivedMessage);
+        } catch (IOException e) {
+            logger.log(Level.WARNING,"Unable to open multicast receive socket: listen for incoming messages", e);
+        }
+        listen("receive number of nodes", Ports.nnPort, this::processServerMessage);
+        listen("Replication purpose", Ports.replPort, this::processReceivedMessage);
+        listen("Create log purpose", Ports.logPort, this::processReceivedMessage);
+        listen("Get Previous IPs", Ports.ripPort, this::processReceivedMessage);
+        messageLoop.start();
 
-        // optimization for later
-        // This optimization is to use the general receive function and may be errorless
-        // executor.submit(() -> receiveUnicast("Receiving number of nodes", 8300));
-        executor.submit(() -> receiveUnicast("Replication purpose", Ports.replPort));
-        executor.submit(() -> receiveUnicast("Create log purpose", Ports.logPort));
+        executor.submit(this::Bootstrap);
 
         executor.submit(this::watchFolder);
 
@@ -102,8 +175,8 @@ public class Node {
     to work.
      */
     public void sendAgent(){
-        Utils.sendUnicast("retrieve next host", serverIP, "AIP:" + IP + ":A", Ports.unicastPort);
-        executor.submit(() -> receiveUnicast("Get Previous IPs", 9020));
+        Utils.sendUnicast("retrieve next host", serverIP,
+                Message.encode(Message.AIP, 0, 0, IP, "A"), Ports.unicastPort);
     }
 
     public SyncAgent getAgent(){
@@ -123,26 +196,45 @@ public class Node {
 
     // Send a multicast message during bootstrap with name and IP address
     // Send a multicast message during bootstrap to the multicast address of 224.0.0.1 to port 3000
+    // and wait for the number of nodes from the server, sending it again when no answer comes
     private void Bootstrap() {
+        long start = System.nanoTime();
+        byte[] message = Message.encode(Message.BOOTSTRAP, currentID, 0, IP);
 
-        String message = "BOOTSTRAP" + ":" + IP + ":" + currentID;
-        Utils.sendMulticast("send bootstrap", message, 3000);
-
-        logger.log(Level.INFO, "Received own bootstrap, my ID: " + currentID + "\nMy number of nodes=" + numOfNodes);
-        int i=0;
-        while (numOfNodes == 0) {                                       // delay until receiving numofnodes from the server
-            i=(i+1)%300000;
-            if(i==1){
-                System.out.println("Waiting for numofnodes > 0");}
+        int nodes = 0;
+        long timeout = BOOTSTRAP_TIMEOUT;
+        for (int attempt = 1; nodes == 0; attempt++) {
+            Utils.sendMulticast("send bootstrap", message, Ports.multicastPort);
+            try {
+                nodes = joined.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (attempt == BOOTSTRAP_ATTEMPTS) {
+                    logger.log(Level.SEVERE, "No answer of the naming server after " + attempt + " bootstraps");
+                    return;
+                }
+                logger.log(Level.INFO, "No answer of the naming server within " + timeout + " ms, bootstrapping again");
+                timeout *= 2;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "Bootstrap failed", e.getCause());
+                return;
+            }
         }
-        if (numOfNodes > 1) {
+
+        if (nodes > 1) {
             logger.log(Level.INFO, "Condition met to start TCP connection");
             try {
                 receiveNodeResponse();
+            } catch (SocketTimeoutException e) {
+                logger.log(Level.WARNING, "No neighbour answered within " + NEIGHBOUR_TIMEOUT + " ms");
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
+        joinMillis = (System.nanoTime() - start) / 1_000_000;
+        logger.log(Level.INFO, "Joined a ring of " + nodes + " nodes in " + joinMillis + " ms, my ID: " + currentID);
 
         // Sync agent created during system launch/bootstrap and then run
         agent.run();
@@ -155,239 +247,233 @@ public class Node {
      * The nodes receive this message and update their previous and next IDs
      */
     public void shutdown() {
-        String message = "SHUTDOWN" + ":" + IP + ":" + previousID + ":" + nextID;
-        if(fileLog.exists() && numOfNodes > 2)
-        {
-            executor.submit(() -> receiveUnicast("Get Previous IPs", 9020));
-            Utils.sendUnicast("Acquiring IP of copied node", serverIP, "AIP:" + IP + ":X", Ports.unicastPort);
-            while (!finishSending)
-            {
-            }
+        long start = System.nanoTime();
+        heartbeats.shutdownNow();
+        byte[] message = Message.encode(Message.SHUTDOWN, previousID, nextID, IP);
+        boolean handed = true;
+        if (numOfNodes.get() > 1) {
+            Utils.sendUnicast("Acquiring IP of copied node", serverIP,
+                    Message.encode(Message.AIP, 0, 0, IP, "X"), Ports.unicastPort);
+            handed = awaitHandOver(handedOver, HANDOVER_TIMEOUT);
         }
-        Utils.sendMulticast("Shutdown", message, 3000);
-        Utils.clearFolder("/root/replicatedFiles");
-        Utils.clearFolder("/root/logs");
-
-        // handle Failure and start Failure agent
-        handleFailure(this);
-
+        Utils.sendMulticast("Shutdown", message, Ports.multicastPort);
+        localIndex.close();
+        closeReplicas(handed, rebalancer, catalog, "/root/replicatedFiles", "/root/logs");
 
         // Shutdown the executor when the node shuts down
+        Utils.flushUnicast();
         executor.shutdown();
+        messageLoop.close();
+        leaveMillis = (System.nanoTime() - start) / 1_000_000;
+        logger.log(Level.INFO, "Left the ring in " + leaveMillis + " ms");
     }
-    // FAILURE can be handled with a "heartbeat" mechanism
-
-    // Hash function
-    public int hash(String IP){
-        double max = Integer.MAX_VALUE;
-        double min = Integer.MIN_VALUE;
 
-        double hashValue = (IP.hashCode() + max) * (32768/(max + Math.abs(min)));
-        return (int) hashValue;
+    // Wait for the replicas to be handed over, false when a move failed or they took too long
+    static boolean awaitHandOver(CompletableFuture<Void> handedOver, long timeoutMillis) {
+        try {
+            handedOver.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            logger.log(Level.WARNING, "Replicas not handed over within " + timeoutMillis + " ms, keeping them");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Unable to hand over the replicas, keeping them", e.getCause());
+        }
+        return false;
     }
 
-    // Node verifies local files and report to the naming server
-    private void verifyAndReportLocalFiles() {
-        File directory = new File("/root/localFiles");
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    String filename = file.getName();
-                    int fileHash = hash(filename);
-                    reportFileHashToServer(fileHash, filename);
-                }
-            }
+    /*
+    Close the replicas at shutdown. Handed over replicas are deleted with their catalog, replicas that were not
+    are kept together with the catalog in catalogFolder and the pending moves, which resume at the next start.
+     */
+    static void closeReplicas(boolean handed, Rebalancer rebalancer, ReplicaCatalog catalog, String replicaFolder,
+                              String catalogFolder) {
+        rebalancer.close();
+        if (handed) {
+            Utils.clearFolder(replicaFolder);
+            catalog.clear();
+        }
+        catalog.close();
+        if (handed) {
+            Utils.clearFolder(catalogFolder);
         }
     }
 
-    private void reportFileHashToServer(int fileHash, String filename) {
+    public long getJoinMillis() {
+        return joinMillis;
+    }
+
+    public long getLeaveMillis() {
+        return leaveMillis;
+    }
+
+    // Hash function, the same one the naming server uses
+    public long hash(String IP){
+        return Utils.hash(IP);
+    }
+
+    /*
+    Node verifies local files and reports them to the naming server. Only the files that were added, changed
+    or removed since they were last replicated are sent, the others are still replicated from the previous run.
+     */
+    private void verifyAndReportLocalFiles() {
         if (serverIP == null) {
-            logger.log(Level.INFO, "Server IP is not available, cannot report file hash");
+            logger.log(Level.INFO, "Server IP is not available, cannot report file hashes");
             return;
         }
-        String message = "REPORT" + ":" + IP + ":" + fileHash + ":" + filename;
-        String purpose = "Reporting file hashes to server";
+        long start = System.nanoTime();
+        FolderWatcher.Changes changes;
+        try {
+            changes = localIndex.reconcile();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not list the local files", e);
+            return;
+        }
+        logger.log(Level.INFO, "Reconciled " + localIndex.size() + " local files in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        reportChanges(changes);
+    }
 
-        Utils.sendUnicast(purpose, serverIP, message, Ports.unicastPort);
+    /*
+    Send files to the naming server, many files per batch frame. The frames are sent in bursts,
+    so a node with many files does not overrun the receive buffer of the server.
+     */
+    private void reportFiles(byte type, List<String> filenames) {
+        reportFiles(type, new String[] { IP }, filenames);
     }
 
-    private void watchFolder() {
+    private void reportFiles(byte type, String[] strings, List<String> filenames) {
+        if (serverIP == null) {
+            logger.log(Level.INFO, "Server IP is not available, cannot report file hashes");
+            return;
+        }
+        String purpose = "Reporting file hashes to server";
+        Message.BatchWriter batch = new Message.BatchWriter(type, strings, UnicastSender.MAX_DATAGRAM,
+                frame -> Utils.sendUnicast(purpose, serverIP, frame, Ports.unicastPort));
         try {
-            // Specify the directory which supposed to be watched
-            Path directoryPath = Paths.get("/root/localFiles");
-
-            // Create a WatchService
-            WatchService watchService = FileSystems.getDefault().newWatchService();
-
-            // Register the directory for specific events
-            directoryPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
-
-            // Infinite loop to continuously watch for events
-            while (true) {
-                WatchKey key = watchService.take();
-
-                // Optimization for later
-                // NOT SURE IF THE FOR LOOP IS NECESSARY, TRY A TEST WITHOUT
-                for (WatchEvent<?> event : key.pollEvents()) {
-
-                    // Handle the addition event, report file
-                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
-                        logger.log(Level.INFO, "File added: " + event.context());
-                        reportFileHashToServer(hash(String.valueOf(event.context())), String.valueOf(event.context()));
-                    }
+            for (String filename : filenames) {
+                int frames = batch.frames();
+                batch.add(hash(filename), filename);
+                if (batch.frames() != frames && frames % REPORT_BURST == REPORT_BURST - 1) {
+                    Thread.sleep(1);
                 }
-                // Reset the key to receive further events
-                key.reset();
             }
-
-        } catch (IOException | InterruptedException e) {
-            logger.log(Level.WARNING, "Unable to watch folder", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        batch.flush();
+        logger.log(Level.INFO, "Sent " + filenames.size() + " files as " + Message.typeName(type) + " in "
+                + batch.frames() + " messages");
     }
 
-
-
-    // Listen on port 3000 for incoming multicast messages, update the arrangement in the topology accordingly
-    private void listenNodeMulticast() {
-        try (MulticastSocket socket = new MulticastSocket(3000)) {
-
-            logger.log(Level.INFO,"connected to multicast receive socket: listen for incoming messages");
-
-            // Join the multicast group
-            InetAddress group = InetAddress.getByName("224.0.0.1");
-            socket.joinGroup(group);
-
-            // Create buffer for incoming data
-            byte[] buffer = new byte[512];
-
-            while (true) {  // Keep listening indefinitely
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-
-                String message = new String(packet.getData(), 0, packet.getLength());
-                logger.log(Level.INFO, "Multicast message received successfully: " + message);
-                processReceivedMessage(message);
-            }
+    // Watch the local files, changes are reported once a file has been quiet for watch.quietMillis
+    private void watchFolder() {
+        long quietMillis = Long.getLong("watch.quietMillis", 500);
+        try (FolderWatcher watcher = new FolderWatcher(Paths.get("/root/localFiles"), quietMillis,
+                this::processLocalChanges)) {
+            watcher.run();
         } catch (IOException e) {
-            logger.log(Level.WARNING,"Unable to open multicast receive socket: listen for incoming messages");
+            logger.log(Level.WARNING, "Unable to watch folder", e);
         }
     }
 
-
-    // General receive unicast function
-    private void receiveUnicast(String purpose, int port) {
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            logger.log(Level.INFO, "Connected to unicast receive socket: " + purpose);
-
-            // Create buffer for incoming data
-            byte[] buffer = new byte[512];
-
-            // Receive file data and write to file
-            while (true) {  // Keep listening indefinitely
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                String message = new String(packet.getData(), 0, packet.getLength());
-
-                logger.log(Level.INFO, "Unicast message received successfully: " + message);
-                processReceivedMessage(message);
-            }
-
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "Unable to connect to server", e);
+    // Changes seen by the watcher before the server is known are picked up by the reconciliation when joining
+    private void processLocalChanges(FolderWatcher.Changes changes) {
+        if (serverIP == null) {
+            return;
         }
+        reportChanges(localIndex.update(changes));
     }
 
-    private void receiveNumOfNodes() {
-        try (DatagramSocket socket = new DatagramSocket(Ports.nnPort)) {
-            logger. log(Level.INFO, "Connected to unicast socket: receive number of nodes");
-
-            // Create buffer for incoming data
-            byte[] buffer = new byte[512];
-
-            while (true) {
-                // Receive file data and write to file
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-
-                String message = new String(packet.getData(), 0, packet.getLength());
+    /*
+    New and modified files are reported the same way, the server answers both with a replication,
+    which sends a modified file as a delta. Deleted files are reported so their replicas are dropped.
+     */
+    private void reportChanges(FolderWatcher.Changes changes) {
+        logger.log(Level.INFO, "Local files created: " + changes.created().size() + ", modified: "
+                + changes.modified().size() + ", deleted: " + changes.deleted().size());
+        ft.markModified(changes.modified());
+        List<String> reports = new ArrayList<>(changes.created());
+        reports.addAll(changes.modified());
+        if (!reports.isEmpty()) {
+            reportFiles(Message.REPORT_BATCH, reports);
+        }
+        if (!changes.deleted().isEmpty()) {
+            reportFiles(Message.DELETE_BATCH, changes.deleted());
+        }
+    }
 
-                serverIP = packet.getAddress().getHostName();
 
-                processReceivedMessage(message);
-            }
 
+    // Bind a unicast port in the message loop
+    private void listen(String purpose, int port, MessageLoop.Handler handler) {
+        try {
+            messageLoop.listen(purpose, port, handler);
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Unable to connect to server", e);
+            logger.log(Level.WARNING, "Unable to open unicast receive socket: " + purpose, e);
         }
     }
 
-
-    private void processReceivedMessage(String message) throws IOException {
-        logger.log(Level.INFO,"message to process: " + message);
-        if (message.startsWith("BOOTSTRAP")){
-            processBootstrap(message);
-        }
-        else if (message.startsWith("SHUTDOWN")){
-            processShutdown(message);
-        }
-        else if (message.startsWith("NUMNODES")){
-            processNumNodes(message);
-        }
-        else if (message.startsWith("REPLICATE")){
-            processReplicate(message);
-        }
-        else if (message.startsWith("LOG")) {
-            processCreateLog(message);
-        }
-        else if (message.startsWith("RIP")) {
-            String[] parts = message.split(":");
-            if (parts[2].equals("A")){
-                processAgent(message);
+    // Messages on the number of nodes port come from the server, remember its address
+    private void processServerMessage(Message message, InetSocketAddress sender) throws IOException {
+        serverIP = sender.getAddress().getHostAddress();
+        processReceivedMessage(message, sender);
+    }
+
+    private void processReceivedMessage(Message message, InetSocketAddress sender) throws IOException {
+        switch (message.type()) {
+            case Message.BOOTSTRAP -> processBootstrap(message);
+            case Message.SHUTDOWN -> processShutdown(message);
+            case Message.NUMNODES -> processNumNodes(message);
+            case Message.REPLICATE -> processReplicate(message);
+            case Message.LOG -> processCreateLog(message);
+            case Message.REPLICATE_BATCH -> processReplicateBatch(message);
+            case Message.LOG_BATCH -> processCreateLogBatch(message);
+            case Message.DELETE_BATCH -> processDeleteBatch(message);
+            case Message.FAILED -> processFailure(message);
+            case Message.REBALANCE -> processRebalance(message);
+            case Message.RING_DELTA -> ringView.delta(message);
+            case Message.RING_SNAPSHOT -> ringView.snapshot(message);
+            case Message.RIP -> {
+                if (message.string(2).equals("A")){
+                    processAgent(message.string(0));
+                }
             }
-            sendReplicatedFilesShutdown(message);
+            default -> logger.log(Level.WARNING, "Unexpected message " + Message.typeName(message.type())
+                    + " from " + sender);
         }
     }
 
     /**
-     * Possible way to receive previous agents fileMap. When the indication is 'A', the method is called and
-     * the previous hostname is extracted. We serialize the agent, send it as serialized data to the previous node,
+     * Possible way to receive previous agents fileMap. When the indication is 'A', the method is called with
+     * the previous hostname. We serialize the agent, send it as serialized data to the previous node,
      * the previous node receives this and deserializes it and gets its fileMap.
-     * Unable to test but doubt that it works.
-     * @param message Message with the two previous hosts.
+     * Nothing listens for the agent yet, so nextFileMap is not filled in.
+     * @param previousIP Host of the previous node.
      * @throws IOException
      */
-    private void processAgent(String message) throws IOException {
-        SyncAgent receivedAgent;
-        String previousIP = message.split(":")[1];
-        try {
-            // Serialize object to byte array
-            byte[] serializedData = Utils.serializeObject(agent);
-
-            // Here you can send 'serializedData' over the network or save it to a file
-            Utils.sendUnicast("Send agent", previousIP, Arrays.toString(serializedData), 8600);
-            executor.submit(() -> receiveUnicast("receive agent", 8700));
+    private void processAgent(String previousIP) throws IOException {
+        // Serialize object to byte array
+        byte[] serializedData = Utils.serializeObject(agent);
 
-            // Deserialize byte array back to object
-            byte[] receivedData = message.getBytes();
-            receivedAgent = (SyncAgent) Utils.deserializeObject(receivedData);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
-        nextFileMap =  receivedAgent.getFilesMap();
+        // Here you can send 'serializedData' over the network or save it to a file
+        Utils.sendDatagram("Send agent", previousIP, serializedData, 8600);
     }
 
     // Process the message received from the multicast
-    private void processBootstrap(String message) {
-        String[] parts = message.split(":");
-        //String command = parts[0];
-        String IP = parts[1];
+    private void processBootstrap(Message message) {
+        String IP = message.string(0);
 
-        int receivedHash = hash(IP);
+        long receivedHash = hash(IP);
         logger.log(Level.INFO, "CurrentID:" + currentID + " receivedID:" + receivedHash);
         // Update current node's network parameters based on the received node's hash
         if (receivedHash != currentID) { // Received bootstrap different from its own
-            numOfNodes++;
+            if (!members.add(receivedHash)) {
+                logger.log(Level.INFO, "Bootstrap of " + IP + " already handled");
+                return;
+            }
+            numOfNodes.incrementAndGet();
 
 
             try {
@@ -396,84 +482,164 @@ public class Node {
                 throw new RuntimeException(e);
             }
             logger.log(Level.INFO, "Post bootstrap process: " + IP + "previousID:" + previousID +
-                    "nextID:" + nextID + "numOfNodes:" + numOfNodes);
+                    "nextID:" + nextID + "numOfNodes:" + numOfNodes.get());
         }
 
     }
 
-    private void processNumNodes(String message){
-        String[] parts = message.split(":");
-        numOfNodes = Integer.parseInt(parts[1]);
-        logger.log(Level.INFO, "Number of nodes: " + numOfNodes);
-        verifyAndReportLocalFiles();
+    private void processNumNodes(Message message){
+        numOfNodes.set((int) message.long0());
+        logger.log(Level.INFO, "Number of nodes: " + message.long0());
+        // Answers to retried bootstraps only report the files once
+        if (joined.complete((int) message.long0())) {
+            // The server watches the node from its bootstrap on, reconciling a large folder takes longer than that
+            heartbeats.scheduleAtFixedRate(this::sendHeartbeat, 0, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+            verifyAndReportLocalFiles();
+            rebalancer.resume();
+            ringView.refresh();
+        }
 
     }
 
-    private void processShutdown(String message) {
-        numOfNodes--;
-        String[] parts = message.split(":");
+    private void processShutdown(Message message) {
+        long prevId = message.long0();
+        long nxtID = message.long1();
 
-        int prevId = Integer.parseInt(parts[2]);
-        int nxtID = Integer.parseInt(parts[3]);
+        removeNeighbour(message.string(0), prevId, nxtID);
 
-        updateHashShutdown(prevId, nxtID);
+    }
+
+    // A node left or failed: forget it and link the nodes before and after it to each other
+    void removeNeighbour(String nodeIP, long prevID, long nxtID) {
+        // The node may bootstrap again later
+        members.remove(hash(nodeIP));
+        numOfNodes.decrementAndGet();
 
+        updateHashShutdown(prevID, nxtID);
     }
 
-    private void processReplicate(String message){
-        String[] parts = message.split(":");
-        String nodeToReplicateTo = parts[1];
-        String filename = parts[2];
+    // Ask the naming server for the whole ring, it answers on the number of nodes port
+    private void requestRing() {
+        if (serverIP != null) {
+            Utils.sendUnicast("request ring", serverIP, Message.encode(Message.RING_REQUEST, ringView.epoch(), 0, IP),
+                    Ports.unicastPort);
+        }
+    }
 
-        ft.transferFile(nodeToReplicateTo, filename,null);
+    // IP of the node that owns the file, resolved on the local copy of the ring
+    public String ownerOf(String filename) {
+        return ringView.ownerOf(filename);
     }
 
-    private void processCreateLog(String message) {
-        String[] parts = message.split(":");
-        String localOwnerIP = parts[1];
-        String filename = parts[2];
+    private void sendHeartbeat() {
+        if (serverIP != null) {
+            Utils.sendUnicast("heartbeat", serverIP, Message.encode(Message.HEARTBEAT, currentID, 0, IP),
+                    Ports.unicastPort);
+        }
+    }
 
-        updateLogFile(localOwnerIP, IP, filename);
+    // The naming server declared a node failed, repair the ring and the replicas with a failure agent
+    private void processFailure(Message message) {
+        String failedIP = message.string(0);
+        if (failedIP.equals(IP)) {
+            // Our heartbeats were late, the server bootstraps us again when the next one arrives
+            logger.log(Level.WARNING, "Declared failed by the naming server while still running");
+            return;
+        }
+        handleFailure(failedIP, message.long0(), message.long1());
     }
 
-    // Create/Update a log file with file references when replicating a file
-    public static void updateLogFile(String localOwnerIP, String replicatedOwnerIP, String filename) {
-        try {
-            // Ensure the directory exists
-            File directory = fileLog.getParentFile();
-            if (directory != null && !directory.exists()) {
-                directory.mkdirs();
+    /*
+    Report the local files again after a node failed. The server only replicates the files that had a replica
+    on the failed node, to the nodes that took its place.
+     */
+    void reportFilesForRepair(String failedIP) {
+        List<String> filenames = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("/root/localFiles"))) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    filenames.add(file.getFileName().toString());
+                }
             }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not list the local files", e);
+            return;
+        }
+        if (!filenames.isEmpty()) {
+            reportFiles(Message.REPAIR_BATCH, new String[] { IP, failedIP }, filenames);
+        }
+    }
 
-            JSONObject root;
-            if (fileLog.exists()) {
-                String content = new String(Files.readAllBytes(fileLog.toPath()));
-                root = new JSONObject(content);
-            } else {
-                root = new JSONObject();
+    // The file only goes to the first replica holder, every holder passes it on to the next one
+    private void processReplicate(Message message){
+        List<String> chain = replicaHolders(message.string(0));
+        String filename = message.string(1);
+
+        replicate(chain, filename);
+    }
+
+    private void processReplicateBatch(Message message) {
+        List<String> chain = replicaHolders(message.string(0));
+        message.forEachEntry((fileHash, filename) -> replicate(chain, filename));
+    }
+
+    // Once the first holder acknowledged the file, the reported state no longer has to be reported at startup
+    private void replicate(List<String> chain, String filename) {
+        FileStateIndex.FileState state = localIndex.pending(filename);
+        ft.transferChain(chain, filename).thenAccept(replicated -> {
+            if (replicated) {
+                localIndex.confirm(filename, state);
             }
+        });
+    }
 
-            // Optimization for later
-            // The second of the file log seems redundant
-            JSONObject fileInfo = new JSONObject();
-            fileInfo.put("localOwnerIP", localOwnerIP);
-            fileInfo.put("replicatedOwnerIP", replicatedOwnerIP);
-            root.put(filename, fileInfo);
+    private void processCreateLogBatch(Message message) {
+        String localOwnerIP = message.string(0);
+        List<String> replicas = replicaHolders(message.string(1));
+        List<String> filenames = new ArrayList<>();
+        message.forEachEntry((fileHash, filename) -> filenames.add(filename));
+        // One sync for the whole batch
+        catalog.putAll(filenames, localOwnerIP, IP, replicas);
+        logger.log(Level.INFO, "Logged " + filenames.size() + " replicas of " + localOwnerIP + " held by " + replicas);
+    }
 
-            try (FileWriter writer = new FileWriter(fileLog)) {
-                writer.write(root.toString());
+    // Comma separated replica holders, a message of an older server without them means this node only
+    private List<String> replicaHolders(String holders) {
+        return holders.isEmpty() ? List.of(IP) : List.of(holders.split(","));
+    }
+
+    // Drop the replicas of files their local owner deleted
+    private void processDeleteBatch(Message message) {
+        String localOwnerIP = message.string(0);
+        message.forEachEntry((fileHash, filename) -> {
+            ReplicaCatalog.Entry entry = catalog.get(filename);
+            if (entry == null || !entry.localOwnerIP().equals(localOwnerIP)) {
+                return;
             }
-            logger.log(Level.INFO, "File log updated successfully");
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "Error updating file log", e);
+            try {
+                Path directory = Paths.get("/root/replicatedFiles");
+                Path replica = directory.resolve(filename).normalize();
+                // Only names of files directly inside the folder
+                if (!directory.equals(replica.getParent())) {
+                    return;
+                }
+                Files.deleteIfExists(replica);
+                catalog.remove(filename);
+                logger.log(Level.INFO, "Deleted replica " + filename + " of " + localOwnerIP);
+            } catch (IOException | InvalidPathException e) {
+                logger.log(Level.WARNING, "Unable to delete replica " + filename, e);
+            }
+        });
+    }
 
-        } catch (JSONException e) {
-            logger.log(Level.WARNING, "Error creating JSON object", e);
-        }
+    private void processCreateLog(Message message) {
+        String localOwnerIP = message.string(0);
+        String filename = message.string(1);
 
+        catalog.put(filename, localOwnerIP, IP, replicaHolders(message.string(2)));
     }
 
-    private void updateHashShutdown(int prevID, int nxtID) {
+    private void updateHashShutdown(long prevID, long nxtID) {
         if (currentID == prevID) {
             nextID = nxtID;
         }
@@ -484,7 +650,7 @@ public class Node {
 
 
     // Update the hash
-    public void updateHash(int receivedHash, String IP) throws IOException {
+    public void updateHash(long receivedHash, String IP) throws IOException {
         /*
         if the new hash is smaller than the current next hash and bigger than this node's hash,
         or if the next hash is set to this node's hash
@@ -496,7 +662,7 @@ public class Node {
         }
 
         if ((currentID < receivedHash && receivedHash < nextID) || currentID==nextID|| (nextID<currentID && (receivedHash>currentID || receivedHash<nextID) )){
-            int oldNext= nextID;
+            long oldNext= nextID;
             nextID = receivedHash;
             sendNodeResponse(true, IP, oldNext);
             logger.log(Level.INFO, "Next ID updated to: " + nextID);
@@ -508,14 +674,14 @@ public class Node {
         we replace the previous hash with the new received hash and notify it by sending the old one
         */
         if ((previousID < receivedHash  && receivedHash < currentID) || currentID==previousID|| (previousID>currentID && (receivedHash<currentID|| receivedHash>previousID))){
-            int oldPrevious =previousID;
+            long oldPrevious =previousID;
             previousID = receivedHash;
             sendNodeResponse(false, IP, oldPrevious);
             logger.log(Level.INFO, "Previous ID updated to: " + previousID);
         }
     }
 
-    public void sendNodeResponse(Boolean replacedNext, String nodeIP, int replacedHash) throws IOException {
+    public void sendNodeResponse(Boolean replacedNext, String nodeIP, long replacedHash) throws IOException {
         int port = 5432;
         try (Socket cSocket = new Socket(nodeIP, port);
              DataOutputStream out = new DataOutputStream(cSocket.getOutputStream())) {
@@ -526,66 +692,56 @@ public class Node {
     }
 
     public void receiveNodeResponse() throws IOException {
+        serverSocket.setSoTimeout(NEIGHBOUR_TIMEOUT);
         try (Socket cSocket = serverSocket.accept();
              DataInputStream in = new DataInputStream(cSocket.getInputStream())) {
             String msg = in.readUTF();
             logger.log(Level.INFO, "Received message: " + msg);
             String[] parts = msg.split(":");
             if (parts[0].equalsIgnoreCase("next")) {
-                nextID = Integer.parseInt(parts[1]);
-                previousID = Integer.parseInt(parts[2]);
+                nextID = Long.parseLong(parts[1]);
+                previousID = Long.parseLong(parts[2]);
                 logger.log(Level.INFO, "Next and previous ID updated, previousID: "+ previousID + " Next: " + nextID);
             } else if (parts[0].equalsIgnoreCase("prev")) {
-                nextID = Integer.parseInt(parts[2]);
-                previousID = Integer.parseInt(parts[1]);
+                nextID = Long.parseLong(parts[2]);
+                previousID = Long.parseLong(parts[1]);
                 logger.log(Level.INFO, "Next and previous ID updated, previousID: "+ previousID + " Next: " + nextID);
             }
         }
     }
 
-    private void sendReplicatedFilesShutdown(String msg) {
-        String[] parts = msg.split(":");
-        String prevHost = parts[1];
-        String prev2Host = parts[2];
-        System.out.println("prev: "+prevHost+";prevprev: "+prev2Host);
-        try {
-            ft.stopListening();
-
-            String fileString = new String(Files.readAllBytes(fileLog.toPath()));
-            JSONObject jsonLog = new JSONObject(fileString);
-
-            Iterator<String> keys = jsonLog.keys();
-            while(keys.hasNext()) {
-                String fileName = keys.next();
-                JSONObject jsonEntry = jsonLog.getJSONObject(fileName);
-                boolean prevNodeOwner;
-
-                if(jsonEntry.getString("replicatedOwnerIP").equals(IP)) {
-                    prevNodeOwner = (hash(jsonEntry.getString("localOwnerIP")) == previousID);
-
-                    if (prevNodeOwner) {
-                        logger.log(Level.INFO, "send to: "+ prev2Host +" ; file: " + fileName + " ; The local owner: "
-                                +jsonEntry.getString("localOwnerIP"));
-                        //send to previous node of previous node
-                        ft.transferFile(prev2Host, fileName, jsonEntry.getString("localOwnerIP"));
-
-                    } else {
-                        logger.log(Level.INFO, "send to: "+ prevHost +" ; file: " + fileName +" ; The local owner: "
-                                + jsonEntry.getString("localOwnerIP"));
-                        //send to previous node , if previous is not the owner
-                        ft.transferFile(prevHost, fileName, jsonEntry.getString("localOwnerIP"));
-                    }
-                    //Thread.sleep(1000);
-                }
+    /*
+    A node joined or is about to leave, move the replicas in the announced ranges. For our own leave the replicas
+    are handed over once every frame of the announcement is seen and all moves finished, so shutdown can go on.
+     */
+    private void processRebalance(Message message) {
+        String nodeIP = message.string(0);
+        boolean leaving = message.string(1).equals("LEAVE");
+        int replicationFactor = Integer.parseInt(message.string(2));
+        List<Rebalancer.Range> ranges = new ArrayList<>();
+        message.forEachEntry((from, entry) -> ranges.add(Rebalancer.Range.parse(from, entry)));
+        CompletableFuture<Void> moves = rebalancer.rebalance(ranges, replicationFactor, leaving ? nodeIP : null);
+        if (!leaving || !nodeIP.equals(IP)) {
+            return;
+        }
+        synchronized (leaveMoves) {
+            if (leaveFrames == 0) {
+                ft.stopListening();
+            }
+            leaveMoves.add(moves);
+            if (++leaveFrames < message.long1()) {
+                return;
             }
-
-            finishSending = true;
-
-        } catch (IOException | JSONException e) {
-            // Handle failure and start Failure agent
-            handleFailure(this);
-            throw new RuntimeException(e);
         }
+        CompletableFuture.allOf(leaveMoves.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, e) -> {
+            // Wait until every peer acknowledged the files sent to it
+            ft.closeSessions();
+            if (e != null) {
+                handedOver.completeExceptionally(e);
+            } else {
+                handedOver.complete(null);
+            }
+        });
     }
 
     public void receiveFailureAgent(Runnable agent) {
@@ -597,10 +753,9 @@ public class Node {
             logger.log(Level.WARNING, "Error receiving failure agent", e);
         }
     }
-    private void handleFailure(Node failedNode) {
-        System.out.println("Handling failure of node " + failedNode.currentID);
-        FailureAgent agent = new FailureAgent(failedNode, currentID, currentID);
-        //receiveAgent(agent);
+    private void handleFailure(String failedIP, long prevID, long nxtID) {
+        logger.log(Level.INFO, "Handling failure of node " + failedIP);
+        executor.submit(new FailureAgent(this, failedIP, prevID, nxtID));
     }
 
 
@@ -618,7 +773,7 @@ public class Node {
                     System.exit(0);
                     break;
                 case "num":
-                    System.out.println("Number of nodes: " + numOfNodes);
+                    System.out.println("Number of nodes: " + numOfNodes.get() + ", joined in " + joinMillis + " ms");
                     break;
                 case "id":
                     System.out.println("previousID: " + previousID + ", currentID: " + currentID + ", nextID: " + nextID);
@@ -629,14 +784,32 @@ public class Node {
                 case "replicate":
                     Utils.getFiles("/root/replicatedFiles");
                     break;
+                case "transfers":
+                    System.out.println("Queued: " + ft.getQueuedTransfers() + ", active: " + ft.getActiveTransfers()
+                            + ", completed: " + ft.getCompletedTransfers() + ", failed: " + ft.getFailedTransfers()
+                            + ", buffered bytes: " + ft.getBufferedBytes());
+                    System.out.println("Compression: " + ft.getCompression());
+                    break;
+                case "ring":
+                    System.out.println("Epoch " + ringView.epoch() + ": " + ringView.ring());
+                    break;
+                case "rebalance":
+                    System.out.println(rebalancer.progress());
+                    break;
                 case "log":
-                    Utils.getFiles("/root/logs");
-                    Utils.displayLogContents("/root/logs/fileLog.json");
+                    for (ReplicaCatalog.Entry entry : catalog.entries()) {
+                        System.out.println("File: " + entry.filename() + ", local owner: " + entry.localOwnerIP()
+                                + ", replicated owner: " + entry.replicatedOwnerIP()
+                                + ", replicas: " + entry.replicas());
+                    }
+                    break;
                 default:
                     if (command.startsWith("addFile ")) {
                         String filename = command.substring(8);
                         Utils.addFile(filename, "/root/localFiles");
                         System.out.println(filename + " added.");
+                    } else if (command.startsWith("owner ")) {
+                        System.out.println(ownerOf(command.substring(6)));
                     } else {
                         System.out.println("Invalid command.");
                     }
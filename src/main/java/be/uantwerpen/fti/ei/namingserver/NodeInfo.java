@@ -0,0 +1,35 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Immutable record of a node in the ring as the naming server knows it.
+ * The host string and address are resolved off the lookup path, so handing them out never touches DNS.
+ *
+ * @param id      hash of the IP the node announced
+ * @param ip      IP or hostname the node announced when joining
+ * @param host    name handed out to clients, the announced IP until a background resolution refines it
+ * @param address resolved address of the node
+ */
+public record NodeInfo(long id, String ip, String host, InetAddress address) {
+
+    // Record for a node that just joined, only the forward lookup is done (none for a literal IP)
+    public static NodeInfo of(long id, String ip) throws UnknownHostException {
+        return new NodeInfo(id, ip, ip, InetAddress.getByName(ip));
+    }
+
+    /*
+    Resolve the announced IP again and look up the name of the address. A fresh InetAddress is used
+    for the reverse lookup because the JDK caches the host name on the instance.
+    Returns this record when nothing changed.
+     */
+    public NodeInfo resolve() throws UnknownHostException {
+        InetAddress resolved = InetAddress.getByName(ip);
+        String name = InetAddress.getByAddress(resolved.getAddress()).getHostName();
+        if (name.equals(host) && resolved.equals(address)) {
+            return this;
+        }
+        return new NodeInfo(id, ip, name, resolved);
+    }
+}
@@ -11,4 +11,10 @@ public interface Ports {
     int logPort = 8300;
 
     int nnPort = 8400;
+
+    int ripPort = 9020;
+
+    int multicastPort = 3000;
+
+    int metricsPort = 8500;
 }
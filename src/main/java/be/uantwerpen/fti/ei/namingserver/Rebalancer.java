@@ -0,0 +1,407 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves the replicas of this node after a node joined or is about to leave.
+ * The naming server announces the hash ranges whose replica holders changed together with the new holders
+ * (see Message.REBALANCE), so a node only looks at the replicas it holds in those ranges. For every such file
+ * one old holder, the first one that stays, sends it to the holders that are new in its set. When that source
+ * is no longer in the set itself, it drops its copy once the new holders acknowledged theirs. The other old
+ * holders that are no longer in the set drop their copy right away, they do not hear from the transfers of the
+ * source: until it finishes, or resumes after a failure, the file has fewer copies than the replication factor.
+ * Files whose holders did not change are never touched.
+
+ * Moves run on a pool of rebalance.parallelism workers. At most rebalance.perNode files are sent to the same node
+ * at a time and at most rebalance.bytesPerSecond bytes per second, so a rebalance does not flood a node that just
+ * joined. Planned moves are journaled and only forgotten once done, moves interrupted by a crash or a failed
+ * transfer are run again by resume(), moves of replicas that no longer exist are forgotten.
+
+ * Records: "MOVE\tfilename\tlocalOwnerIP\ttargets\treplicas\tdrop" and "DONE\tfilename", with the nodes comma
+ * separated.
+ */
+public class Rebalancer implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(Rebalancer.class.getName());
+
+    // Progress is logged every this many finished moves
+    private static final int PROGRESS_INTERVAL = 100;
+
+    // Hashes from (exclusive) up to to (inclusive), wrapping when from >= to, and their holders in chain order
+    public record Range(long from, long to, List<String> owners) {
+        public boolean contains(long hash) {
+            return from < to ? hash > from && hash <= to : hash > from || hash <= to;
+        }
+
+        // Range of a REBALANCE entry: hash = from, filename = "to owners"
+        public static Range parse(long from, String entry) {
+            int space = entry.indexOf(' ');
+            String owners = space < 0 ? "" : entry.substring(space + 1);
+            return new Range(from, Long.parseLong(space < 0 ? entry : entry.substring(0, space)), split(owners));
+        }
+    }
+
+    /*
+    Move of one replica: send it to the targets and record the new replica holders, or drop the local copy
+    when this node is no longer one of them.
+     */
+    public record Move(String filename, String localOwnerIP, List<String> targets, List<String> replicas,
+                       boolean drop) {}
+
+    public record Progress(long planned, long moved, long failed, long bytesPlanned, long bytesMoved, int pending) {}
+
+    // Sends a replica to a node, the future completes with true once the node acknowledged it
+    public interface Transport {
+        CompletableFuture<Boolean> send(String target, String filename, String localOwnerIP, List<String> replicas);
+    }
+
+    private final ReplicaCatalog catalog;
+    private final Path directory;
+    private final String self;
+    private final Transport transport;
+    private final Journal journal;
+    private final ExecutorService workers;
+    private final int perNode;
+    private final long bytesPerSecond;
+    private final long timeoutSeconds;
+
+    private final Map<String, Move> pending = new ConcurrentHashMap<>();
+    private final Map<String, Semaphore> slots = new ConcurrentHashMap<>();
+    private final Map<String, Throttle> throttles = new ConcurrentHashMap<>();
+
+    private final AtomicLong planned = new AtomicLong();
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesPlanned = new AtomicLong();
+    private final AtomicLong bytesMoved = new AtomicLong();
+
+    public Rebalancer(ReplicaCatalog catalog, File replicaDirectory, String self, File stateDirectory,
+                      Transport transport) throws IOException {
+        this(catalog, replicaDirectory, self, new File(stateDirectory, "rebalance.journal"),
+                new File(stateDirectory, "rebalance.snapshot"), transport,
+                Integer.getInteger("rebalance.parallelism", 4), Integer.getInteger("rebalance.perNode", 2),
+                Long.getLong("rebalance.bytesPerSecond", 0), Long.getLong("rebalance.timeoutSeconds", 60));
+    }
+
+    public Rebalancer(ReplicaCatalog catalog, File replicaDirectory, String self, File logFile, File snapshotFile,
+                      Transport transport, int parallelism, int perNode, long bytesPerSecond, long timeoutSeconds)
+            throws IOException {
+        this.catalog = catalog;
+        this.directory = replicaDirectory.toPath();
+        this.self = self;
+        this.transport = transport;
+        this.perNode = perNode;
+        this.bytesPerSecond = bytesPerSecond;
+        this.timeoutSeconds = timeoutSeconds;
+        Files.createDirectories(logFile.toPath().toAbsolutePath().getParent());
+        journal = new Journal(logFile, snapshotFile, 1000);
+        journal.replay(this::applyRecord);
+        workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "rebalance-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+    Plan and start the moves for the announced ranges. leavingIP is the node that is about to leave, null when
+    a node joined. The future completes once every move started here finished, exceptionally when one of them
+    failed, so a leaving node knows its replicas are not all handed over.
+     */
+    public synchronized CompletableFuture<Void> rebalance(List<Range> ranges, int replicationFactor,
+                                                          String leavingIP) {
+        List<Move> moves = plan(self, catalog.entries(), pending, ranges, replicationFactor, leavingIP);
+        if (moves.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<CompletableFuture<Void>> started = new ArrayList<>(moves.size());
+        List<CompletableFuture<Void>> written = new ArrayList<>(moves.size());
+        for (Move move : moves) {
+            pending.put(move.filename(), move);
+            if (Journal.fits(move.filename(), '\t')) {
+                written.add(journal.append(moveRecord(move)));
+            }
+        }
+        // Only start moving once the plan is durable, a crash before that loses nothing but the plan
+        Journal.await(CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0])));
+        for (Move move : moves) {
+            started.add(submit(move));
+        }
+        journal.compactIfNeeded(this::snapshotRecords);
+        logger.log(Level.INFO, "Planned " + moves.size() + " moves for " + ranges.size() + " ranges"
+                + (leavingIP == null ? "" : ", " + leavingIP + " is leaving"));
+        return CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Run the moves that did not finish before, after a restart or a failed transfer
+    public synchronized CompletableFuture<Void> resume() {
+        List<CompletableFuture<Void>> started = new ArrayList<>();
+        for (Move move : pending.values()) {
+            started.add(submit(move));
+        }
+        if (!started.isEmpty()) {
+            logger.log(Level.INFO, "Resuming " + started.size() + " moves");
+        }
+        return CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0]));
+    }
+
+    public Progress progress() {
+        return new Progress(planned.get(), moved.get(), failed.get(), bytesPlanned.get(), bytesMoved.get(),
+                pending.size());
+    }
+
+    /*
+    Moves for the replicas in the given entries whose holders change in the ranges. The replicas are the
+    first replicationFactor owners of the range other than the local owner, like the server picks them.
+    A file with a pending move starts from the holders that move already gave it.
+     */
+    static List<Move> plan(String self, Collection<ReplicaCatalog.Entry> entries, Map<String, Move> pending,
+                           List<Range> ranges, int replicationFactor, String leavingIP) {
+        if (ranges.isEmpty()) {
+            return List.of();
+        }
+        Range[] sorted = ranges.toArray(new Range[0]);
+        Arrays.sort(sorted, Comparator.comparingLong(Range::from));
+        long[] starts = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            starts[i] = sorted[i].from();
+        }
+
+        List<Move> moves = new ArrayList<>();
+        for (ReplicaCatalog.Entry entry : entries) {
+            Range range = find(sorted, starts, Utils.hash(entry.filename()));
+            if (range == null) {
+                continue;
+            }
+            Move earlier = pending.get(entry.filename());
+            List<String> previous = earlier != null ? earlier.replicas() : entry.replicas();
+            List<String> replicas = new ArrayList<>(replicationFactor);
+            for (String owner : range.owners()) {
+                if (replicas.size() < replicationFactor && !owner.equals(entry.localOwnerIP())) {
+                    replicas.add(owner);
+                }
+            }
+            if (replicas.size() == previous.size() && replicas.containsAll(previous)) {
+                continue;
+            }
+            // One old holder sends the file, the leaving node only when it held the only copy
+            String source = null;
+            for (String holder : previous) {
+                if (!holder.equals(leavingIP)) {
+                    source = holder;
+                    break;
+                }
+            }
+            if (source == null && !previous.isEmpty()) {
+                source = previous.get(0);
+            }
+            List<String> targets = new ArrayList<>();
+            if (self.equals(source)) {
+                for (String replica : replicas) {
+                    if (!previous.contains(replica)) {
+                        targets.add(replica);
+                    }
+                }
+            }
+            moves.add(new Move(entry.filename(), entry.localOwnerIP(), List.copyOf(targets), List.copyOf(replicas),
+                    !replicas.contains(self)));
+        }
+        return moves;
+    }
+
+    // Range holding the hash: only the range that starts last can wrap, hashes before the first start fall in it
+    private static Range find(Range[] sorted, long[] starts, long hash) {
+        int index = Arrays.binarySearch(starts, hash);
+        // Starts are exclusive, a hash equal to a start belongs to the range before it
+        int before = (index >= 0 ? index : -index - 1) - 1;
+        Range range = sorted[before >= 0 ? before : sorted.length - 1];
+        return range.contains(hash) ? range : null;
+    }
+
+    private CompletableFuture<Void> submit(Move move) {
+        long size = directory.resolve(move.filename()).toFile().length();
+        planned.incrementAndGet();
+        bytesPlanned.addAndGet(size * move.targets().size());
+        return CompletableFuture.runAsync(() -> execute(move, size), workers);
+    }
+
+    private void execute(Move move, long size) {
+        // The replica is gone, a move for it can never finish
+        if (!Files.exists(directory.resolve(move.filename()))) {
+            logger.log(Level.WARNING, "Replica " + move.filename() + " no longer exists, dropping its move");
+            if (pending.get(move.filename()) == move) {
+                catalog.remove(move.filename());
+                finish(move);
+            }
+            return;
+        }
+        boolean sent = true;
+        for (String target : move.targets()) {
+            if (!sendTo(target, move, size)) {
+                sent = false;
+                break;
+            }
+        }
+        // A newer plan for the file took over, it finishes the file
+        if (pending.get(move.filename()) != move) {
+            return;
+        }
+        if (sent) {
+            sent = apply(move);
+        }
+        if (!sent) {
+            failed.incrementAndGet();
+            logger.log(Level.WARNING, "Unable to move " + move.filename() + " to " + move.targets()
+                    + ", retried on resume");
+            throw new CompletionException(new IOException("Unable to move " + move.filename()));
+        }
+        finish(move);
+        bytesMoved.addAndGet(size * move.targets().size());
+        long done = moved.incrementAndGet();
+        if (done % PROGRESS_INTERVAL == 0 || done + failed.get() == planned.get()) {
+            logger.log(Level.INFO, "Rebalance progress: " + progress());
+        }
+    }
+
+    private void finish(Move move) {
+        if (pending.remove(move.filename(), move) && Journal.fits(move.filename(), '\t')) {
+            journal.append("DONE\t" + move.filename());
+        }
+    }
+
+    // Send the replica to one node, waiting for a free slot and for the bandwidth of that node
+    private boolean sendTo(String target, Move move, long size) {
+        Semaphore slot = slots.computeIfAbsent(target, key -> new Semaphore(perNode));
+        try {
+            slot.acquire();
+            try {
+                throttles.computeIfAbsent(target, key -> new Throttle(bytesPerSecond)).acquire(size);
+                return transport.send(target, move.filename(), move.localOwnerIP(), move.replicas())
+                        .get(timeoutSeconds, TimeUnit.SECONDS);
+            } finally {
+                slot.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            logger.log(Level.WARNING, "Moving " + move.filename() + " to " + target + " failed", e);
+            return false;
+        }
+    }
+
+    // Drop the local copy or record the new replica holders
+    private boolean apply(Move move) {
+        if (!move.drop()) {
+            catalog.put(move.filename(), move.localOwnerIP(), self, move.replicas());
+            return true;
+        }
+        try {
+            Path replica = directory.resolve(move.filename()).normalize();
+            // Only names of files directly inside the folder
+            if (directory.equals(replica.getParent())) {
+                Files.deleteIfExists(replica);
+            }
+        } catch (IOException | InvalidPathException e) {
+            logger.log(Level.WARNING, "Unable to drop replica " + move.filename(), e);
+            return false;
+        }
+        catalog.remove(move.filename());
+        return true;
+    }
+
+    private void applyRecord(String record) {
+        String[] parts = record.split("\t", -1);
+        switch (parts[0]) {
+            case "MOVE" -> {
+                if (parts.length == 6) {
+                    pending.put(parts[1], new Move(parts[1], parts[2], split(parts[3]), split(parts[4]),
+                            Boolean.parseBoolean(parts[5])));
+                }
+            }
+            case "DONE" -> {
+                if (parts.length == 2) {
+                    pending.remove(parts[1]);
+                }
+            }
+            default -> logger.log(Level.WARNING, "Ignoring unknown rebalance record: " + record);
+        }
+    }
+
+    private List<String> snapshotRecords() {
+        List<String> records = new ArrayList<>(pending.size());
+        for (Move move : pending.values()) {
+            if (Journal.fits(move.filename(), '\t')) {
+                records.add(moveRecord(move));
+            }
+        }
+        return records;
+    }
+
+    private static String moveRecord(Move move) {
+        return "MOVE\t" + move.filename() + "\t" + move.localOwnerIP() + "\t" + String.join(",", move.targets())
+                + "\t" + String.join(",", move.replicas()) + "\t" + move.drop();
+    }
+
+    private static List<String> split(String nodes) {
+        return nodes.isEmpty() ? List.of() : List.of(nodes.split(","));
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        journal.close();
+    }
+
+    /*
+    Bandwidth limit towards one node. Every file reserves the time its bytes take at the configured rate
+    after the previous reservation and waits for its turn, 0 bytes per second is unlimited.
+     */
+    private static final class Throttle {
+        private final long bytesPerSecond;
+        private long next;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(long bytes) throws InterruptedException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(now, next);
+                next = start + (long) (bytes * 1e9 / bytesPerSecond);
+                wait = start - now;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
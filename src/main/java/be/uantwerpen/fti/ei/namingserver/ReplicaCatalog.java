@@ -0,0 +1,225 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Catalog of the replicas stored on this node: for every replicated file the IP of its local owner, of the
+ * node holding the replica and of all the nodes holding a replica of it. It replaces the fileLog.json that was
+ * re-read and rewritten for every replica.
+ * The catalog lives in memory, indexed by filename and by local owner, and every change is appended to a
+ * Journal, which group-commits concurrent writers and compacts the log into a snapshot from time to time.
+
+ * Records: "PUT\tfilename\tlocalOwnerIP\treplicatedOwnerIP\treplicas", "DEL\tfilename" and "CLEAR", with the
+ * replica holders comma separated. PUT records without the replica holders are read as a single replica.
+ */
+public class ReplicaCatalog implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ReplicaCatalog.class.getName());
+
+    public record Entry(String filename, String localOwnerIP, String replicatedOwnerIP, List<String> replicas) {}
+
+    private final Map<String, Entry> byFilename = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byLocalOwner = new ConcurrentHashMap<>();
+    private final Journal journal;
+
+    // Striped locks, so writers of different files do not wait for each other
+    private final Object[] locks = newLocks(64);
+
+    public ReplicaCatalog(File directory) throws IOException {
+        this(new File(directory, "replicas.journal"), new File(directory, "replicas.snapshot"), 1000);
+    }
+
+    public ReplicaCatalog(File logFile, File snapshotFile, int compactThreshold) throws IOException {
+        journal = new Journal(logFile, snapshotFile, compactThreshold);
+        journal.replay(this::applyRecord);
+    }
+
+    // Record that this node holds the only replica of the file
+    public void put(String filename, String localOwnerIP, String replicatedOwnerIP) {
+        put(filename, localOwnerIP, replicatedOwnerIP, List.of(replicatedOwnerIP));
+    }
+
+    // Record that this node holds one of the replicas of the file, replaces an earlier entry for the same file
+    public void put(String filename, String localOwnerIP, String replicatedOwnerIP, List<String> replicas) {
+        Journal.await(put(new Entry(filename, localOwnerIP, replicatedOwnerIP, List.copyOf(replicas))));
+        journal.compactIfNeeded(this::snapshotRecords);
+    }
+
+    // Record a batch of replicas of the same local owner, waiting once for the whole batch to be synced
+    public void putAll(Collection<String> filenames, String localOwnerIP, String replicatedOwnerIP,
+                       List<String> replicas) {
+        List<String> holders = List.copyOf(replicas);
+        List<CompletableFuture<Void>> written = new ArrayList<>(filenames.size());
+        for (String filename : filenames) {
+            written.add(put(new Entry(filename, localOwnerIP, replicatedOwnerIP, holders)));
+        }
+        Journal.await(CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0])));
+        journal.compactIfNeeded(this::snapshotRecords);
+    }
+
+    private CompletableFuture<Void> put(Entry entry) {
+        // One writer per filename at a time keeps both indexes and the journal order in line
+        synchronized (lockFor(entry.filename())) {
+            index(entry);
+            return append(putRecord(entry), entry.filename());
+        }
+    }
+
+    public void remove(String filename) {
+        CompletableFuture<Void> written;
+        synchronized (lockFor(filename)) {
+            if (unindex(filename) == null) {
+                return;
+            }
+            written = append("DEL\t" + filename, filename);
+        }
+        Journal.await(written);
+        journal.compactIfNeeded(this::snapshotRecords);
+    }
+
+    public void clear() {
+        Journal.await(clearLocked(0));
+    }
+
+    // Take every stripe, so no put or remove is half done while the catalog is cleared
+    private CompletableFuture<Void> clearLocked(int stripe) {
+        if (stripe == locks.length) {
+            byFilename.clear();
+            byLocalOwner.clear();
+            return journal.append("CLEAR");
+        }
+        synchronized (locks[stripe]) {
+            return clearLocked(stripe + 1);
+        }
+    }
+
+    public Entry get(String filename) {
+        return byFilename.get(filename);
+    }
+
+    // Files whose local owner is the given node
+    public Set<String> filesOwnedBy(String localOwnerIP) {
+        Set<String> files = byLocalOwner.get(localOwnerIP);
+        return files == null ? Set.of() : Set.copyOf(files);
+    }
+
+    public Set<String> localOwners() {
+        return Set.copyOf(byLocalOwner.keySet());
+    }
+
+    public Collection<Entry> entries() {
+        return List.copyOf(byFilename.values());
+    }
+
+    public int size() {
+        return byFilename.size();
+    }
+
+    public boolean isEmpty() {
+        return byFilename.isEmpty();
+    }
+
+    // Names that do not fit in the journal are only kept in memory
+    private CompletableFuture<Void> append(String record, String filename) {
+        if (!Journal.fits(filename, '\t')) {
+            logger.log(Level.WARNING, "Not persisting replica with unsupported name: " + filename);
+            return CompletableFuture.completedFuture(null);
+        }
+        return journal.append(record);
+    }
+
+    private void index(Entry entry) {
+        Entry previous = byFilename.put(entry.filename(), entry);
+        if (previous != null && !previous.localOwnerIP().equals(entry.localOwnerIP())) {
+            removeFromOwner(previous);
+        }
+        // Add inside compute, a set that is emptied concurrently is dropped from the map atomically
+        byLocalOwner.compute(entry.localOwnerIP(), (owner, files) -> {
+            Set<String> set = files == null ? ConcurrentHashMap.newKeySet() : files;
+            set.add(entry.filename());
+            return set;
+        });
+    }
+
+    private Entry unindex(String filename) {
+        Entry previous = byFilename.remove(filename);
+        if (previous != null) {
+            removeFromOwner(previous);
+        }
+        return previous;
+    }
+
+    private void removeFromOwner(Entry entry) {
+        byLocalOwner.computeIfPresent(entry.localOwnerIP(), (owner, files) -> {
+            files.remove(entry.filename());
+            return files.isEmpty() ? null : files;
+        });
+    }
+
+    private static Object[] newLocks(int count) {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private Object lockFor(String filename) {
+        return locks[(filename.hashCode() & 0x7FFFFFFF) % locks.length];
+    }
+
+    private void applyRecord(String record) {
+        String[] parts = record.split("\t");
+        switch (parts[0]) {
+            case "PUT" -> {
+                if (parts.length == 4) {
+                    index(new Entry(parts[1], parts[2], parts[3], List.of(parts[3])));
+                } else if (parts.length == 5) {
+                    index(new Entry(parts[1], parts[2], parts[3], List.of(parts[4].split(","))));
+                }
+            }
+            case "DEL" -> {
+                if (parts.length == 2) {
+                    unindex(parts[1]);
+                }
+            }
+            case "CLEAR" -> {
+                byFilename.clear();
+                byLocalOwner.clear();
+            }
+            default -> logger.log(Level.WARNING, "Ignoring unknown catalog record: " + record);
+        }
+    }
+
+    // Current state as records for a compacted snapshot
+    private List<String> snapshotRecords() {
+        List<String> records = new ArrayList<>(byFilename.size());
+        for (Entry entry : byFilename.values()) {
+            if (Journal.fits(entry.filename(), '\t')) {
+                records.add(putRecord(entry));
+            }
+        }
+        return records;
+    }
+
+    private static String putRecord(Entry entry) {
+        return "PUT\t" + entry.filename() + "\t" + entry.localOwnerIP() + "\t" + entry.replicatedOwnerIP() + "\t"
+                + String.join(",", entry.replicas());
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+    }
+}
@@ -0,0 +1,395 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Immutable, sorted snapshot of the ring of nodes known to the naming server.
+ * The IDs are kept in a primitive array with a parallel array of node records, so owner, predecessor
+ * and successor lookups are binary searches that do not allocate.
+ * A new snapshot is built on every membership change and published by the server through a volatile
+ * reference, readers never lock.
+
+ * Every node can own several positions, or tokens, on the ring: its ID and tokensPerNode - 1 virtual ones
+ * derived from its IP by the HashStrategy. More tokens split the ring in more, smaller ranges, which evens out
+ * how much of it every node owns. Owner, predecessor and successor queries work on the tokens and answer with
+ * node IDs, a predecessor or successor is always another node. When two tokens collide, the ID of a node wins
+ * over a virtual token and otherwise the node with the lowest ID keeps it.
+ */
+public final class Ring {
+
+    private static final Ring EMPTY = new Ring(new long[0], new NodeInfo[0], new long[0], new long[0], 1,
+            HashStrategy.MURMUR3);
+
+    // Sorted node IDs and the record of the node at the same index
+    private final long[] ids;
+    private final NodeInfo[] nodes;
+
+    // Sorted tokens and the ID of the node owning the token at the same index
+    private final long[] tokens;
+    private final long[] tokenOwners;
+    private final int tokensPerNode;
+
+    // Hash the IDs and tokens were made with, defines the size of the ring
+    private final HashStrategy strategy;
+
+    private Ring(long[] ids, NodeInfo[] nodes, long[] tokens, long[] tokenOwners, int tokensPerNode,
+                 HashStrategy strategy) {
+        this.ids = ids;
+        this.nodes = nodes;
+        this.tokens = tokens;
+        this.tokenOwners = tokenOwners;
+        this.tokensPerNode = tokensPerNode;
+        this.strategy = strategy;
+    }
+
+    public static Ring empty() {
+        return EMPTY;
+    }
+
+    // Build a snapshot with one token per node
+    public static Ring of(Map<Long, NodeInfo> nodes) {
+        return of(nodes, 1, Utils.hashStrategy());
+    }
+
+    // Build a snapshot from the membership map, the map itself is only read once
+    public static Ring of(Map<Long, NodeInfo> nodes, int tokensPerNode, HashStrategy strategy) {
+        if (tokensPerNode < 1) {
+            throw new IllegalArgumentException("A node needs at least one token: " + tokensPerNode);
+        }
+        int size = 0;
+        long[] ids = new long[nodes.size()];
+        NodeInfo[] unsorted = new NodeInfo[nodes.size()];
+        int[] order = new int[nodes.size()];
+        for (Map.Entry<Long, NodeInfo> entry : nodes.entrySet()) {
+            // The map may grow while we copy it, the next snapshot will pick the extra entries up
+            if (size == ids.length) {
+                break;
+            }
+            ids[size] = entry.getKey();
+            unsorted[size] = entry.getValue();
+            order[size] = size;
+            size++;
+        }
+
+        // Sort the IDs and move the records along with them
+        long[] sortedIds = Arrays.copyOf(ids, size);
+        order = Arrays.copyOf(order, size);
+        sort(sortedIds, order, new int[size], 0, size - 1);
+        NodeInfo[] sortedNodes = new NodeInfo[size];
+        for (int i = 0; i < size; i++) {
+            sortedNodes[i] = unsorted[order[i]];
+        }
+        return withTokens(sortedIds, sortedNodes, tokensPerNode, strategy);
+    }
+
+    /*
+    Place the tokens of every node. Tokens are sorted on their position and then on a rank that puts node IDs
+    before virtual tokens and lower nodes first, so of colliding tokens the first one after sorting is kept.
+     */
+    private static Ring withTokens(long[] ids, NodeInfo[] nodes, int tokensPerNode, HashStrategy strategy) {
+        int total = ids.length * tokensPerNode;
+        long[] positions = new long[total];
+        int[] owners = new int[total];
+        int[] ranks = new int[total];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            for (int t = 0; t < tokensPerNode; t++) {
+                positions[count] = t == 0 ? ids[i] : strategy.token(nodes[i].ip(), t);
+                owners[count] = i;
+                ranks[count] = t == 0 ? i : ids.length + i;
+                count++;
+            }
+        }
+        sort(positions, owners, ranks, 0, total - 1);
+
+        long[] tokens = new long[total];
+        long[] tokenOwners = new long[total];
+        int size = 0;
+        for (int i = 0; i < total; i++) {
+            if (size > 0 && tokens[size - 1] == positions[i]) {
+                continue;
+            }
+            tokens[size] = positions[i];
+            tokenOwners[size] = ids[owners[i]];
+            size++;
+        }
+        return new Ring(ids, nodes, Arrays.copyOf(tokens, size), Arrays.copyOf(tokenOwners, size),
+                tokensPerNode, strategy);
+    }
+
+    // Quicksort on the keys and then the ranks, the values move along, without boxing
+    private static void sort(long[] keys, int[] values, int[] ranks, int low, int high) {
+        while (high - low > 16) {
+            int middle = (low + high) >>> 1;
+            long pivotKey = keys[middle];
+            int pivotRank = ranks[middle];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(keys[i], ranks[i], pivotKey, pivotRank) < 0) {
+                    i++;
+                }
+                while (compare(keys[j], ranks[j], pivotKey, pivotRank) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, ranks, i++, j--);
+                }
+            }
+            // Recurse into the smaller part, loop on the bigger one
+            if (j - low < high - i) {
+                sort(keys, values, ranks, low, j);
+                low = i;
+            } else {
+                sort(keys, values, ranks, i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(keys[j], ranks[j], keys[j - 1], ranks[j - 1]) < 0; j--) {
+                swap(keys, values, ranks, j, j - 1);
+            }
+        }
+    }
+
+    private static int compare(long key, int rank, long otherKey, int otherRank) {
+        int result = Long.compare(key, otherKey);
+        return result != 0 ? result : Integer.compare(rank, otherRank);
+    }
+
+    private static void swap(long[] keys, int[] values, int[] ranks, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+        int rank = ranks[i];
+        ranks[i] = ranks[j];
+        ranks[j] = rank;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    public int tokensPerNode() {
+        return tokensPerNode;
+    }
+
+    // Tokens on the ring, fewer than size() * tokensPerNode() when tokens collided
+    public int tokenCount() {
+        return tokens.length;
+    }
+
+    public HashStrategy strategy() {
+        return strategy;
+    }
+
+    // Records of all nodes, sorted by ID
+    public List<NodeInfo> nodes() {
+        return List.of(nodes);
+    }
+
+    public boolean contains(long id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    public NodeInfo node(long id) {
+        int index = Arrays.binarySearch(ids, id);
+        return index >= 0 ? nodes[index] : null;
+    }
+
+    /*
+    The owner of a hash is the node with the largest token strictly smaller than the hash.
+    If there is no such token, the node with the biggest token owns it.
+     */
+    public long ownerOf(long hash) {
+        return tokenOwners[ownerIndex(hash)];
+    }
+
+    // Owner of a hash when the given node is left out, the node itself when it is the only one
+    public long ownerOf(long hash, long excludedId) {
+        return before(ownerIndex(hash), excludedId, true);
+    }
+
+    /*
+    Up to count distinct nodes that hold a hash, leaving out the given node: its owner followed by the nodes that
+    would own it next, going backwards over the tokens. Fewer when the ring does not have that many other nodes.
+     */
+    public long[] replicasOf(long hash, long excludedId, int count) {
+        int start = ownerIndex(hash);
+        long[] replicas = new long[Math.min(count, ids.length)];
+        int found = 0;
+        for (int i = 0; i < tokens.length && found < replicas.length; i++) {
+            long owner = tokenOwners[(start - i + tokens.length) % tokens.length];
+            if (owner != excludedId && !contains(replicas, found, owner)) {
+                replicas[found++] = owner;
+            }
+        }
+        return found == replicas.length ? replicas : Arrays.copyOf(replicas, found);
+    }
+
+    /**
+     * Hashes from (exclusive) up to to (inclusive) whose first owners changed, wrapping around when from >= to.
+     * owners are the first distinct nodes holding the hashes after the change, in chain order.
+     */
+    public record Range(long from, long to, long[] owners) {
+        public boolean contains(long hash) {
+            return from < to ? hash > from && hash <= to : hash > from || hash <= to;
+        }
+    }
+
+    /*
+    Ranges of hashes whose first depth owners differ between two snapshots. Only the tokens of both rings
+    bound a range where ownership can change, so the rings are compared interval by interval between their
+    merged tokens and adjacent intervals with the same new owners are joined.
+     */
+    public static List<Range> movedRanges(Ring before, Ring after, int depth) {
+        if (before.isEmpty() || after.isEmpty()) {
+            return List.of();
+        }
+        long[] bounds = new long[before.tokens.length + after.tokens.length];
+        System.arraycopy(before.tokens, 0, bounds, 0, before.tokens.length);
+        System.arraycopy(after.tokens, 0, bounds, before.tokens.length, after.tokens.length);
+        Arrays.sort(bounds);
+        int count = 0;
+        for (long bound : bounds) {
+            if (count == 0 || bounds[count - 1] != bound) {
+                bounds[count++] = bound;
+            }
+        }
+
+        List<Range> moved = new ArrayList<>();
+        long from = 0;
+        long[] owners = null;
+        for (int i = 0; i < count; i++) {
+            long[] chain = after.chainAt(bounds[i], depth);
+            boolean changed = !Arrays.equals(before.chainAt(bounds[i], depth), chain);
+            if (owners != null && (!changed || !Arrays.equals(owners, chain))) {
+                moved.add(new Range(from, bounds[i], owners));
+                owners = null;
+            }
+            if (changed && owners == null) {
+                from = bounds[i];
+                owners = chain;
+            }
+        }
+        if (owners != null) {
+            // The last interval wraps around to the first bound, join it with a first range of the same owners
+            if (!moved.isEmpty() && moved.get(0).from() == bounds[0] && Arrays.equals(moved.get(0).owners(), owners)) {
+                moved.set(0, new Range(from, moved.get(0).to(), owners));
+            } else {
+                moved.add(new Range(from, bounds[0], owners));
+            }
+        }
+        return moved;
+    }
+
+    // First depth distinct owners of the hashes right after a position
+    private long[] chainAt(long position, int depth) {
+        int index = Arrays.binarySearch(tokens, position);
+        int start = index >= 0 ? index : -index - 2;
+        start = start < 0 ? tokens.length - 1 : start;
+        long[] chain = new long[Math.min(depth, ids.length)];
+        int found = 0;
+        for (int i = 0; i < tokens.length && found < chain.length; i++) {
+            long owner = tokenOwners[(start - i + tokens.length) % tokens.length];
+            if (!contains(chain, found, owner)) {
+                chain[found++] = owner;
+            }
+        }
+        return chain;
+    }
+
+    private static boolean contains(long[] values, int length, long value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ID of the node that comes before the given ID, wrapping around at the start of the ring.
+    // The ID does not have to be part of the ring.
+    public long previousOf(long id) {
+        checkNotEmpty();
+        int index = Arrays.binarySearch(tokens, id);
+        int insertion = index >= 0 ? index : -index - 1;
+        return before(insertion == 0 ? tokens.length - 1 : insertion - 1, id, false);
+    }
+
+    // ID of the node that comes after the given ID, wrapping around at the end of the ring.
+    // The ID does not have to be part of the ring.
+    public long nextOf(long id) {
+        checkNotEmpty();
+        int index = Arrays.binarySearch(tokens, id);
+        int next = index >= 0 ? index + 1 : -index - 1;
+        next = next == tokens.length ? 0 : next;
+        for (int i = 0; i < tokens.length; i++) {
+            long owner = tokenOwners[(next + i) % tokens.length];
+            if (owner != id) {
+                return owner;
+            }
+        }
+        return tokenOwners[next];
+    }
+
+    // First owner from the token at start going backwards that is not the excluded node
+    private long before(int start, long excludedId, boolean keepExcluded) {
+        for (int i = 0; i < tokens.length; i++) {
+            long owner = tokenOwners[(start - i + tokens.length) % tokens.length];
+            if (owner != excludedId) {
+                return owner;
+            }
+        }
+        return keepExcluded ? excludedId : tokenOwners[start];
+    }
+
+    private int ownerIndex(long hash) {
+        checkNotEmpty();
+        int index = Arrays.binarySearch(tokens, hash);
+        // Position of the first token that is >= hash, the owner sits right before it
+        int insertion = index >= 0 ? index : -index - 1;
+        return insertion == 0 ? tokens.length - 1 : insertion - 1;
+    }
+
+    /*
+    Share of the ring every node owns, by node ID. A token owns the positions after it up to and including
+    the next token, the last token wraps around to the first one.
+     */
+    public Map<Long, Double> ownership() {
+        Map<Long, Double> owned = new TreeMap<>();
+        for (long id : ids) {
+            owned.put(id, 0.0);
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            double share = tokens.length == 1 ? 1.0
+                    : strategy.fraction(strategy.distance(tokens[i], tokens[(i + 1) % tokens.length]));
+            owned.merge(tokenOwners[i], share, Double::sum);
+        }
+        return owned;
+    }
+
+    private void checkNotEmpty() {
+        if (ids.length == 0) {
+            throw new NoSuchElementException("Ring is empty");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return tokensPerNode == 1 ? "Ring" + Arrays.toString(ids)
+                : "Ring" + Arrays.toString(ids) + " with " + tokens.length + " tokens";
+    }
+}
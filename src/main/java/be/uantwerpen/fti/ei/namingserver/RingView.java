@@ -0,0 +1,238 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copy of the ring of the naming server kept by a node, so it resolves the owner of a file without asking the
+ * server. Every membership change of the server raises its ring epoch and is multicast as a RING_DELTA.
+ * Deltas are applied in epoch order, deltas that run ahead are held back until the missing ones arrive.
+ * When a delta is missing, or the server restarted and counts its epochs again, the view asks for the whole
+ * ring, which the server sends back as RING_SNAPSHOT frames.
+
+ * The incarnation of the server tells its restarts apart, the epoch only increases within one incarnation.
+ */
+public class RingView {
+
+    private static final Logger logger = Logger.getLogger(RingView.class.getName());
+
+    // Deltas held back while waiting for a missing one, more means the view asks for a snapshot
+    private static final int MAX_AHEAD = 64;
+    // A snapshot is asked again when it did not arrive within this time
+    private static final long REQUEST_INTERVAL_MILLIS = 1000;
+
+    private volatile Ring ring = Ring.empty();
+
+    private final Runnable requestSnapshot;
+
+    // Guarded by this
+    private final Map<Long, NodeInfo> members = new HashMap<>();
+    private final TreeMap<Long, String[]> ahead = new TreeMap<>();
+    private String incarnation;
+    private long epoch = -1;
+    private int tokensPerNode = 1;
+    private HashStrategy strategy = Utils.hashStrategy();
+    private boolean requested;
+    private long requestedAt;
+
+    // Snapshot being received and its frames that arrived, frames of another snapshot start it over
+    private String snapshotKey;
+    private final Map<Long, NodeInfo> snapshot = new HashMap<>();
+    private final BitSet snapshotReceived = new BitSet();
+
+    public RingView(Runnable requestSnapshot) {
+        this.requestSnapshot = requestSnapshot;
+    }
+
+    // Current ring, empty until the first snapshot arrived
+    public Ring ring() {
+        return ring;
+    }
+
+    public synchronized long epoch() {
+        return epoch;
+    }
+
+    // IP of the node that owns the file, empty while the ring is unknown
+    public String ownerOf(String filename) {
+        Ring ring = this.ring;
+        if (ring.isEmpty()) {
+            return "";
+        }
+        return ring.node(ring.ownerOf(ring.strategy().hash(filename))).ip();
+    }
+
+    // Ask for the whole ring, unless a request is still underway
+    public synchronized void refresh() {
+        long now = System.nanoTime() / 1_000_000;
+        if (requested && now - requestedAt < REQUEST_INTERVAL_MILLIS) {
+            return;
+        }
+        requested = true;
+        requestedAt = now;
+        requestSnapshot.run();
+    }
+
+    public void delta(Message message) {
+        delta(message.string(2), message.long0(), message.string(1), message.string(0));
+    }
+
+    /*
+    Apply a delta. An old or repeated one is dropped, one ahead of the next epoch is held back and the ring
+    is asked for in full, the snapshot answers it.
+     */
+    public void delta(String incarnation, long epoch, String operation, String ip) {
+        boolean missing;
+        synchronized (this) {
+            if (!incarnation.equals(this.incarnation)) {
+                // Another server, or the same one restarted: only a snapshot tells where its epochs start
+                missing = true;
+            } else if (epoch <= this.epoch) {
+                return;
+            } else {
+                ahead.put(epoch, new String[] { operation, ip });
+                drain();
+                missing = !ahead.isEmpty();
+                if (ahead.size() > MAX_AHEAD) {
+                    ahead.pollFirstEntry();
+                }
+            }
+        }
+        if (missing) {
+            refresh();
+        }
+    }
+
+    /*
+    Collect the frames of a snapshot, once every one of them arrived it replaces the ring. A snapshot that is
+    sent again has the same key, frames that already arrived are ignored.
+     */
+    public synchronized void snapshot(Message message) {
+        int frame = frameIndex(message.long1());
+        int frames = frameCount(message.long1());
+        if (frame >= frames) {
+            return;
+        }
+        String key = message.string(0) + " " + message.string(1) + " " + frames;
+        if (!key.equals(snapshotKey)) {
+            snapshotKey = key;
+            snapshot.clear();
+            snapshotReceived.clear();
+        }
+        if (snapshotReceived.get(frame)) {
+            return;
+        }
+        snapshotReceived.set(frame);
+        message.forEachEntry((id, ip) -> {
+            NodeInfo node = nodeInfo(id, ip);
+            if (node != null) {
+                snapshot.put(id, node);
+            }
+        });
+        if (snapshotReceived.cardinality() < frames) {
+            return;
+        }
+
+        long snapshotEpoch = Long.parseLong(message.string(1));
+        if (message.string(0).equals(incarnation) && snapshotEpoch <= epoch) {
+            // Deltas got ahead of this snapshot while it was underway
+            snapshotKey = null;
+            return;
+        }
+        if (!message.string(0).equals(incarnation)) {
+            ahead.clear();
+        }
+        incarnation = message.string(0);
+        epoch = snapshotEpoch;
+        tokensPerNode = Integer.parseInt(message.string(2));
+        strategy = HashStrategy.named(message.string(3));
+        members.clear();
+        members.putAll(snapshot);
+        snapshot.clear();
+        snapshotKey = null;
+        requested = false;
+        ahead.headMap(epoch, true).clear();
+        if (!drain()) {
+            ring = Ring.of(members, tokensPerNode, strategy);
+        }
+        logger.log(Level.INFO, "Ring snapshot of epoch " + epoch + " with " + members.size() + " nodes");
+    }
+
+    // Apply the held back deltas that follow the current epoch and publish the ring, false when there were none
+    private boolean drain() {
+        boolean changed = false;
+        while (!ahead.isEmpty() && ahead.firstKey() == epoch + 1) {
+            String[] delta = ahead.pollFirstEntry().getValue();
+            apply(delta[0], delta[1]);
+            epoch++;
+            changed = true;
+        }
+        if (changed) {
+            ring = Ring.of(members, tokensPerNode, strategy);
+        }
+        return changed;
+    }
+
+    private void apply(String operation, String ip) {
+        long id = strategy.hash(ip);
+        switch (operation) {
+            case "ADD" -> {
+                NodeInfo node = nodeInfo(id, ip);
+                if (node != null) {
+                    members.put(id, node);
+                }
+            }
+            case "REMOVE" -> members.remove(id);
+            case "CLEAR" -> members.clear();
+            default -> logger.log(Level.WARNING, "Ignoring unknown ring delta: " + operation);
+        }
+    }
+
+    private static NodeInfo nodeInfo(long id, String ip) {
+        try {
+            return NodeInfo.of(id, ip);
+        } catch (UnknownHostException e) {
+            logger.log(Level.WARNING, "Unable to resolve node " + ip, e);
+            return null;
+        }
+    }
+
+    // long1 of a snapshot frame: its index in the upper half, the number of frames in the lower half
+    static long frameNumber(int index, int count) {
+        return (long) index << 32 | count;
+    }
+
+    static int frameIndex(long frameNumber) {
+        return (int) (frameNumber >>> 32);
+    }
+
+    static int frameCount(long frameNumber) {
+        return (int) frameNumber;
+    }
+
+    // Frames of a snapshot of the ring, every frame carries its index and the number of frames
+    public static List<byte[]> snapshotFrames(String incarnation, long epoch, Ring ring, int maxFrameSize) {
+        String[] strings = { incarnation, String.valueOf(epoch), String.valueOf(ring.tokensPerNode()),
+                ring.strategy().name() };
+        List<byte[]> frames = new ArrayList<>();
+        Message.BatchWriter batch = new Message.BatchWriter(Message.RING_SNAPSHOT, strings, maxFrameSize, frames::add);
+        for (NodeInfo node : ring.nodes()) {
+            batch.add(node.id(), node.ip());
+        }
+        batch.flush();
+        if (frames.isEmpty()) {
+            frames.add(Message.encode(Message.RING_SNAPSHOT, 0, 1, strings));
+        }
+        for (int i = 0; i < frames.size(); i++) {
+            Message.setLong1(frames.get(i), frameNumber(i, frames.size()));
+        }
+        return frames;
+    }
+}
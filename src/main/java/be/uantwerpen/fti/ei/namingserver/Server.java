@@ -4,9 +4,11 @@ import java.io.File;
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -16,7 +18,15 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * It provides functionality to add and remove nodes, as well as to retrieve the hostname associated with a given filename.
 
  * The NS utilizes a hash-based algorithm to determine the node responsible for storing a file based on its hashcode.
- * Additionally, it employs a JSON file to persist node information for consistency across sessions.
+ * Membership changes are persisted in an append-only journal that is replayed on startup,
+ * the JSON file is only an export of the current map.
+
+ * Nodes send a heartbeat every second. A node whose heartbeats stop is declared failed by the FailureDetector,
+ * removed from the map and announced to the other nodes, which repair the ring and re-replicate the files that
+ * had a replica on it.
+
+ * Every membership change raises the ring epoch and is multicast as a delta, nodes keep a RingView of the ring
+ * to resolve file owners themselves and ask for the whole ring when they miss a delta.
  */
 
 public class Server {
@@ -27,46 +37,131 @@ public class Server {
     // Logger to log details in a try block
     private final Logger logger = Logger.getLogger(Server.class.getName());
 
-    // Map to save the hash corresponding to the node's ip
-    private final ConcurrentHashMap<Integer, InetAddress> nodesMap = new ConcurrentHashMap<>();
+    // Map to save the hash corresponding to the node's record
+    private final ConcurrentHashMap<Long, NodeInfo> nodesMap = new ConcurrentHashMap<>();
+
+    // Sorted snapshot of the nodes map used for lookups, replaced on every membership change
+    private volatile Ring ring = Ring.empty();
 
-    // File to write to and read from
+    // Raised on every membership change, guarded by this. The nodes follow it to keep their copy of the ring.
+    private long epoch;
+    // Tells the epochs of this run apart from those of an earlier one
+    private final String incarnation = String.valueOf(System.currentTimeMillis());
+
+    // Membership of the ring as sent to nodes and clients that resolve owners themselves
+    public record RingState(String incarnation, long epoch, int tokensPerNode, String hash, Map<Long, String> nodes) {}
+
+    // File to export the map to and import it from
     private final File jsonFile = new File("src/main/java/be/uantwerpen/fti/ei/namingserver/nodes.json");
 
-    // Executor to execute tasks on separate threads
-    private final ExecutorService executor;
+    // Write-ahead journal of membership changes, compacted into a snapshot every 1000 records
+    private final Journal journal;
+
+    // Event loop receiving the multicast and unicast messages from the nodes
+    private final MessageLoop messageLoop;
+
+    // Resolves host names of the nodes in the background, so lookups never wait on DNS
+    private final ScheduledExecutorService resolver = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ns-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Seconds between two re-resolutions of all the nodes
+    private static final long RESOLVE_INTERVAL = Long.getLong("ns.resolveInterval", 300);
+
+    // Tokens every node gets on the ring, its ID and ns.virtualNodes - 1 virtual ones
+    private static final int VIRTUAL_NODES = Integer.getInteger("ns.virtualNodes", 1);
+
+    // Nodes holding a replica of every file besides its local owner, fewer while the ring is smaller
+    private static final int REPLICATION_FACTOR = Integer.getInteger("ns.replicationFactor", 1);
+
+    // Interval at which the nodes send their heartbeats
+    private static final long HEARTBEAT_INTERVAL = Long.getLong("ns.heartbeatMillis", 1000);
+
+    // Seconds the ring from before a failure is kept, to tell which files lost a replica on the failed node
+    private static final long REPAIR_WINDOW = Long.getLong("ns.repairWindow", 120);
+
+    // Declares nodes failed once their heartbeats stop
+    private final FailureDetector detector = new FailureDetector(HEARTBEAT_INTERVAL, this::processFailure);
+
+    // Ring from just before a node failed, by IP of the failed node
+    private final Map<String, Ring> failedRings = new ConcurrentHashMap<>();
+
+    private static final Metrics.Histogram LOOKUP_TIME = Metrics.global().histogram("ns_lookup_seconds",
+            "Time to resolve the host of a file");
 
     // Constructor to read the starting data from the JSON file
     public Server(){
         this.IP = Utils.findLocalIP();
         logger.log(Level.INFO, "Server IP: " + IP);
 
-        nodesMap.clear(); // clear the map when server starts up
-        saveMapToJSON();
+        // Restore the membership from the journal
+        try {
+            journal = new Journal(new File(jsonFile.getParentFile(), "nodes.journal"),
+                    new File(jsonFile.getParentFile(), "nodes.snapshot"), 1000);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        journal.replay(this::applyRecord);
+        publishRing();
+        logger.log(Level.INFO, "Restored " + nodesMap.size() + " nodes from the journal");
+
+        Metrics metrics = Metrics.global();
+        metrics.gauge("ns_nodes", "Nodes in the ring", nodesMap::size);
+        metrics.gauge("ns_ring_epoch", "Epoch of the ring", this::getRingEpoch);
+        metrics.counter("ns_failures_total", "Nodes declared failed", () -> detector.stats().failures());
+        metrics.counter("ns_false_positives_total", "Nodes declared failed that were still alive",
+                () -> detector.stats().falsePositives());
 
-        // Executor to run tasks on different threads
-        executor = Executors.newFixedThreadPool(3);
+        try {
+            messageLoop = new MessageLoop("server");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         runFunctionsOnThreads();
 
     }
 
-    // Thread executor
+    // Start listening for messages and the background tasks
     public void runFunctionsOnThreads() {
 
         // Listen to multicast messages from nodes
-        executor.submit(this::listenForNodesMulticast);
+        try {
+            messageLoop.listenMulticast("multicast from nodes", "224.0.0.1", Ports.multicastPort,
+                    this::processReceivedMessage);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to open socket", e);
+        }
 
         // Listen to unicast messages from nodes
-        executor.submit(this::receiveUnicast);
+        try {
+            messageLoop.listen("unicast from nodes", Ports.unicastPort, this::processReceivedMessage);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "unable to open server unicast socket", e);
+        }
+        messageLoop.start();
+
+        // Refresh the host names of the nodes on a schedule
+        resolver.scheduleWithFixedDelay(this::resolveNodes, RESOLVE_INTERVAL, RESOLVE_INTERVAL, TimeUnit.SECONDS);
+
+        // Nodes restored from the journal have to keep sending heartbeats to stay in the ring
+        for (long id : nodesMap.keySet()) {
+            detector.heartbeat(id);
+        }
+        detector.start();
 
         Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
 
     }
 
     private void shutdown(){
-        nodesMap.clear();
+        detector.close();
         saveMapToJSON();
-        executor.shutdown();
+        journal.close();
+        resolver.shutdownNow();
+        messageLoop.close();
+        Utils.flushUnicast();
     }
 
     /* Implementation of following algorithm :
@@ -74,95 +169,245 @@ public class Server {
     filename. Then the node with the smallest difference between its hash and the file
     hash is the owner of the file. If N is empty, the node with the biggest hash stores
     the requested file.
+    The lookup is a binary search on the sorted tokens of the ring snapshot.
      */
-    private int nodeOfFile(int fileHash, String sameIP) {
-
-        // Find all nodes with a hash smaller than or equal to the file hash but make sure it's not your own hash
-        List<Integer> nodeKeys = nodesMap.keySet().stream()
-                .filter(key -> key < fileHash)
-                .toList();
-
-        int replNodeId;
-        if (nodeKeys.isEmpty()) {
-
-            // If no such nodes exist, return the node with the largest hash
-            replNodeId = nodesMap.keySet().stream().mapToInt(Integer::intValue).max()
-                    .orElseThrow(NoSuchElementException::new);
-
-        } else {
+    static long nodeOfFile(Ring ring, long fileHash, String sameIP) {
+        // If host is target, the owner of the token before it
+        return ring.ownerOf(fileHash, Utils.hash(sameIP));
+    }
 
-            // Find the node with the smallest difference between its hash and the file hash
-            replNodeId =  nodeKeys.stream().min(Comparator.comparingInt(key -> Math.abs(key - fileHash)))
-                    .orElseThrow(NoSuchElementException::new);
+    /*
+    IPs of the nodes that hold a replica of the file, in chain order: the node of the file followed by the
+    nodes that would own it next, never the local owner itself. The announced IPs are used, so the nodes can
+    compare the replica holders with their own IP.
+     */
+    private List<String> replicasOfFile(Ring ring, long fileHash, String localOwnerIP) {
+        long[] ids = ring.replicasOf(fileHash, Utils.hash(localOwnerIP), REPLICATION_FACTOR);
+        List<String> replicas = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            replicas.add(ring.node(id).ip());
         }
+        return replicas;
+    }
 
-        // If host is target, return previous id
-        if (Utils.hash(sameIP) == replNodeId){
-            return getPreviousID(nodesMap.get(replNodeId).getHostName());
-        } else {
-            return replNodeId;
+    // Publish a new ring snapshot, called after every change to the nodes map
+    private synchronized void publishRing() {
+        ring = Ring.of(nodesMap, VIRTUAL_NODES, Utils.hashStrategy());
+    }
+
+    // Share of the ring every node owns, by host
+    public Map<String, Double> getLoad() {
+        Ring ring = this.ring;
+        Map<String, Double> load = new LinkedHashMap<>();
+        for (Map.Entry<Long, Double> entry : ring.ownership().entrySet()) {
+            load.put(ring.node(entry.getKey()).host(), entry.getValue());
         }
+        return load;
     }
 
     // Add a node by giving the ip as parameter
-    // First read from the JSON file to get the map
-    // Modify the map and save it to the JSON file
+    // The change is visible right away and the method returns once it is journaled
     public boolean addNode(String ip){
-        boolean nodeAdded = false;
         logger.log(Level.INFO, "Attempting to add node with IP: " + ip);
-        readJSONIntoMap();
-        int id = Utils.hash(ip);
-        if (nodesMap.containsKey(id)) {
-            logger.log(Level.INFO, ip + "already in the network");
-        } else {
-            try {
-                nodesMap.put(id, InetAddress.getByName(ip));
-                saveMapToJSON();  // Save every time a new node is added
-                logger.log(Level.INFO, ip + " successfully added to the network");
-                nodeAdded = true;
-            } catch (UnknownHostException e) {
-                logger.log(Level.WARNING, "Error occurred while adding entry", e);
+        long id = Utils.hash(ip);
+        NodeInfo node;
+        try {
+            node = NodeInfo.of(id, ip);
+        } catch (UnknownHostException e) {
+            logger.log(Level.WARNING, "Error occurred while adding entry", e);
+            return false;
+        }
+
+        CompletableFuture<Void> durable;
+        long version;
+        synchronized (this) {
+            if (nodesMap.putIfAbsent(id, node) != null) {
+                logger.log(Level.INFO, ip + " already in the network");
+                return false;
             }
+            publishRing();
+            version = ++epoch;
+            durable = journal.append("ADD " + id + " " + ip);
         }
-        return nodeAdded;
+        Journal.await(durable);
+        sendRingDelta(version, "ADD", ip);
+        journal.compactIfNeeded(this::membershipRecords);
+        resolver.execute(() -> resolveNode(id));
+        logger.log(Level.INFO, ip + " successfully added to the network");
+        return true;
     }
 
 
     // Delete a node from the map
     public boolean removeNode(String ip){
-        boolean nodeRemoved  = false;
-        readJSONIntoMap();
-        int id = Utils.hash(ip);
-        if (nodesMap.containsKey(id)) {
-            nodesMap.remove(id);
-            nodeRemoved = true;
+        long id = Utils.hash(ip);
+        CompletableFuture<Void> durable;
+        long version;
+        synchronized (this) {
+            if (nodesMap.remove(id) == null) {
+                return false;
+            }
+            publishRing();
+            version = ++epoch;
+            durable = journal.append("REMOVE " + id + " " + ip);
+        }
+        Journal.await(durable);
+        sendRingDelta(version, "REMOVE", ip);
+        journal.compactIfNeeded(this::membershipRecords);
+        return true;
+    }
+
+    // Remove every node from the map
+    public void clearNodes(){
+        CompletableFuture<Void> durable;
+        long version;
+        synchronized (this) {
+            nodesMap.clear();
+            publishRing();
+            version = ++epoch;
+            durable = journal.append("CLEAR");
+        }
+        Journal.await(durable);
+        sendRingDelta(version, "CLEAR", "");
+    }
+
+    /*
+    Apply a journal record to the map during replay. IDs are hashed again from the IP,
+    so a journal written with another hash strategy still replays to the right ring.
+     */
+    private void applyRecord(String record) {
+        String[] parts = record.split(" ");
+        try {
+            switch (parts[0]) {
+                case "ADD" -> {
+                    long id = Utils.hash(parts[2]);
+                    nodesMap.put(id, NodeInfo.of(id, parts[2]));
+                    resolver.execute(() -> resolveNode(id));
+                }
+                // Older records only hold the ID
+                case "REMOVE" -> nodesMap.remove(parts.length > 2 ? Utils.hash(parts[2]) : Long.parseLong(parts[1]));
+                case "CLEAR" -> nodesMap.clear();
+                default -> logger.log(Level.WARNING, "Unknown journal record: " + record);
+            }
+        } catch (UnknownHostException | RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to apply journal record: " + record, e);
+        }
+    }
+
+    // The current map as journal records, used as compacted snapshot
+    private List<String> membershipRecords() {
+        List<String> records = new ArrayList<>();
+        for (NodeInfo node : nodesMap.values()) {
+            records.add("ADD " + node.id() + " " + node.ip());
+        }
+        return records;
+    }
+
+    // Re-resolve every node, scheduled in the background
+    private void resolveNodes() {
+        for (Long id : nodesMap.keySet()) {
+            resolveNode(id);
         }
-        saveMapToJSON();
-        return nodeRemoved;
+    }
+
+    // Refresh the record of a node, the ring is only republished when the name or address changed
+    private void resolveNode(long id) {
+        NodeInfo node = nodesMap.get(id);
+        if (node == null) {
+            return;
+        }
+        try {
+            NodeInfo resolved = node.resolve();
+            if (resolved != node && nodesMap.replace(id, node, resolved)) {
+                publishRing();
+                logger.log(Level.INFO, "Resolved node " + id + " to " + resolved.host());
+            }
+        } catch (UnknownHostException e) {
+            logger.log(Level.WARNING, "Unable to resolve node " + node.ip(), e);
+        }
+    }
+
+    // Current snapshot of the ring, lookups done on one snapshot all see the same membership
+    public Ring getRing(){
+        return ring;
+    }
+
+    private synchronized long getRingEpoch() {
+        return epoch;
+    }
+
+    // Current ring with its epoch, for clients that resolve file owners themselves
+    public RingState getRingState() {
+        Ring ring;
+        long version;
+        synchronized (this) {
+            ring = this.ring;
+            version = epoch;
+        }
+        Map<Long, String> nodes = new LinkedHashMap<>();
+        for (NodeInfo node : ring.nodes()) {
+            nodes.put(node.id(), node.ip());
+        }
+        return new RingState(incarnation, version, ring.tokensPerNode(), ring.strategy().name(), nodes);
+    }
+
+    /*
+    Tell the nodes about a membership change. A delta that gets lost or overtaken shows up as a gap in the
+    epochs, the node then asks for the whole ring.
+     */
+    private void sendRingDelta(long version, String operation, String ip) {
+        Utils.sendMulticast("ring delta", Message.encode(Message.RING_DELTA, version, 0, ip, operation, incarnation),
+                Ports.multicastPort);
+    }
+
+    // Send the whole ring with its epoch to a node that missed a delta or just joined
+    private void sendRingSnapshot(String nodeIP) {
+        Ring ring;
+        long version;
+        synchronized (this) {
+            ring = this.ring;
+            version = epoch;
+        }
+        List<byte[]> frames = RingView.snapshotFrames(incarnation, version, ring, UnicastSender.MAX_DATAGRAM);
+        for (byte[] frame : frames) {
+            Utils.sendUnicast("ring snapshot", nodeIP, frame, Ports.nnPort);
+        }
+        logger.log(Level.INFO, "Sent the ring of epoch " + version + " to " + nodeIP + " in " + frames.size()
+                + " messages");
     }
 
     // Get the hostname of the node that hosts the file
     public String getFileHost(String filename){
+        return getFileHost(ring, filename);
+    }
+
+    // Get the hostname of the node that hosts the file in the given snapshot of the ring
+    public String getFileHost(Ring ring, String filename){
+        long start = System.nanoTime();
         String host = "";
-        // get the hash of the filename
-        int fileHash = Utils.hash(filename);
         try {
-            // calculate node ID
-            int nodeID = nodeOfFile(fileHash, IP);
-            // return hostname
-
-            host = nodesMap.get(nodeID).getHostName();
-
+            host = fileHost(ring, filename, IP);
         } catch (NoSuchElementException e) {
             logger.log(Level.WARNING, "Unable to find host for file");
         }
+        LOOKUP_TIME.recordSince(start);
         return host;
     }
 
+    // Hostname of the node that hosts the file, as seen from the host with the given IP
+    static String fileHost(Ring ring, String filename, String sameIP) {
+        // get the hash of the filename
+        long fileHash = Utils.hash(filename);
+        // calculate node ID
+        long nodeID = nodeOfFile(ring, fileHash, sameIP);
+        // return hostname
+        return ring.node(nodeID).host();
+    }
+
     /*
         The File consists of key-value pairs of type String, so when reading in the file, we get String objects.
-        To resolve this, we read the pairs into a String map after which we take these pairs, convert them
-        and put them into the nodesMap.
+        Every imported node is added like a bootstrapping one: journaled, announced as a ring delta and watched
+        by the failure detector, so a dead imported node is removed again.
      */
     public void readJSONIntoMap(){
         if (jsonFile.length() == 0){
@@ -170,13 +415,12 @@ public class Server {
         }
         try {
 
-            ObjectMapper mapper = new ObjectMapper();
-            Map<String, String> stringMap = mapper.readValue(jsonFile, HashMap.class);
+            Map<String, String> stringMap = readNodesJSON(jsonFile);
 
-            for (HashMap.Entry<String, String> entry : stringMap.entrySet()) {
-                Integer key = Integer.parseInt(entry.getKey());
-                InetAddress value = InetAddress.getByName(entry.getValue());
-                nodesMap.put(key, value);
+            for (String ip : stringMap.values()) {
+                if (addNode(ip)) {
+                    detector.heartbeat(Utils.hash(ip));
+                }
             }
 
             } catch (Exception e){
@@ -188,16 +432,7 @@ public class Server {
     public void saveMapToJSON(){
         try {
 
-            ObjectMapper mapper = new ObjectMapper();
-            Map<String, String> stringMap = new HashMap<>();
-
-            for (Map.Entry<Integer, InetAddress> entry : nodesMap.entrySet()) {
-                String key = entry.getKey().toString();
-                String value = entry.getValue().getHostAddress();
-                stringMap.put(key, value);
-            }
-
-            mapper.writeValue(jsonFile, stringMap);
+            writeNodesJSON(jsonFile, nodesMap);
 
         } catch (IOException e){
             logger.log(Level.WARNING, "An error occurred when writing to JSON file", e);
@@ -205,119 +440,288 @@ public class Server {
         }
     }
 
-    // This method listen to port 3000 for messages in the form COMMAND:hostname
-    // It then processes the received message
-    private void listenForNodesMulticast(){
-        try (MulticastSocket socket = new MulticastSocket(3000)){
-            logger.log(Level.INFO, "connected to multicast network");
-
-            // Join the multicast group
-            InetAddress group = InetAddress.getByName("224.0.0.1");
-            socket.joinGroup(group);
-
-            // Create buffer for incoming data
-            byte[] buffer = new byte[512];
-
-            while (true) {  // Keep listening indefinitely
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                String message = new String(packet.getData(), 0, packet.getLength());
-
-                logger.log(Level.INFO, "Received multicast message: " + message);
-                processReceivedMessage(message);
-            }
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "Unable to open socket", e);
-        }
+    // IPs of the nodes in the JSON file, by the string of their hash
+    static Map<String, String> readNodesJSON(File file) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.readValue(file, HashMap.class);
     }
 
-    // Receive unicast message from a node
-    // It then processes the message
-    public void receiveUnicast() {
-        try (DatagramSocket socket = new DatagramSocket(Ports.unicastPort)) {
-            logger.log(Level.INFO, "Connected to unicast receive socket");
-
-            byte[] buffer = new byte[512];
+    static void writeNodesJSON(File file, Map<Long, NodeInfo> nodes) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, String> stringMap = new HashMap<>();
 
-            while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                String message = new String(packet.getData(), 0, packet.getLength());
-
-                logger.log(Level.INFO, "Received unicast message: " + message);
-                processReceivedMessage(message);
-            }
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "unable to open server unicast socket", e);
+        for (Map.Entry<Long, NodeInfo> entry : nodes.entrySet()) {
+            String key = entry.getKey().toString();
+            String value = entry.getValue().address().getHostAddress();
+            stringMap.put(key, value);
         }
-    }
-
 
+        mapper.writeValue(file, stringMap);
+    }
 
-    private void processReceivedMessage(String message) {
-        String[] parts = message.split(":");
-        String command = parts[0];
-        String nodeIP = parts[1];
-        switch (command) {
-            case "BOOTSTRAP":
-                addNode(nodeIP);
+    // Handle a message received from a node, runs on the handler thread of the port it arrived on
+    private void processReceivedMessage(Message message, InetSocketAddress sender) {
+        String nodeIP = message.string(0);
+        switch (message.type()) {
+            case Message.BOOTSTRAP:
+                Ring before = ring;
+                if (addNode(nodeIP)) {
+                    announceRebalance(before, ring, nodeIP, "JOIN");
+                }
+                detector.rejoined(Utils.hash(nodeIP));
                 Utils.sendUnicast("send number of nodes", nodeIP,
-                        "NUMNODES" + ":" + nodesMap.size(), Ports.nnPort);
+                        Message.encode(Message.NUMNODES, nodesMap.size(), 0), Ports.nnPort);
                 break;
-            case "SHUTDOWN":
+            case Message.SHUTDOWN:
+                detector.remove(Utils.hash(nodeIP));
                 removeNode(nodeIP);
                 logger.log(Level.INFO, "Node with IP: " + nodeIP + " has shut down and been removed from the network");
                 break;
-            case "REPORT":
-                int fileHash = Integer.parseInt(parts[2]);
-                String filename = parts[3];
-                processFileReport(nodeIP, fileHash, filename);
+            case Message.HEARTBEAT:
+                processHeartbeat(nodeIP);
+                break;
+            case Message.FAILED:
+            case Message.REBALANCE:
+            case Message.RING_DELTA:
+                // Our own announcement, received back on the multicast group
+                break;
+            case Message.RING_REQUEST:
+                sendRingSnapshot(nodeIP);
                 break;
-            case "AIP":
-                String indication = parts[2];
-                sendIPOfPrevNodes(nodeIP, indication);
+            case Message.REPAIR_BATCH:
+                processFileRepairs(nodeIP, message);
                 break;
+            case Message.REPORT:
+                processFileReport(nodeIP, message.long0(), message.string(1));
+                break;
+            case Message.REPORT_BATCH:
+                processFileReports(nodeIP, message);
+                break;
+            case Message.DELETE_BATCH:
+                processFileDeletes(nodeIP, message);
+                break;
+            case Message.AIP:
+                if (message.string(1).equals("X")) {
+                    processLeave(nodeIP);
+                } else {
+                    sendIPOfPrevNodes(nodeIP, message.string(1));
+                }
+                break;
+            default:
+                logger.log(Level.WARNING, "Unexpected message " + Message.typeName(message.type()) + " from " + sender);
         }
     }
 
     // Process the file report sent by the node
-    private void processFileReport(String nodeIP, int fileHash, String filename) {
-        if (nodesMap.size() <= 1){
+    private void processFileReport(String nodeIP, long fileHash, String filename) {
+        Ring ring = this.ring;
+        if (ring.size() <= 1){
             return;
         }
-        int replicatedNodeID = nodeOfFile(fileHash, nodeIP);
-        InetAddress replicatedNodeIP = nodesMap.get(replicatedNodeID);
+        List<String> replicas = replicasOfFile(ring, fileHash, nodeIP);
+        String chain = String.join(",", replicas);
 
-        String replicateMessage = "REPLICATE" + ":" +
-                replicatedNodeIP.getHostName() + ":" + filename + ":" + fileHash;
+        byte[] replicateMessage = Message.encode(Message.REPLICATE, fileHash, 0, chain, filename);
 
-        String logMessage = "LOG" + ":" + nodeIP + ":" + filename + ":" + fileHash;
+        byte[] logMessage = Message.encode(Message.LOG, fileHash, 0, nodeIP, filename, chain);
 
         Utils.sendUnicast("file replication", nodeIP, replicateMessage, Ports.replPort);
 
         // Log the ownership of the file
-        logger.log(Level.INFO, "Replication Node: " + replicatedNodeIP.getHostName() + " " +
-                "now owns file with filename: " + filename + " and hash: " + fileHash);
+        logger.log(Level.INFO, "Replication Nodes: " + chain + " " +
+                "now own file with filename: " + filename + " and hash: " + fileHash);
+
+        // Notify the replicated nodes that they should create a file log
+        for (String replicatedHost : replicas) {
+            Utils.sendUnicast("file log", replicatedHost, logMessage, Ports.logPort);
+        }
+    }
+
+    /*
+    Process a batch of file reports against one snapshot of the ring. The REPLICATE instructions for the
+    reporting node are batched per chain of replica holders, the LOG instructions per holder and chain.
+     */
+    private void processFileReports(String nodeIP, Message message) {
+        replicateFiles(nodeIP, message, null, null);
+    }
+
+    /*
+    Files reported after a node failed. Only the files that had a replica on the failed node are replicated
+    again, to the holders that are new in their chain. Every holder is told the new replica set.
+    Without the ring from before the failure every file is replicated again.
+     */
+    private void processFileRepairs(String nodeIP, Message message) {
+        String failedIP = message.string(1);
+        Ring before = failedRings.get(failedIP);
+        if (before == null) {
+            logger.log(Level.INFO, "No ring from before the failure of " + failedIP + ", replicating all files of "
+                    + nodeIP);
+        }
+        replicateFiles(nodeIP, message, before, failedIP);
+    }
+
+    private void replicateFiles(String nodeIP, Message message, Ring before, String failedIP) {
+        Ring ring = this.ring;
+        if (ring.size() <= 1){
+            return;
+        }
+        Map<String, Message.BatchWriter> replicates = new HashMap<>();
+        Map<String, Message.BatchWriter> logs = new HashMap<>();
+        int reported = message.forEachEntry((fileHash, filename) -> {
+            List<String> replicas = replicasOfFile(ring, fileHash, nodeIP);
+            List<String> targets = replicas;
+            if (before != null) {
+                List<String> previous = replicasOfFile(before, fileHash, nodeIP);
+                if (!previous.contains(failedIP)) {
+                    return;
+                }
+                targets = new ArrayList<>(replicas);
+                targets.removeAll(previous);
+            }
+            String chain = String.join(",", replicas);
+            // After a failure the new chain may only hold nodes that already have a copy
+            if (!targets.isEmpty()) {
+                String targetChain = String.join(",", targets);
+                replicates.computeIfAbsent(targetChain, key -> new Message.BatchWriter(Message.REPLICATE_BATCH,
+                        targetChain, UnicastSender.MAX_DATAGRAM, frame -> Utils.sendUnicast("file replication",
+                                nodeIP, frame, Ports.replPort))).add(fileHash, filename);
+            }
+            for (String replicatedHost : replicas) {
+                logs.computeIfAbsent(replicatedHost + " " + chain, key -> new Message.BatchWriter(Message.LOG_BATCH,
+                        new String[] { nodeIP, chain }, UnicastSender.MAX_DATAGRAM, frame -> Utils.sendUnicast(
+                                "file log", replicatedHost, frame, Ports.logPort))).add(fileHash, filename);
+            }
+        });
+        replicates.values().forEach(Message.BatchWriter::flush);
+        logs.values().forEach(Message.BatchWriter::flush);
+
+        if (reported < message.long0()) {
+            logger.log(Level.WARNING, "Truncated file report from " + nodeIP + ": " + reported + " of "
+                    + message.long0() + " files");
+        }
+        logger.log(Level.INFO, "Node " + nodeIP + " reported " + reported + " files, replicated to "
+                + replicates.keySet());
+    }
 
-        // Notify the replicated node that it should create a file log
-        Utils.sendUnicast("file log", replicatedNodeIP.getHostName(), logMessage, Ports.logPort);
+    // Tell the replica holders of the files a node deleted to drop their replicas, one batch per holder
+    private void processFileDeletes(String nodeIP, Message message) {
+        Ring ring = this.ring;
+        if (ring.size() <= 1){
+            return;
+        }
+        Map<String, Message.BatchWriter> deletes = new HashMap<>();
+        int deleted = message.forEachEntry((fileHash, filename) -> {
+            for (String replicatedHost : replicasOfFile(ring, fileHash, nodeIP)) {
+                deletes.computeIfAbsent(replicatedHost, host -> new Message.BatchWriter(Message.DELETE_BATCH,
+                        nodeIP, UnicastSender.MAX_DATAGRAM, frame -> Utils.sendUnicast("file deletion", host,
+                                frame, Ports.logPort))).add(fileHash, filename);
+            }
+        });
+        deletes.values().forEach(Message.BatchWriter::flush);
+        logger.log(Level.INFO, "Node " + nodeIP + " deleted " + deleted + " files, replicas on " + deletes.keySet());
     }
 
-    private int getPreviousID(String IP){
-        ArrayList<Integer> hashes = new ArrayList<>(nodesMap.keySet());
-        Collections.sort(hashes);
+    /*
+    Heartbeat of a node. A node that is not in the map was declared failed while it was still alive, or the
+    server lost it. It is bootstrapped again on its behalf, so the other nodes link it back into the ring.
+     */
+    private void processHeartbeat(String nodeIP) {
+        long id = Utils.hash(nodeIP);
+        // Counts a false positive when the node was declared failed, before its bootstrap clears that
+        detector.heartbeat(id);
+        if (nodesMap.containsKey(id)) {
+            return;
+        }
+        logger.log(Level.WARNING, "Heartbeat of " + nodeIP + ", which is not in the network, bootstrapping it again");
+        Utils.sendMulticast("bootstrap on behalf of " + nodeIP, Message.encode(Message.BOOTSTRAP, id, 0, nodeIP),
+                Ports.multicastPort);
+    }
 
-        int index = hashes.indexOf(Utils.hash(IP));
-        int indexPrevNode= (index-1) >= 0 ? (index-1) : hashes.size() + (index-1);
+    /*
+    A node stopped sending heartbeats: remove it and tell the other nodes, with its neighbours, so they repair
+    the ring. The ring from before is kept for a while to handle the repair reports of the nodes.
+     */
+    private void processFailure(long id, long silentMillis) {
+        Ring before = ring;
+        NodeInfo node = before.node(id);
+        if (node == null) {
+            return;
+        }
+        String failedIP = node.address().getHostAddress();
+        long previousID = before.previousOf(id);
+        long nextID = before.nextOf(id);
+        if (!removeNode(failedIP)) {
+            return;
+        }
+        failedRings.put(failedIP, before);
+        resolver.schedule(() -> failedRings.remove(failedIP, before), REPAIR_WINDOW, TimeUnit.SECONDS);
+        Utils.sendMulticast("announce failure", Message.encode(Message.FAILED, previousID, nextID, failedIP),
+                Ports.multicastPort);
+        logger.log(Level.WARNING, "Node " + failedIP + " failed after " + silentMillis + " ms without heartbeat,"
+                + " removed from the network");
+    }
 
-        return hashes.get(indexPrevNode);
+    /*
+    A node is about to leave and asks to hand over its replicas. The ranges it held are announced against the
+    ring without it, it is only removed from the map once it sends its shutdown.
+     */
+    private void processLeave(String nodeIP) {
+        Ring before = ring;
+        if (!before.contains(Utils.hash(nodeIP))) {
+            return;
+        }
+        Map<Long, NodeInfo> remaining = new HashMap<>(nodesMap);
+        remaining.remove(Utils.hash(nodeIP));
+        announceRebalance(before, Ring.of(remaining, VIRTUAL_NODES, Utils.hashStrategy()), nodeIP, "LEAVE");
+    }
+
+    /*
+    Multicast the ranges whose replica holders differ between the two rings, with their holders after the
+    change. Every range lists the owners one deeper than the replication factor, the local owner of a file is
+    never one of its replicas. Every frame carries the number of frames, so the leaving node knows when it saw
+    the whole announcement. An announcement without ranges is a single empty frame.
+     */
+    private void announceRebalance(Ring before, Ring after, String nodeIP, String kind) {
+        List<Ring.Range> ranges = Ring.movedRanges(before, after, REPLICATION_FACTOR + 1);
+        String[] strings = { nodeIP, kind, String.valueOf(REPLICATION_FACTOR) };
+        List<byte[]> frames = new ArrayList<>();
+        Message.BatchWriter batch = new Message.BatchWriter(Message.REBALANCE, strings, UnicastSender.MAX_DATAGRAM,
+                frames::add);
+        for (Ring.Range range : ranges) {
+            StringJoiner owners = new StringJoiner(",");
+            for (long owner : range.owners()) {
+                owners.add(after.node(owner).ip());
+            }
+            batch.add(range.from(), range.to() + " " + owners);
+        }
+        batch.flush();
+        if (frames.isEmpty()) {
+            frames.add(Message.encode(Message.REBALANCE, 0, 1, strings));
+        }
+        for (byte[] frame : frames) {
+            Message.setLong1(frame, frames.size());
+            Utils.sendMulticast("announce rebalance", frame, Ports.multicastPort);
+        }
+        logger.log(Level.INFO, kind + " of " + nodeIP + " moves " + ranges.size() + " ranges, announced in "
+                + frames.size() + " messages");
+    }
+
+    // Number of failures, false positives and the time it took to detect the failures
+    public FailureDetector.Stats getFailureStats() {
+        return detector.stats();
+    }
+
+    private long getPreviousID(Ring ring, String IP){
+        return ring.previousOf(Utils.hash(IP));
     }
 
     public void sendIPOfPrevNodes(String ip, String indication) {
-        String ipOfPrev = nodesMap.get(getPreviousID(ip)).getHostName();
-        String ipOf2Prev = nodesMap.get(getPreviousID(ipOfPrev)).getHostName();
+        Ring ring = this.ring;
+        long prevID = getPreviousID(ring, ip);
+        String ipOfPrev = ring.node(prevID).host();
+        String ipOf2Prev = ring.node(ring.previousOf(prevID)).host();
         Utils.sendUnicast("Send IP of previous node and its previous node", ip,
-                "RIP:" + ipOfPrev + ":" + ipOf2Prev + ":" + indication, 9020);
+                Message.encode(Message.RIP, 0, 0, ipOfPrev, ipOf2Prev, indication), Ports.ripPort);
 
     }
 
@@ -368,8 +772,24 @@ public class Server {
                     break;
 
                 case "clear":
-                    nodesMap.clear();
+                    clearNodes();
+                    break;
+
+                case "export":
                     saveMapToJSON();
+                    System.out.println("Nodes exported to " + jsonFile.getPath());
+                    break;
+
+                case "import":
+                    readJSONIntoMap();
+                    break;
+
+                case "load":
+                    printLoad();
+                    break;
+
+                case "failures":
+                    System.out.println(getFailureStats());
                     break;
 
                 default:
@@ -380,6 +800,23 @@ public class Server {
     }
 
 
+    // Print the share of the ring every node owns and how far the busiest node is above the average
+    private void printLoad() {
+        Map<String, Double> load = getLoad();
+        if (load.isEmpty()) {
+            System.out.println("No nodes in the network");
+            return;
+        }
+        double max = 0;
+        for (Map.Entry<String, Double> entry : load.entrySet()) {
+            System.out.printf("%-20s %6.2f%%%n", entry.getKey(), entry.getValue() * 100);
+            max = Math.max(max, entry.getValue());
+        }
+        Ring ring = this.ring;
+        System.out.printf("%d nodes, %d tokens, busiest node owns %.2fx the average%n",
+                ring.size(), ring.tokenCount(), max * load.size());
+    }
+
     public static void main(String[] args){
         Server server = new Server();
         server.run();
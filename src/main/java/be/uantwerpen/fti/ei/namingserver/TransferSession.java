@@ -0,0 +1,184 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent connection to the file receiver of one peer, over which many files are sent one after the other.
+ * Every file gets its own framed header with a sequence number and owner metadata. The receiver acknowledges each
+ * file once it is written, and the acknowledgements are read on a separate thread, so the sender keeps streaming
+ * the next files instead of waiting for a round trip per file.
+
+ * Session preamble: magic (4) | SESSION (1) | offered codecs (1), answered with the picked codec (1)
+ * File frame:       sequence (4) | filename (2 + UTF-8) | owner message (2 + UTF-8) | length (8) | codec (1) | body
+ * End of session:   sequence -1
+ * Acknowledgement:  sequence (4) | status (1)
+ * A raw body is the file itself, a compressed body is written by FileTransfer.writeCompressed.
+ */
+public class TransferSession implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(TransferSession.class.getName());
+
+    static final int END_OF_SESSION = -1;
+    static final byte ACK_OK = 1;
+
+    // How long close waits for the outstanding acknowledgements
+    private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+    private final String host;
+    private final SocketChannel channel;
+    private final Compression compression;
+    // Codec picked by the receiver
+    private final byte codec;
+    private final Map<Integer, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+    private final Thread ackReader;
+    private int nextSequence;
+    private volatile long lastUsed = System.nanoTime();
+    private volatile boolean broken;
+    private boolean closed;
+
+    public TransferSession(String host, int port, Compression compression) throws IOException {
+        this.host = host;
+        this.compression = compression;
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        // Headers and small files are written back to back, do not let Nagle hold them for an ACK
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        try {
+            FileTransfer.writeFully(channel, ByteBuffer.allocate(6).putInt(FileTransfer.MAGIC)
+                    .put(FileTransfer.SESSION).put(compression.offered()).flip());
+            ByteBuffer picked = ByteBuffer.allocate(1);
+            FileTransfer.readFully(channel, picked);
+            this.codec = picked.get(0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        ackReader = new Thread(this::readAcks, "ft-acks-" + host);
+        ackReader.setDaemon(true);
+        ackReader.start();
+    }
+
+    /*
+    Stream a file over the session. Returns once the file is written to the socket, the future completes
+    when the receiver acknowledged it. A failure on the socket breaks the session for all its files.
+     */
+    public synchronized CompletableFuture<Boolean> send(File file, String ownerMessage) throws IOException {
+        if (broken || closed) {
+            throw new IOException("Session to " + host + " is closed");
+        }
+        int sequence = nextSequence++;
+        CompletableFuture<Boolean> ack = new CompletableFuture<>();
+        pending.put(sequence, ack);
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = fileChannel.size();
+            if (compression.worthCompressing(codec, file, length)) {
+                FileTransfer.writeFully(channel, frameHeader(sequence, file.getName(), ownerMessage, length, codec));
+                compression.countSent(length, FileTransfer.writeCompressed(channel, fileChannel, length, compression));
+            } else {
+                FileTransfer.writeFile(channel, frameHeader(sequence, file.getName(), ownerMessage, length,
+                        Compression.RAW), fileChannel, length);
+                compression.countSent(length, length);
+            }
+        } catch (IOException e) {
+            pending.remove(sequence);
+            broken = true;
+            throw e;
+        }
+        lastUsed = System.nanoTime();
+        return ack;
+    }
+
+    static ByteBuffer frameHeader(int sequence, String filename, String ownerMessage, long length, byte codec) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        byte[] message = ownerMessage.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 2 + name.length + 2 + message.length + 8 + 1);
+        header.putInt(sequence);
+        header.putShort((short) name.length).put(name);
+        header.putShort((short) message.length).put(message);
+        header.putLong(length).put(codec);
+        return header.flip();
+    }
+
+    private void readAcks() {
+        ByteBuffer ack = ByteBuffer.allocate(5);
+        try {
+            while (true) {
+                ack.clear();
+                FileTransfer.readFully(channel, ack);
+                CompletableFuture<Boolean> future = pending.remove(ack.getInt(0));
+                if (future != null) {
+                    future.complete(ack.get(4) == ACK_OK);
+                }
+            }
+        } catch (EOFException e) {
+            // The receiver closes the connection after the end of the session
+        } catch (IOException e) {
+            if (!closed) {
+                logger.log(Level.WARNING, "Lost session to " + host, e);
+            }
+        } finally {
+            broken = true;
+            IOException lost = new IOException("Session to " + host + " closed before the file was acknowledged");
+            pending.values().forEach(future -> future.completeExceptionally(lost));
+            pending.clear();
+        }
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+    public int pendingAcks() {
+        return pending.size();
+    }
+
+    // Nanoseconds since the last file was sent
+    public long idleNanos() {
+        return System.nanoTime() - lastUsed;
+    }
+
+    // End the session and wait until the receiver acknowledged every file
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!broken) {
+                try {
+                    FileTransfer.writeFully(channel, ByteBuffer.allocate(4).putInt(END_OF_SESSION).flip());
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Unable to end session to " + host, e);
+                }
+            }
+        }
+        try {
+            ackReader.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to close session to " + host, e);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-lived sender for the unicast control messages.
+ * It keeps one datagram channel open, caches the resolved address of every destination and coalesces the
+ * frames sent to the same destination within a short flush window into one datagram. The receiver decodes
+ * the frames of a datagram one after the other (see Message), so coalescing is invisible to it.
+ */
+public class UnicastSender implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(UnicastSender.class.getName());
+
+    // Largest coalesced datagram, stays under the usual ethernet MTU
+    static final int MAX_DATAGRAM = 1400;
+
+    // How long a resolved address is trusted before it is looked up again
+    private static final long ADDRESS_TTL_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final long flushWindowMicros;
+    private final DatagramChannel channel;
+    private final ConcurrentHashMap<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "unicast-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong failedDatagrams = new AtomicLong();
+
+    // Pending frames for one host and port, guarded by its own lock
+    private final class Destination {
+        private final String host;
+        private final int port;
+        private final ByteBuffer pending = ByteBuffer.allocate(MAX_DATAGRAM);
+        private InetSocketAddress address;
+        private long resolvedAt;
+        private boolean flushScheduled;
+
+        Destination(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        synchronized void add(byte[] frame) throws IOException {
+            if (frame.length > pending.remaining()) {
+                flush();
+            }
+            if (frame.length > pending.capacity()) {
+                // Too big to coalesce, send it on its own
+                send(ByteBuffer.wrap(frame));
+                return;
+            }
+            pending.put(frame);
+            framesSent.incrementAndGet();
+            if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::scheduledFlush, flushWindowMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        private void scheduledFlush() {
+            try {
+                flush();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to send unicast message to " + host, e);
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            flushScheduled = false;
+            if (pending.position() == 0) {
+                return;
+            }
+            pending.flip();
+            try {
+                send(pending);
+            } finally {
+                pending.clear();
+            }
+        }
+
+        private void send(ByteBuffer datagram) throws IOException {
+            try {
+                channel.send(datagram, address());
+                datagramsSent.incrementAndGet();
+            } catch (IOException e) {
+                failedDatagrams.incrementAndGet();
+                // Resolve again on the next send, the host may have moved
+                address = null;
+                throw e;
+            }
+        }
+
+        private InetSocketAddress address() throws IOException {
+            long now = System.nanoTime();
+            if (address == null || now - resolvedAt > ADDRESS_TTL_NANOS) {
+                address = new InetSocketAddress(InetAddress.getByName(host), port);
+                resolvedAt = now;
+            }
+            return address;
+        }
+    }
+
+    public UnicastSender(long flushWindowMicros) throws IOException {
+        this.flushWindowMicros = flushWindowMicros;
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+
+        Metrics metrics = Metrics.global();
+        metrics.counter("unicast_frames_total", "Frames queued for sending", framesSent::get);
+        metrics.counter("unicast_datagrams_total", "Datagrams sent", datagramsSent::get);
+        metrics.counter("unicast_failed_datagrams_total", "Datagrams that could not be sent", failedDatagrams::get);
+    }
+
+    // Queue a frame for the destination, it leaves with the next flush of that destination
+    public void send(String purpose, String host, byte[] frame, int port) {
+        try {
+            destinations.computeIfAbsent(host + ":" + port, key -> new Destination(host, port)).add(frame);
+            logger.log(Level.FINE, "Unicast message queued: " + purpose);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to send unicast message: " + purpose, e);
+        }
+    }
+
+    // Send a payload as its own datagram right away, for data that is not made of frames
+    public void sendNow(String purpose, String host, byte[] payload, int port) {
+        try {
+            Destination destination = destinations.computeIfAbsent(host + ":" + port, key -> new Destination(host, port));
+            synchronized (destination) {
+                destination.flush();
+                destination.send(ByteBuffer.wrap(payload));
+            }
+            logger.log(Level.FINE, "Unicast message sent: " + purpose);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to send unicast message: " + purpose, e);
+        }
+    }
+
+    // Send everything that is still waiting for its flush window
+    public void flush() {
+        for (Destination destination : destinations.values()) {
+            try {
+                destination.flush();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to send unicast message to " + destination.host, e);
+            }
+        }
+    }
+
+    public long framesSent() {
+        return framesSent.get();
+    }
+
+    public long datagramsSent() {
+        return datagramsSent.get();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        flusher.shutdownNow();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to close unicast sender", e);
+        }
+    }
+}
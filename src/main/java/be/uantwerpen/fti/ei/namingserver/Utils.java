@@ -16,14 +16,30 @@ public class Utils {
 
     private static final Logger logger = Logger.getLogger(Utils.class.getName());
 
-    // Hash function provided by the teachers
-    public static int hash(String IP){
-        double max = Integer.MAX_VALUE;
-        double min = Integer.MIN_VALUE;
+    // Flush window of the unicast sender in microseconds
+    private static final long FLUSH_WINDOW = Long.getLong("ns.flushWindowMicros", 2000);
 
-        double hashValue = (IP.hashCode() + max) * (32768/(max + Math.abs(min)));
-        return (int) hashValue;
+    // Shared sender for every unicast message of this process
+    private static final UnicastSender unicastSender;
 
+    static {
+        try {
+            unicastSender = new UnicastSender(FLUSH_WINDOW);
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Hash that places nodes and files on the ring, picked with ns.hash (see HashStrategy)
+    private static final HashStrategy HASH = HashStrategy.configured();
+
+    // Hash function, the one provided by the teachers is HashStrategy.LEGACY
+    public static long hash(String IP){
+        return HASH.hash(IP);
+    }
+
+    public static HashStrategy hashStrategy() {
+        return HASH;
     }
 
 
@@ -55,13 +71,41 @@ public class Utils {
         return "127.0.0.1"; // Default IP address localhost
     }
 
+    // Find the interface to send and receive multicast messages on, null if there is none
+    // Prefers an active non-loopback interface with an IPv4 address, like findLocalIP
+    public static NetworkInterface multicastInterface() {
+        NetworkInterface fallback = null;
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces.hasMoreElements()) {
+                NetworkInterface iface = interfaces.nextElement();
+                if (!iface.isUp() || !iface.supportsMulticast()) {
+                    continue;
+                }
+                boolean hasIPv4 = iface.inetAddresses().anyMatch(addr -> addr instanceof Inet4Address);
+                if (!hasIPv4) {
+                    continue;
+                }
+                if (!iface.isLoopback()) {
+                    return iface;
+                }
+                fallback = iface;
+            }
+        } catch (SocketException e) {
+            logger.log(Level.WARNING, "Unable to list network interfaces", e);
+        }
+        return fallback;
+    }
+
     public static void sendMulticast(String purpose, String message, int port) {
+        sendMulticast(purpose, message.getBytes(), port);
+    }
+
+    public static void sendMulticast(String purpose, byte[] buffer, int port) {
         try (MulticastSocket socket = new MulticastSocket()) {
             InetAddress group = InetAddress.getByName("224.0.0.1"); // Multicast group address
             logger.log(Level.INFO,"connected to multicast send socket: " + purpose);
 
-            byte[] buffer = message.getBytes();
-
             // Create a DatagramPacket
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group, port);
 
@@ -74,26 +118,24 @@ public class Utils {
         }
     }
 
+    // Send a text message as its own datagram
     public static void sendUnicast(String purpose, String targetIP, String message, int port) {
-        try (DatagramSocket socket = new DatagramSocket(null)) {
-
-            logger.log(Level.INFO,"Connected to unicast send socket: " + purpose);
-
-            byte[] buffer = message.getBytes();
-
-            InetAddress targetIp = InetAddress.getByName(targetIP); // Uses the hostname of the target node (getByName)
-
-            // Create a DatagramPacket
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, targetIp, port);
+        unicastSender.sendNow(purpose, targetIP, message.getBytes(), port);
+    }
 
-            // Send the packet
-            socket.send(packet);
+    // Send an encoded Message frame, frames to the same target within the flush window share a datagram
+    public static void sendUnicast(String purpose, String targetIP, byte[] frame, int port) {
+        unicastSender.send(purpose, targetIP, frame, port);
+    }
 
-            logger.log(Level.INFO,"Unicast message: " + purpose + ", sent successfully");
+    // Send raw bytes that are not a Message frame as their own datagram
+    public static void sendDatagram(String purpose, String targetIP, byte[] payload, int port) {
+        unicastSender.sendNow(purpose, targetIP, payload, port);
+    }
 
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "unable to open unicast send socket: " + purpose, e);
-        }
+    // Send the frames that are still waiting, used before shutting down
+    public static void flushUnicast() {
+        unicastSender.flush();
     }
 
     // Add a local file to the node
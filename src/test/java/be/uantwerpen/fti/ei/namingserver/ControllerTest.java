@@ -0,0 +1,124 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+// Same context as NamingServerApplicationTests, so only one Server is started for both
+@SpringBootTest
+class ControllerTest {
+
+    @Autowired
+    private WebApplicationContext context;
+
+    @Autowired
+    private Controller controller;
+
+    private MockMvc mvc;
+
+    // Nodes added by a test, removed again so the shared server starts the next test empty
+    private final List<String> added = new ArrayList<>();
+
+    @BeforeEach
+    void setup() {
+        mvc = MockMvcBuilders.webAppContextSetup(context).build();
+    }
+
+    @AfterEach
+    void removeNodes() {
+        added.forEach(controller.server::removeNode);
+    }
+
+    private void addNodes(String... ips) {
+        for (String ip : ips) {
+            if (controller.server.addNode(ip)) {
+                added.add(ip);
+            }
+        }
+    }
+
+    // Post the body and wait for the streamed response
+    private MvcResult batch(String contentType, String body) throws Exception {
+        MvcResult started = mvc.perform(post("/NS/get/batch").contentType(contentType).content(body))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mvc.perform(asyncDispatch(started)).andReturn();
+    }
+
+    private String result(String filename) {
+        return "{\"filename\":\"" + filename + "\",\"host\":\"" + controller.server.getFileHost(filename) + "\"}";
+    }
+
+    @Test
+    void jsonArrayIsAnsweredWithAJsonArray() throws Exception {
+        MvcResult result = batch(MediaType.APPLICATION_JSON_VALUE, "[\"a.txt\", \"b.txt\"]");
+        status().isOk().match(result);
+        content().contentType(MediaType.APPLICATION_JSON).match(result);
+        content().json("[" + result("a.txt") + "," + result("b.txt") + "]", true).match(result);
+    }
+
+    @Test
+    void ndjsonIsAnsweredWithOneObjectPerLine() throws Exception {
+        MvcResult result = batch("application/x-ndjson", "\"a.txt\"\n\"b.txt\"\n");
+        status().isOk().match(result);
+        content().contentType("application/x-ndjson").match(result);
+        content().string(result("a.txt") + "\n" + result("b.txt") + "\n").match(result);
+    }
+
+    @Test
+    void emptyBodyIsAnEmptyBatch() throws Exception {
+        MvcResult json = batch(MediaType.APPLICATION_JSON_VALUE, "");
+        status().isOk().match(json);
+        content().string("[]").match(json);
+
+        MvcResult ndjson = batch("application/x-ndjson", "");
+        status().isOk().match(ndjson);
+        content().string("").match(ndjson);
+    }
+
+    @Test
+    void invalidBodyIsRejected() throws Exception {
+        MvcResult result = batch(MediaType.APPLICATION_JSON_VALUE, "[\"a.txt\", {\"name\": 1}]");
+        status().isBadRequest().match(result);
+    }
+
+    @Test
+    void batchIsAnsweredWithTheOwnersInTheRing() throws Exception {
+        // Documentation addresses, they have no name that a background resolution could hand out instead
+        addNodes("192.0.2.1", "192.0.2.2", "192.0.2.3");
+        List<String> filenames = List.of("a.txt", "b.txt", "reports/c.txt", "d.txt");
+        for (String filename : filenames) {
+            assertFalse(controller.server.getFileHost(filename).isEmpty());
+        }
+
+        MvcResult json = batch(MediaType.APPLICATION_JSON_VALUE, "[\"a.txt\", \"b.txt\", \"reports/c.txt\", \"d.txt\"]");
+        status().isOk().match(json);
+        content().json("[" + result("a.txt") + "," + result("b.txt") + "," + result("reports/c.txt") + ","
+                + result("d.txt") + "]", true).match(json);
+
+        StringBuilder body = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (String filename : filenames) {
+            body.append('"').append(filename).append("\"\n");
+            expected.append(result(filename)).append('\n');
+        }
+        MvcResult ndjson = batch("application/x-ndjson", body.toString());
+        status().isOk().match(ndjson);
+        content().string(expected.toString()).match(ndjson);
+    }
+}
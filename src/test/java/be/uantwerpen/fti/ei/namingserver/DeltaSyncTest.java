@@ -0,0 +1,106 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaSyncTest {
+
+    @TempDir
+    Path dir;
+
+    // Encode the new version against the old one and rebuild it, returns the literal bytes that were sent
+    private long roundTrip(byte[] oldVersion, byte[] newVersion) throws Exception {
+        Path base = Files.write(dir.resolve("old"), oldVersion);
+        Path source = Files.write(dir.resolve("new"), newVersion);
+        Path target = dir.resolve("rebuilt");
+
+        ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long literalBytes;
+        try (FileChannel baseChannel = FileChannel.open(base);
+             FileChannel sourceChannel = FileChannel.open(source);
+             FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DeltaSync.sign(baseChannel, DeltaSync.blockSize(oldVersion.length))
+                    .write(new DataOutputStream(signatureBytes));
+            DeltaSync.Signature signature = DeltaSync.Signature.read(
+                    new DataInputStream(new ByteArrayInputStream(signatureBytes.toByteArray())));
+
+            literalBytes = DeltaSync.writeDelta(sourceChannel, signature, new DataOutputStream(delta));
+            assertTrue(DeltaSync.applyDelta(baseChannel, signature,
+                    new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), targetChannel));
+        }
+        assertArrayEquals(newVersion, Files.readAllBytes(target));
+        return literalBytes;
+    }
+
+    @Test
+    void onlyChangedRangesAreSent() throws Exception {
+        byte[] oldVersion = new byte[4 << 20];
+        new Random(1).nextBytes(oldVersion);
+
+        // An edit in the middle, a few inserted bytes and an append
+        byte[] newVersion = new byte[oldVersion.length + 7 + 10_000];
+        System.arraycopy(oldVersion, 0, newVersion, 0, 1_000_000);
+        newVersion[500_000] ^= 1;
+        System.arraycopy(new byte[] { 1, 2, 3, 4, 5, 6, 7 }, 0, newVersion, 1_000_000, 7);
+        System.arraycopy(oldVersion, 1_000_000, newVersion, 1_000_007, oldVersion.length - 1_000_000);
+        for (int i = oldVersion.length + 7; i < newVersion.length; i++) {
+            newVersion[i] = (byte) i;
+        }
+
+        long literalBytes = roundTrip(oldVersion, newVersion);
+        // Two blocks around the edits and the append, not the whole file
+        assertTrue(literalBytes < 4 * DeltaSync.blockSize(oldVersion.length) + 10_000, "sent " + literalBytes);
+    }
+
+    @Test
+    void unrelatedFilesAreSentAsLiterals() throws Exception {
+        byte[] oldVersion = new byte[200_000];
+        byte[] newVersion = new byte[300_001];
+        new Random(2).nextBytes(oldVersion);
+        new Random(3).nextBytes(newVersion);
+
+        assertEquals(newVersion.length, roundTrip(oldVersion, newVersion));
+    }
+
+    @Test
+    void longTailIsSplitIntoLiteralsTheReceiverAccepts() throws Exception {
+        byte[] random = new byte[1 << 20];
+        new Random(5).nextBytes(random);
+        int blockSize = DeltaSync.blockSize(random.length);
+        byte[] oldVersion = new byte[random.length / blockSize * blockSize];
+        System.arraycopy(random, 0, oldVersion, 0, oldVersion.length);
+
+        // Just under MAX_LITERAL of appended bytes that never get flushed in the loop, plus a partial block
+        int appended = DeltaSync.MAX_LITERAL + blockSize - 2;
+        byte[] newVersion = new byte[oldVersion.length + appended];
+        System.arraycopy(oldVersion, 0, newVersion, 0, oldVersion.length);
+        Random tail = new Random(6);
+        for (int i = oldVersion.length; i < newVersion.length; i++) {
+            newVersion[i] = (byte) tail.nextInt();
+        }
+
+        assertEquals(appended, roundTrip(oldVersion, newVersion));
+    }
+
+    @Test
+    void identicalFilesSendNoLiterals() throws Exception {
+        byte[] content = new byte[1 << 20];
+        new Random(4).nextBytes(content);
+
+        assertEquals(0, roundTrip(content, content));
+    }
+}
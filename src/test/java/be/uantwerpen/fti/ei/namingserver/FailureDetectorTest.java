@@ -0,0 +1,89 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FailureDetectorTest {
+
+    @Test
+    void silentPeerIsDetectedAndJitteryPeersAreNot() {
+        AtomicLong clock = new AtomicLong();
+        List<Long> failed = new ArrayList<>();
+        FailureDetector detector = new FailureDetector(1000, 8, 500, 100, 100, 64, clock::get,
+                (id, silent) -> failed.add(id));
+
+        // Thousand peers beat every second with up to 200 ms of jitter, peer 7 stops after 30 seconds
+        Random random = new Random(11);
+        long[] next = new long[1000];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = random.nextInt(1000);
+        }
+        for (long now = 0; now <= 60_000; now += 10) {
+            clock.set(now);
+            for (int i = 0; i < next.length; i++) {
+                if (next[i] <= now && (i != 7 || now < 30_000)) {
+                    detector.heartbeat(i);
+                    next[i] = now + 900 + random.nextInt(200);
+                }
+            }
+            detector.advance();
+        }
+
+        assertEquals(List.of(7L), failed);
+        FailureDetector.Stats stats = detector.stats();
+        assertEquals(999, stats.peers());
+        assertEquals(1, stats.failures());
+        assertEquals(0, stats.falsePositives());
+        // Detected a couple of intervals after its last heartbeat, not on some long fixed timeout
+        assertTrue(stats.maxDetectionMillis() > 1000 && stats.maxDetectionMillis() < 4000, stats.toString());
+        assertFalse(detector.isWatching(7));
+    }
+
+    @Test
+    void heartbeatAfterFailureCountsAsFalsePositive() {
+        AtomicLong clock = new AtomicLong();
+        FailureDetector detector = new FailureDetector(1000, 8, 0, 100, 100, 512, clock::get, (id, silent) -> { });
+
+        for (long now = 0; now <= 10_000; now += 1000) {
+            clock.set(now);
+            detector.heartbeat(1);
+            detector.advance();
+        }
+        assertTrue(detector.phi(1) < 1);
+        // A long pause, the peer is declared failed, then it turns out to be alive
+        clock.set(40_000);
+        detector.advance();
+        assertEquals(1, detector.stats().failures());
+        detector.heartbeat(1);
+
+        assertEquals(1, detector.stats().falsePositives());
+        assertTrue(detector.isWatching(1));
+    }
+
+    @Test
+    void restartedPeerIsNoFalsePositive() {
+        AtomicLong clock = new AtomicLong();
+        FailureDetector detector = new FailureDetector(1000, 8, 0, 100, 100, 512, clock::get, (id, silent) -> { });
+
+        for (long now = 0; now <= 10_000; now += 1000) {
+            clock.set(now);
+            detector.heartbeat(1);
+            detector.advance();
+        }
+        // The peer crashed and bootstraps again after it was declared failed
+        clock.set(40_000);
+        detector.advance();
+        assertEquals(1, detector.stats().failures());
+        detector.rejoined(1);
+        detector.heartbeat(1);
+
+        assertEquals(0, detector.stats().falsePositives());
+        assertTrue(detector.isWatching(1));
+    }
+}
@@ -0,0 +1,106 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileStateIndexTest {
+
+    @TempDir
+    Path root;
+
+    // The node replicated the reported files
+    private static void replicated(FileStateIndex index, FolderWatcher.Changes changes) {
+        for (String filename : changes.created()) {
+            index.confirm(filename, index.pending(filename));
+        }
+        for (String filename : changes.modified()) {
+            index.confirm(filename, index.pending(filename));
+        }
+    }
+
+    @Test
+    void restartReportsOnlyWhatChanged() throws Exception {
+        Path files = Files.createDirectories(root.resolve("localFiles"));
+        File state = root.resolve("state").toFile();
+        // Enough files to take the parallel path
+        for (int i = 0; i < 1500; i++) {
+            Files.writeString(files.resolve("file-" + i + ".txt"), "content " + i);
+        }
+
+        try (FileStateIndex index = new FileStateIndex(files, state)) {
+            FolderWatcher.Changes first = index.reconcile();
+            assertEquals(1500, first.created().size());
+            assertTrue(first.modified().isEmpty());
+            replicated(index, first);
+        }
+
+        // While the node was down: an edit, a touch without edit, a deletion and a new file
+        Files.writeString(files.resolve("file-1.txt"), "edited");
+        Files.setLastModifiedTime(files.resolve("file-2.txt"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        Files.delete(files.resolve("file-3.txt"));
+        Files.writeString(files.resolve("new.txt"), "new");
+
+        try (FileStateIndex index = new FileStateIndex(files, state)) {
+            FolderWatcher.Changes changes = index.reconcile();
+            assertEquals(List.of("new.txt"), changes.created());
+            assertEquals(List.of("file-1.txt"), changes.modified());
+            assertEquals(List.of("file-3.txt"), changes.deleted());
+            assertEquals(1500, index.size());
+            replicated(index, changes);
+
+            // Nothing changed since
+            assertTrue(index.reconcile().isEmpty());
+        }
+
+        try (FileStateIndex index = new FileStateIndex(files, state)) {
+            Set<String> names = new HashSet<>();
+            for (int i = 0; i < 1500; i++) {
+                if (index.get("file-" + i + ".txt") != null) {
+                    names.add("file-" + i + ".txt");
+                }
+            }
+            assertEquals(1499, names.size());
+            assertNotNull(index.get("new.txt"));
+        }
+    }
+
+    @Test
+    void filesThatWereNotReplicatedAreReportedAgain() throws Exception {
+        Path files = Files.createDirectories(root.resolve("localFiles"));
+        File state = root.resolve("state").toFile();
+        Files.writeString(files.resolve("a.txt"), "a");
+        Files.writeString(files.resolve("b.txt"), "b");
+
+        try (FileStateIndex index = new FileStateIndex(files, state)) {
+            assertEquals(List.of("a.txt", "b.txt"), index.reconcile().created().stream().sorted().toList());
+            // Only a.txt was acknowledged by its replica holder, the report of b.txt got lost
+            index.confirm("a.txt", index.pending("a.txt"));
+            // Reported again while still running as well, until it is replicated
+            assertEquals(List.of("b.txt"), index.reconcile().created());
+
+            // A replication of an older version does not confirm the newer one
+            FileStateIndex.FileState old = index.pending("b.txt");
+            Files.writeString(files.resolve("b.txt"), "b, edited");
+            index.update(new FolderWatcher.Changes(List.of(), List.of("b.txt"), List.of()));
+            index.confirm("b.txt", old);
+            assertNotNull(index.pending("b.txt"));
+            assertNull(index.get("b.txt"));
+        }
+
+        try (FileStateIndex index = new FileStateIndex(files, state)) {
+            FolderWatcher.Changes changes = index.reconcile();
+            assertEquals(List.of("b.txt"), changes.created());
+            assertTrue(changes.modified().isEmpty());
+        }
+    }
+}
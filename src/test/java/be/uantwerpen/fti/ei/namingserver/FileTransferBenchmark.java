@@ -0,0 +1,178 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Loopback throughput benchmark of the FileTransfer modes.
+ * The JMH part measures the time from the start of a send until the receiver wrote the whole file, for files
+ * of different sizes, the throughput is the size divided by that time. Run it with the other benchmarks:
+ *   mvn -Pbench verify
+ * main measures one large file and many small files without JMH, run it with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=be.uantwerpen.fti.ei.namingserver.FileTransferBenchmark -Dexec.args="256 5"
+ * The arguments are the file size in MB and the number of measured transfers per mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileTransferBenchmark {
+
+    @Param({"STREAM", "ZERO_COPY", "SESSION"})
+    public FileTransfer.Mode mode;
+
+    // 4 KB, 1 MB and 64 MB
+    @Param({"4096", "1048576", "67108864"})
+    public int size;
+
+    private Path root;
+    private Path received;
+    private File file;
+    private FileTransfer ft;
+
+    @Setup
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("ft-bench");
+        Path local = Files.createDirectories(root.resolve("local"));
+        received = Files.createDirectories(root.resolve("received"));
+        file = local.resolve("bench.bin").toFile();
+        writeFile(file, size);
+        ft = startReceiver(local, received);
+        ft.setMode(mode);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ft.closeSessions();
+        ft.stopListening();
+        delete(root);
+    }
+
+    @Benchmark
+    public long transfer() throws IOException, InterruptedException {
+        return sendAndWait(ft, file, received);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path root = Files.createTempDirectory("ft-bench");
+        Path local = Files.createDirectories(root.resolve("local"));
+        Path received = Files.createDirectories(root.resolve("received"));
+        try {
+            File file = local.resolve("bench.bin").toFile();
+            writeFile(file, (long) sizeMb << 20);
+            FileTransfer ft = startReceiver(local, received);
+
+            for (FileTransfer.Mode mode : FileTransfer.Mode.values()) {
+                ft.setMode(mode);
+                // Warm up once, then measure
+                sendAndWait(ft, file, received);
+                long best = Long.MAX_VALUE;
+                long total = 0;
+                for (int i = 0; i < rounds; i++) {
+                    long elapsed = sendAndWait(ft, file, received);
+                    best = Math.min(best, elapsed);
+                    total += elapsed;
+                }
+                System.out.printf("%-9s %5d MB  avg %8.1f MB/s  best %8.1f MB/s%n", mode, sizeMb,
+                        sizeMb * 1e9 / (total / (double) rounds), sizeMb * 1e9 / best);
+            }
+            // Many small files, where the connection setup per file dominates
+            int smallFiles = 2000;
+            for (int i = 0; i < smallFiles; i++) {
+                Files.write(local.resolve("small-" + i), new byte[4096]);
+            }
+            for (FileTransfer.Mode mode : FileTransfer.Mode.values()) {
+                ft.setMode(mode);
+                long start = System.nanoTime();
+                for (int i = 0; i < smallFiles; i++) {
+                    ft.transferFile("127.0.0.1", "small-" + i, null);
+                }
+                ft.closeSessions();
+                File last = received.resolve("small-" + (smallFiles - 1)).toFile();
+                while (last.length() < 4096) {
+                    Thread.onSpinWait();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-9s %5d x 4 KB  %8.0f files/s%n", mode, smallFiles, smallFiles / seconds);
+                for (int i = 0; i < smallFiles; i++) {
+                    Files.deleteIfExists(received.resolve("small-" + i));
+                }
+            }
+            ft.stopListening();
+        } finally {
+            delete(root);
+        }
+    }
+
+    // File of the given length with content that does not compress to nothing
+    private static void writeFile(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] block = new byte[1 << 20];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31 + (i >> 8));
+            }
+            for (long written = 0; written < length; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, length - written));
+            }
+        }
+    }
+
+    // FileTransfer on a free port that receives into the given directory
+    private static FileTransfer startReceiver(Path local, Path received) throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        FileTransfer ft = new FileTransfer(port, local.toString(), received.toString());
+        Thread receiver = new Thread(() -> ft.receiveFiles(received.toString()));
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread.sleep(200);
+        return ft;
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    // Time from the start of the send until the receiver has written the whole file
+    private static long sendAndWait(FileTransfer ft, File file, Path received) throws IOException, InterruptedException {
+        File target = received.resolve(file.getName()).toFile();
+        Files.deleteIfExists(target.toPath());
+        long start = System.nanoTime();
+        ft.transferFile("127.0.0.1", file.getName(), null);
+        // The receiver closes its side only after the last byte is written
+        while (target.length() < file.length()) {
+            Thread.onSpinWait();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,229 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTransferTest {
+
+    @TempDir
+    Path root;
+
+    private FileTransfer ft;
+
+    @AfterEach
+    void stop() {
+        if (ft != null) {
+            ft.stopListening();
+        }
+        System.clearProperty("ft.chunkedThreshold");
+        System.clearProperty("ft.chunkSize");
+    }
+
+    private FileTransfer startReceiver(Path local, Path received) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        FileTransfer transfer = new FileTransfer(port, local.toString(), local.toString());
+        Thread receiver = new Thread(() -> transfer.receiveFiles(received.toString()));
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread.sleep(200);
+        return transfer;
+    }
+
+    @Test
+    void chunkedTransferResumesFromVerifiedOffset() throws Exception {
+        System.setProperty("ft.chunkedThreshold", "1");
+        System.setProperty("ft.chunkSize", String.valueOf(64 * 1024));
+        Path local = Files.createDirectories(root.resolve("local"));
+        Path received = Files.createDirectories(root.resolve("received"));
+
+        byte[] content = new byte[1 << 20];
+        new Random(42).nextBytes(content);
+        File source = local.resolve("big.bin").toFile();
+        Files.write(source.toPath(), content);
+
+        // An earlier attempt verified the first 256 KB and left some unverified bytes after them.
+        // The verified part is marked, so we can tell it was not sent again.
+        int verified = 256 * 1024;
+        Path partialDir = Files.createDirectories(received.resolve(FileTransfer.PARTIAL_DIRECTORY));
+        byte[] partial = new byte[verified + 1000];
+        Arrays.fill(partial, (byte) 0x7F);
+        Files.write(partialDir.resolve("big.bin.part"), partial);
+        Files.writeString(partialDir.resolve("big.bin.progress"),
+                content.length + "\n" + source.lastModified() + "\n" + verified + "\n");
+
+        ft = startReceiver(local, received);
+        ft.transferFile("127.0.0.1", "big.bin", null);
+
+        byte[] result = Files.readAllBytes(received.resolve("big.bin"));
+        assertEquals(content.length, result.length);
+        assertArrayEquals(Arrays.copyOf(partial, verified), Arrays.copyOf(result, verified));
+        assertArrayEquals(Arrays.copyOfRange(content, verified, content.length),
+                Arrays.copyOfRange(result, verified, result.length));
+        assertFalse(Files.exists(partialDir.resolve("big.bin.part")));
+        assertFalse(Files.exists(partialDir.resolve("big.bin.progress")));
+    }
+
+    @Test
+    void progressOfAnotherVersionStartsOver() throws Exception {
+        System.setProperty("ft.chunkedThreshold", "1");
+        Path local = Files.createDirectories(root.resolve("local"));
+        Path received = Files.createDirectories(root.resolve("received"));
+
+        byte[] content = new byte[300 * 1024];
+        new Random(7).nextBytes(content);
+        File source = local.resolve("big.bin").toFile();
+        Files.write(source.toPath(), content);
+
+        Path partialDir = Files.createDirectories(received.resolve(FileTransfer.PARTIAL_DIRECTORY));
+        Files.write(partialDir.resolve("big.bin.part"), new byte[100 * 1024]);
+        Files.writeString(partialDir.resolve("big.bin.progress"),
+                content.length + "\n" + (source.lastModified() - 1000) + "\n" + 100 * 1024 + "\n");
+
+        ft = startReceiver(local, received);
+        ft.transferFile("127.0.0.1", "big.bin", null);
+
+        assertArrayEquals(content, Files.readAllBytes(received.resolve("big.bin")));
+    }
+
+    @Test
+    void compressibleFilesAreSentCompressed() throws Exception {
+        Path local = Files.createDirectories(root.resolve("local"));
+        Path received = Files.createDirectories(root.resolve("received"));
+
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; log.length() < 600_000; i++) {
+            log.append("2024-05-01 12:00:").append(i % 60).append(" INFO node ").append(i % 7)
+                    .append(" replicated file-").append(i).append(".txt\n");
+        }
+        byte[] content = log.toString().getBytes();
+        Files.write(local.resolve("node.log"), content);
+        byte[] random = new byte[100_000];
+        new Random(3).nextBytes(random);
+        Files.write(local.resolve("random.bin"), random);
+
+        ft = startReceiver(local, received);
+        ft.setMode(FileTransfer.Mode.SESSION);
+        ft.transferFile("127.0.0.1", "node.log", null);
+        ft.transferFile("127.0.0.1", "random.bin", null);
+        ft.closeSessions();
+
+        assertArrayEquals(content, Files.readAllBytes(received.resolve("node.log")));
+        assertArrayEquals(random, Files.readAllBytes(received.resolve("random.bin")));
+        Compression stats = ft.getCompression();
+        assertEquals(content.length + random.length, stats.getRawBytesSent());
+        assertTrue(stats.getWireBytesSent() < content.length / 4 + random.length, stats.toString());
+        assertEquals(1, stats.getSkippedFiles());
+    }
+
+    @Test
+    void chainedReplicaIsForwardedByTheReceiver() throws Exception {
+        Path local = Files.createDirectories(root.resolve("local"));
+        Path received = Files.createDirectories(root.resolve("received"));
+        byte[] content = new byte[200_000];
+        new Random(5).nextBytes(content);
+        Files.write(local.resolve("chained.bin"), content);
+
+        // Both holders are this receiver, the second copy is forwarded from the first one
+        ft = startReceiver(local, received);
+        ft.transferChain(List.of("127.0.0.1", "127.0.0.1"), "chained.bin");
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (ft.getCompletedTransfers() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        ft.closeSessions();
+
+        assertEquals(2, ft.getCompletedTransfers());
+        assertEquals(content.length, ft.getCompression().getRawBytesSent() / 2);
+        assertArrayEquals(content, Files.readAllBytes(received.resolve("chained.bin")));
+    }
+
+    @Test
+    void onlyModifiedFilesAreSentAsDelta() throws Exception {
+        Path local = Files.createDirectories(root.resolve("local"));
+        Path received = Files.createDirectories(root.resolve("received"));
+        byte[] content = new byte[2 << 20];
+        new Random(8).nextBytes(content);
+        Files.write(local.resolve("big.bin"), content);
+        List<String> chain = List.of("127.0.0.1");
+
+        ft = startReceiver(local, received);
+        assertTrue(ft.transferChain(chain, "big.bin").get(10, TimeUnit.SECONDS));
+        Compression stats = ft.getCompression();
+        assertEquals(content.length, stats.getWireBytesSent());
+
+        // The receiver has the older copy, only the changed block goes over the wire
+        content[1_000_000] ^= 1;
+        Files.write(local.resolve("big.bin"), content);
+        ft.markModified(List.of("big.bin"));
+        assertTrue(ft.transferChain(chain, "big.bin").get(10, TimeUnit.SECONDS));
+        assertArrayEquals(content, Files.readAllBytes(received.resolve("big.bin")));
+        assertTrue(stats.getWireBytesSent() < content.length + 64 * 1024, stats.toString());
+
+        // Not marked again, so the next copy is sent whole
+        long before = stats.getWireBytesSent();
+        assertTrue(ft.transferChain(chain, "big.bin").get(10, TimeUnit.SECONDS));
+        assertEquals(content.length, stats.getWireBytesSent() - before);
+        ft.closeSessions();
+    }
+
+    @Test
+    void fileThatIsNotAcknowledgedIsSentAgain() throws Exception {
+        Path local = Files.createDirectories(root.resolve("local"));
+        Path received = Files.createDirectories(root.resolve("received"));
+        byte[] content = new byte[4096];
+        new Random(7).nextBytes(content);
+        Files.write(local.resolve("unacked.bin"), content);
+
+        // A peer that takes the whole file and then drops the session without acknowledging it
+        ServerSocketChannel peer = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = peer.socket().getLocalPort();
+        Thread dropping = new Thread(() -> {
+            try (peer; SocketChannel channel = peer.accept()) {
+                FileTransfer.readFully(channel, ByteBuffer.allocate(6));
+                FileTransfer.writeFully(channel, ByteBuffer.wrap(new byte[] { Compression.RAW }));
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                long read = 0;
+                while (read < content.length) {
+                    read += channel.read(buffer.clear());
+                }
+            } catch (Exception e) {
+                // The test fails on the missing file
+            }
+        });
+        dropping.start();
+
+        ft = new FileTransfer(port, local.toString(), local.toString());
+        ft.setMode(FileTransfer.Mode.SESSION);
+        CompletableFuture<Boolean> sent = ft.transferFile("127.0.0.1", "unacked.bin", null);
+        dropping.join(5000);
+
+        // The peer is back before the file is sent again
+        Thread receiver = new Thread(() -> ft.receiveFiles(received.toString()));
+        receiver.setDaemon(true);
+        receiver.start();
+
+        assertTrue(sent.get(10, TimeUnit.SECONDS));
+        assertArrayEquals(content, Files.readAllBytes(received.resolve("unacked.bin")));
+        ft.closeSessions();
+    }
+}
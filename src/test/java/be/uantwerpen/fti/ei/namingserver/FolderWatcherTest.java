@@ -0,0 +1,76 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FolderWatcherTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void burstsAreCoalescedPerFile() throws Exception {
+        Files.writeString(dir.resolve("existing.txt"), "old");
+        Files.writeString(dir.resolve("removed.txt"), "bye");
+
+        BlockingQueue<FolderWatcher.Changes> changes = new LinkedBlockingQueue<>();
+        try (FolderWatcher watcher = new FolderWatcher(dir, 300, changes::add)) {
+            Thread thread = new Thread(watcher);
+            thread.setDaemon(true);
+            thread.start();
+
+            // A file written in several steps, a modification, a deletion and a file that only lived shortly
+            try (OutputStream out = Files.newOutputStream(dir.resolve("growing.bin"))) {
+                for (int i = 0; i < 5; i++) {
+                    out.write(new byte[10_000]);
+                    out.flush();
+                    Thread.sleep(50);
+                }
+            }
+            Files.writeString(dir.resolve("existing.txt"), "a longer new version");
+            Files.delete(dir.resolve("removed.txt"));
+            Files.writeString(dir.resolve("temporary.tmp"), "x");
+            Files.delete(dir.resolve("temporary.tmp"));
+
+            /*
+            Files settle on their own, so the changes may arrive in more than one batch. Wait for all of them with
+            a generous deadline, a WatchService that polls (f.e. on macOS every 10 s) reports them late, then
+            make sure nothing is reported twice.
+             */
+            List<String> created = new ArrayList<>();
+            List<String> modified = new ArrayList<>();
+            List<String> deleted = new ArrayList<>();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (!(created.contains("growing.bin") && modified.contains("existing.txt")
+                    && deleted.contains("removed.txt"))) {
+                FolderWatcher.Changes settled = changes.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (settled == null) {
+                    break;
+                }
+                created.addAll(settled.created());
+                modified.addAll(settled.modified());
+                deleted.addAll(settled.deleted());
+            }
+            for (FolderWatcher.Changes late = changes.poll(1, TimeUnit.SECONDS); late != null;
+                 late = changes.poll(1, TimeUnit.SECONDS)) {
+                created.addAll(late.created());
+                modified.addAll(late.modified());
+                deleted.addAll(late.deleted());
+            }
+            assertEquals(List.of("growing.bin"), created);
+            assertEquals(List.of("existing.txt"), modified);
+            assertEquals(List.of("removed.txt"), deleted);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost and distribution quality of the hash strategies.
+ * The JMH part measures hashing a filename, main first prints how well the strategies spread node IPs and
+ * filenames over a ring and then runs the JMH part. The configured strategy is the one behind Utils.hash.
+ * Not a unit test, the JMH part runs with the other benchmarks:
+ *   mvn -Pbench verify
+ * and main with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=be.uantwerpen.fti.ei.namingserver.HashBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"legacy", "murmur3"})
+    public String strategy;
+
+    private HashStrategy hash;
+    private String[] filenames;
+    private int next;
+
+    @Setup
+    public void setup() {
+        hash = HashStrategy.named(strategy);
+        filenames = new String[4096];
+        for (int i = 0; i < filenames.length; i++) {
+            filenames[i] = "reports/2024/node-" + (i % 37) + "/file-" + i + ".txt";
+        }
+    }
+
+    @Benchmark
+    public long hashFilename() {
+        next = (next + 1) & (filenames.length - 1);
+        return hash.hash(filenames[next]);
+    }
+
+    // Node IDs that collide with an earlier node, those nodes can not join
+    static int collisions(HashStrategy strategy, int nodes) {
+        Set<Long> ids = new HashSet<>();
+        int collisions = 0;
+        for (int i = 0; i < nodes; i++) {
+            if (!ids.add(strategy.hash("10." + (i >> 16) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF)))) {
+                collisions++;
+            }
+        }
+        return collisions;
+    }
+
+    // Most files on one node relative to the average, for files placed on a ring of nodes
+    static double fileImbalance(HashStrategy strategy, int nodes, int tokens, int files) throws Exception {
+        Map<Long, NodeInfo> members = new HashMap<>();
+        for (int i = 0; members.size() < nodes; i++) {
+            String ip = "10." + (i >> 16) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF);
+            members.putIfAbsent(strategy.hash(ip), NodeInfo.of(strategy.hash(ip), ip));
+        }
+        Ring ring = Ring.of(members, tokens, strategy);
+        Map<Long, Integer> placed = new HashMap<>();
+        for (int i = 0; i < files; i++) {
+            placed.merge(ring.ownerOf(strategy.hash("file-" + i + ".txt")), 1, Integer::sum);
+        }
+        int max = 0;
+        for (int count : placed.values()) {
+            max = Math.max(max, count);
+        }
+        return max * (double) nodes / files;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (HashStrategy strategy : new HashStrategy[] { HashStrategy.LEGACY, HashStrategy.MURMUR3 }) {
+            System.out.printf("%-8s colliding IDs of 1000 nodes: %d, of 10000 nodes: %d%n", strategy.name(),
+                    collisions(strategy, 1000), collisions(strategy, 10_000));
+            for (int tokens : new int[] { 1, 64 }) {
+                System.out.printf("%-8s busiest of 50 nodes with %d tokens holds %.2fx the average of 1M files%n",
+                        strategy.name(), tokens, fileImbalance(strategy, 50, tokens, 1_000_000));
+            }
+        }
+        org.openjdk.jmh.Main.main(new String[] { HashBenchmark.class.getSimpleName() });
+    }
+}
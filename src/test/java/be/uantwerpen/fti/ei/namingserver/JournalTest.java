@@ -0,0 +1,95 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JournalTest {
+
+    @TempDir
+    Path dir;
+
+    private List<String> replay(File log, File snapshot) throws Exception {
+        List<String> records = new ArrayList<>();
+        try (Journal journal = new Journal(log, snapshot, 100)) {
+            journal.replay(records::add);
+        }
+        return records;
+    }
+
+    @Test
+    void replaysAppendedRecordsInOrder() throws Exception {
+        File log = dir.resolve("test.journal").toFile();
+        File snapshot = dir.resolve("test.snapshot").toFile();
+
+        try (Journal journal = new Journal(log, snapshot, 100)) {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                writes.add(journal.append("ADD " + i));
+            }
+            writes.forEach(Journal::await);
+        }
+
+        List<String> records = replay(log, snapshot);
+        assertEquals(50, records.size());
+        assertEquals("ADD 0", records.get(0));
+        assertEquals("ADD 49", records.get(49));
+    }
+
+    @Test
+    void compactionReplacesTheJournal() throws Exception {
+        File log = dir.resolve("test.journal").toFile();
+        File snapshot = dir.resolve("test.snapshot").toFile();
+
+        try (Journal journal = new Journal(log, snapshot, 100)) {
+            journal.appendAndWait("ADD 1");
+            journal.appendAndWait("ADD 2");
+            Journal.await(journal.compact(() -> List.of("ADD 1", "ADD 2")));
+            journal.appendAndWait("REMOVE 1");
+        }
+
+        assertEquals(List.of("ADD 1", "ADD 2", "REMOVE 1"), replay(log, snapshot));
+    }
+
+    @Test
+    void tornLastRecordIsCutOffBeforeAppending() throws Exception {
+        File log = dir.resolve("test.journal").toFile();
+        File snapshot = dir.resolve("test.snapshot").toFile();
+
+        try (Journal journal = new Journal(log, snapshot, 100)) {
+            journal.appendAndWait("ADD 1");
+        }
+        // A crash in the middle of writing the next record
+        Files.writeString(log.toPath(), "ADD 2 10.0", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (Journal journal = new Journal(log, snapshot, 100)) {
+            List<String> records = new ArrayList<>();
+            journal.replay(records::add);
+            assertEquals(List.of("ADD 1"), records);
+            journal.appendAndWait("ADD 3");
+        }
+
+        assertEquals(List.of("ADD 1", "ADD 3"), replay(log, snapshot));
+    }
+
+    @Test
+    void appendAfterCloseFails() throws Exception {
+        Journal journal = new Journal(dir.resolve("test.journal").toFile(), dir.resolve("test.snapshot").toFile(), 100);
+        journal.close();
+
+        CompletableFuture<Void> write = journal.append("ADD 1");
+        assertThrows(ExecutionException.class, write::get);
+    }
+}
@@ -0,0 +1,74 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of resolving the node of a file on the naming server, for rings of different sizes.
+ * nodeOfFile is the search on the ring for a hash, fileHost the whole lookup behind GET /NS/get/{filename}
+ * from hashing the filename to the host. Not a unit test, run it with the other benchmarks:
+ *   mvn -Pbench verify
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int nodes;
+
+    private static final String SERVER_IP = "10.255.255.254";
+
+    private Ring ring;
+    private String[] filenames;
+    private long[] hashes;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<Long, NodeInfo> members = new HashMap<>();
+        for (int i = 1; members.size() < nodes; i++) {
+            String ip = "10." + (i >> 16) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF);
+            members.putIfAbsent(Utils.hash(ip), NodeInfo.of(Utils.hash(ip), ip));
+        }
+        ring = Ring.of(members, 1, Utils.hashStrategy());
+        filenames = new String[4096];
+        hashes = new long[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            filenames[i] = "reports/2024/node-" + (i % 37) + "/file-" + i + ".txt";
+            hashes[i] = Utils.hash(filenames[i]);
+        }
+    }
+
+    @Benchmark
+    public long nodeOfFile() {
+        next = (next + 1) & (hashes.length - 1);
+        return Server.nodeOfFile(ring, hashes[next], SERVER_IP);
+    }
+
+    @Benchmark
+    public String fileHost() {
+        next = (next + 1) & (filenames.length - 1);
+        return Server.fileHost(ring, filenames[next], SERVER_IP);
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[] { LookupBenchmark.class.getSimpleName() });
+    }
+}
@@ -0,0 +1,98 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageTest {
+
+    @Test
+    void decodesEncodedFrame() {
+        ByteBuffer buffer = ByteBuffer.wrap(Message.encode(Message.REPORT, 1234, 0, "10.0.0.1", "fïle.txt"));
+        Message message = new Message();
+
+        assertTrue(message.next(buffer));
+        assertEquals(Message.REPORT, message.type());
+        assertEquals(1234, message.long0());
+        assertEquals("10.0.0.1", message.string(0));
+        assertEquals("fïle.txt", message.string(1));
+        assertEquals("", message.string(2));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void decodesSeveralFramesInOneDatagram() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        Message.encode(buffer, Message.SHUTDOWN, 1, 2, "a");
+        Message.encode(buffer, Message.NUMNODES, 3, 0);
+        buffer.flip();
+        Message message = new Message();
+
+        assertTrue(message.next(buffer));
+        assertEquals(Message.SHUTDOWN, message.type());
+        assertEquals(2, message.long1());
+        assertTrue(message.next(buffer));
+        assertEquals(Message.NUMNODES, message.type());
+        assertEquals(3, message.long0());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void rejectsTruncatedAndForeignData() {
+        byte[] frame = Message.encode(Message.LOG, 7, 0, "10.0.0.1", "file.txt");
+        Message message = new Message();
+
+        assertFalse(message.next(ByteBuffer.wrap(frame, 0, frame.length - 1)));
+        assertFalse(message.next(ByteBuffer.wrap("REPORT:10.0.0.1:7:file.txt".getBytes())));
+
+        // A body too short for the fixed fields, which would otherwise be read from the frame after it
+        ByteBuffer shortBody = ByteBuffer.allocate(64);
+        shortBody.put(Message.MAGIC).put(Message.NUMNODES).putShort((short) 1).put((byte) 0);
+        Message.encode(shortBody, Message.NUMNODES, 3, 0);
+        assertFalse(message.next(shortBody.flip()));
+        assertEquals(0, shortBody.position());
+    }
+
+    @Test
+    void refusesFramesThatDoNotFitTheFormat() {
+        ByteBuffer buffer = ByteBuffer.allocate(Message.MAX_FRAME_SIZE * 2);
+        assertThrows(IllegalArgumentException.class,
+                () -> Message.encode(buffer, Message.REPORT, 0, 0, "a", "b", "c", "d", "e"));
+        assertThrows(IllegalArgumentException.class,
+                () -> Message.encode(buffer, Message.REPORT, 0, 0, "a".repeat(0x10000)));
+        assertThrows(IllegalArgumentException.class,
+                () -> Message.encode(buffer, Message.REPORT, 0, 0, "a".repeat(0x8000), "b".repeat(0x8000)));
+        assertEquals(0, buffer.position());
+        assertThrows(IllegalArgumentException.class, () -> Message.encode(Message.REPORT, 0, 0, "a".repeat(0x10000)));
+    }
+
+    @Test
+    void batchWriterSplitsEntriesOverFrames() {
+        List<byte[]> frames = new ArrayList<>();
+        Message.BatchWriter batch = new Message.BatchWriter(Message.REPORT_BATCH, "10.0.0.1", 200, frames::add);
+        for (int i = 0; i < 50; i++) {
+            batch.add(i, "file-" + i + ".txt");
+        }
+        batch.flush();
+        assertTrue(frames.size() > 1);
+
+        List<String> names = new ArrayList<>();
+        Message message = new Message();
+        for (byte[] frame : frames) {
+            assertTrue(frame.length <= 200);
+            assertTrue(message.next(ByteBuffer.wrap(frame)));
+            assertEquals(Message.REPORT_BATCH, message.type());
+            assertEquals("10.0.0.1", message.string(0));
+            int count = message.forEachEntry((hash, filename) -> {
+                assertEquals("file-" + hash + ".txt", filename);
+                names.add(filename);
+            });
+            assertEquals(message.long0(), count);
+        }
+        assertEquals(50, names.size());
+    }
+}
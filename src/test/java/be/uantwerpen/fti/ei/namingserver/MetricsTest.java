@@ -0,0 +1,40 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+    @Test
+    void writesCountersGaugesAndHistogramsInPrometheusFormat() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter = metrics.counter("test_requests_total", "Requests", "type", "GET");
+        counter.increment();
+        counter.add(2);
+        // The same name and labels give the same counter
+        metrics.counter("test_requests_total", "Requests", "type", "GET").increment();
+        AtomicLong depth = new AtomicLong(7);
+        metrics.gauge("test_depth", "Queue \"depth\"", depth::get, "loop", "a\"b");
+
+        Metrics.Histogram histogram = metrics.histogram("test_seconds", "Latency");
+        histogram.record(0);
+        histogram.record(1024);
+        histogram.record(1025);
+        histogram.record(Long.MAX_VALUE);
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE test_requests_total counter\ntest_requests_total{type=\"GET\"} 4\n"), text);
+        assertTrue(text.contains("test_depth{loop=\"a\\\"b\"} 7\n"), text);
+        // Bucket bounds are cumulative powers of two nanoseconds, written in seconds
+        assertTrue(text.contains("test_seconds_bucket{le=\"1.024E-6\"} 2\n"), text);
+        assertTrue(text.contains("test_seconds_bucket{le=\"2.048E-6\"} 3\n"), text);
+        assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 4\n"), text);
+        assertTrue(text.contains("test_seconds_count 4\n"), text);
+        assertEquals(4, histogram.count());
+
+        assertThrows(IllegalArgumentException.class, () -> metrics.histogram("test_depth", "Wrong type"));
+    }
+}
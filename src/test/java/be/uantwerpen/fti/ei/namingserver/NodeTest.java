@@ -0,0 +1,66 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NodeTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replicasThatWereNotHandedOverAreKept() throws Exception {
+        File replicas = Files.createDirectory(dir.resolve("replicas")).toFile();
+        File logs = dir.resolve("logs").toFile();
+        File state = dir.resolve("state").toFile();
+        Files.writeString(replicas.toPath().resolve("a.txt"), "a");
+        Rebalancer.Transport unreachable = (target, filename, localOwnerIP, holders) ->
+                CompletableFuture.completedFuture(false);
+
+        ReplicaCatalog catalog = new ReplicaCatalog(logs);
+        catalog.put("a.txt", "10.0.0.1", "10.0.0.2");
+        Rebalancer rebalancer = new Rebalancer(catalog, replicas, "10.0.0.2", state, unreachable);
+        // 10.0.0.2 leaves, the only other node does not acknowledge the replica
+        CompletableFuture<Void> moves = rebalancer.rebalance(
+                List.of(new Rebalancer.Range(0, 0, List.of("10.0.0.3"))), 1, "10.0.0.2");
+
+        boolean handed = Node.awaitHandOver(moves, 5000);
+        Node.closeReplicas(handed, rebalancer, catalog, replicas.getPath(), logs.getPath());
+
+        assertFalse(handed);
+        assertTrue(new File(replicas, "a.txt").exists());
+        // After a restart the catalog still knows the replica and its move is still pending
+        try (ReplicaCatalog restarted = new ReplicaCatalog(logs);
+             Rebalancer resumed = new Rebalancer(restarted, replicas, "10.0.0.2", state, unreachable)) {
+            assertEquals("10.0.0.1", restarted.get("a.txt").localOwnerIP());
+            assertEquals(1, resumed.progress().pending());
+        }
+    }
+
+    @Test
+    void replicasThatWereHandedOverAreCleared() throws Exception {
+        File replicas = Files.createDirectory(dir.resolve("replicas")).toFile();
+        File logs = dir.resolve("logs").toFile();
+        Files.writeString(replicas.toPath().resolve("a.txt"), "a");
+
+        ReplicaCatalog catalog = new ReplicaCatalog(logs);
+        catalog.put("a.txt", "10.0.0.1", "10.0.0.2");
+        Rebalancer rebalancer = new Rebalancer(catalog, replicas, "10.0.0.2", dir.resolve("state").toFile(),
+                (target, filename, localOwnerIP, holders) -> CompletableFuture.completedFuture(true));
+
+        boolean handed = Node.awaitHandOver(CompletableFuture.completedFuture(null), 5000);
+        Node.closeReplicas(handed, rebalancer, catalog, replicas.getPath(), logs.getPath());
+
+        assertTrue(handed);
+        assertArrayEquals(new File[0], replicas.listFiles());
+        assertArrayEquals(new File[0], logs.listFiles());
+    }
+}
@@ -0,0 +1,156 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of the files the naming server and the nodes keep on disk.
+ * Writing and parsing the JSON file of the nodes map of the naming server, the import of the parsed nodes into
+ * the ring is not included. And the replica catalog of a node, which replaced the fileLog.json that was rewritten
+ * for every replica: recording one replica, which waits for the journal to be synced, and replaying a large
+ * journal on startup.
+ * Not a unit test, run it with the other benchmarks:
+ *   mvn -Pbench verify
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class NodesJSON {
+
+        @Param({"10", "1000", "100000"})
+        public int nodes;
+
+        private Path dir;
+        private File file;
+        private Map<Long, NodeInfo> nodesMap;
+
+        @Setup
+        public void setup() throws Exception {
+            dir = Files.createTempDirectory("persistence-bench");
+            file = dir.resolve("nodes.json").toFile();
+            nodesMap = new HashMap<>();
+            for (int i = 1; nodesMap.size() < nodes; i++) {
+                String ip = "10." + (i >> 16) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF);
+                nodesMap.putIfAbsent(Utils.hash(ip), NodeInfo.of(Utils.hash(ip), ip));
+            }
+            Server.writeNodesJSON(file, nodesMap);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete(dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Catalog {
+
+        private Path dir;
+        private ReplicaCatalog catalog;
+        private int next;
+
+        @Setup
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("persistence-bench");
+            catalog = new ReplicaCatalog(dir.toFile());
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            catalog.close();
+            delete(dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LargeJournal {
+
+        @Param({"10000", "100000"})
+        public int records;
+
+        private Path dir;
+        private File log;
+        private File snapshot;
+
+        @Setup
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("persistence-bench");
+            // A journal that was never compacted, every replica was recorded a few times
+            log = dir.resolve("replicas.journal").toFile();
+            snapshot = dir.resolve("replicas.snapshot").toFile();
+            try (Journal journal = new Journal(log, snapshot, Integer.MAX_VALUE)) {
+                for (int i = 0; i < records; i++) {
+                    journal.append("PUT\tfile-" + (i % (records / 4)) + ".txt\t10.0.0." + (i % 200 + 1)
+                            + "\t10.0.1.1\t10.0.1.1,10.0.1.2");
+                }
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete(dir);
+        }
+    }
+
+    @Benchmark
+    public void saveMapToJSON(NodesJSON state) throws IOException {
+        Server.writeNodesJSON(state.file, state.nodesMap);
+    }
+
+    @Benchmark
+    public Map<String, String> parseNodesJSON(NodesJSON state) throws IOException {
+        return Server.readNodesJSON(state.file);
+    }
+
+    @Benchmark
+    public void catalogPut(Catalog state) {
+        state.next = (state.next + 1) & 4095;
+        state.catalog.put("file-" + state.next + ".txt", "10.0.0.1", "10.0.1.1");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public int catalogReplay(LargeJournal state) throws IOException {
+        try (ReplicaCatalog replayed = new ReplicaCatalog(state.log, state.snapshot, Integer.MAX_VALUE)) {
+            return replayed.size();
+        }
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[] { PersistenceBenchmark.class.getSimpleName() });
+    }
+}
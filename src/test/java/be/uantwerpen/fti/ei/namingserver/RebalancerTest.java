@@ -0,0 +1,157 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RebalancerTest {
+
+    @TempDir
+    Path dir;
+
+    // One range over the whole ring
+    private static List<Rebalancer.Range> everything(String... owners) {
+        return List.of(new Rebalancer.Range(0, 0, List.of(owners)));
+    }
+
+    @Test
+    void onlyFilesWhoseHoldersChangeAreMoved() {
+        List<ReplicaCatalog.Entry> entries = List.of(
+                new ReplicaCatalog.Entry("a.txt", "10.0.0.1", "10.0.0.2", List.of("10.0.0.2", "10.0.0.4")),
+                new ReplicaCatalog.Entry("b.txt", "10.0.0.1", "10.0.0.2", List.of("10.0.0.4", "10.0.0.2")),
+                new ReplicaCatalog.Entry("c.txt", "10.0.0.3", "10.0.0.2", List.of("10.0.0.4", "10.0.0.2")));
+
+        // 10.0.0.3 joined in front of the others, it is never a replica of the files it owns itself
+        List<Rebalancer.Move> moves = Rebalancer.plan("10.0.0.2", entries, Map.of(),
+                everything("10.0.0.3", "10.0.0.4", "10.0.0.2"), 2, null);
+
+        assertEquals(2, moves.size());
+        // The first old holder sends the file, this node is no longer a holder and drops it afterwards
+        Rebalancer.Move a = moves.get(0);
+        assertEquals("a.txt", a.filename());
+        assertEquals(List.of("10.0.0.3"), a.targets());
+        assertEquals(List.of("10.0.0.3", "10.0.0.4"), a.replicas());
+        assertTrue(a.drop());
+        // 10.0.0.4 sends b.txt, this node only drops it
+        Rebalancer.Move b = moves.get(1);
+        assertEquals("b.txt", b.filename());
+        assertEquals(List.of(), b.targets());
+        assertTrue(b.drop());
+
+        // When the only holder leaves, it sends the file itself
+        List<Rebalancer.Move> leave = Rebalancer.plan("10.0.0.2",
+                List.of(new ReplicaCatalog.Entry("d.txt", "10.0.0.1", "10.0.0.2", List.of("10.0.0.2"))), Map.of(),
+                everything("10.0.0.5"), 1, "10.0.0.2");
+        assertEquals(List.of("10.0.0.5"), leave.get(0).targets());
+        assertTrue(leave.get(0).drop());
+        assertTrue(Rebalancer.plan("10.0.0.2", entries, Map.of(), List.of(), 2, null).isEmpty());
+    }
+
+    @Test
+    void replicaIsDroppedAfterTheAcknowledgementAndFailedMovesResume() throws Exception {
+        File replicas = Files.createDirectory(dir.resolve("replicas")).toFile();
+        File state = dir.resolve("state").toFile();
+        Files.writeString(replicas.toPath().resolve("a.txt"), "a");
+        Files.writeString(replicas.toPath().resolve("b.txt"), "b");
+
+        AtomicBoolean reachable = new AtomicBoolean(false);
+        Map<String, String> received = new ConcurrentHashMap<>();
+        Rebalancer.Transport transport = (target, filename, localOwnerIP, holders) -> {
+            if (reachable.get()) {
+                received.put(filename, target);
+            }
+            return CompletableFuture.completedFuture(reachable.get());
+        };
+
+        try (ReplicaCatalog catalog = new ReplicaCatalog(dir.toFile())) {
+            catalog.put("a.txt", "10.0.0.1", "10.0.0.2");
+            catalog.put("b.txt", "10.0.0.1", "10.0.0.2");
+            try (Rebalancer rebalancer = new Rebalancer(catalog, replicas, "10.0.0.2", state, transport)) {
+                CompletableFuture<Void> moves = rebalancer.rebalance(everything("10.0.0.3"), 1, null);
+                assertThrows(ExecutionException.class, () -> moves.get(5, TimeUnit.SECONDS));
+                // Nothing was acknowledged, the copies stay and the moves stay pending
+                assertEquals(2, rebalancer.progress().failed());
+                assertEquals(2, rebalancer.progress().pending());
+                assertTrue(new File(replicas, "a.txt").exists());
+            }
+
+            // After a restart the journaled moves run again
+            reachable.set(true);
+            try (Rebalancer rebalancer = new Rebalancer(catalog, replicas, "10.0.0.2", state, transport)) {
+                assertEquals(2, rebalancer.progress().pending());
+                rebalancer.resume().get(5, TimeUnit.SECONDS);
+                assertEquals(0, rebalancer.progress().pending());
+                assertEquals(2, rebalancer.progress().moved());
+            }
+            assertEquals(Map.of("a.txt", "10.0.0.3", "b.txt", "10.0.0.3"), received);
+            assertFalse(new File(replicas, "a.txt").exists());
+            assertTrue(catalog.isEmpty());
+            assertEquals(Set.of(), catalog.localOwners());
+        }
+    }
+
+    @Test
+    void moveOfAReplicaThatIsGoneIsDropped() throws Exception {
+        File replicas = Files.createDirectory(dir.resolve("replicas")).toFile();
+        File state = dir.resolve("state").toFile();
+        Files.writeString(replicas.toPath().resolve("a.txt"), "a");
+        Rebalancer.Transport unreachable = (target, filename, localOwnerIP, holders) ->
+                CompletableFuture.completedFuture(false);
+
+        try (ReplicaCatalog catalog = new ReplicaCatalog(dir.toFile())) {
+            catalog.put("a.txt", "10.0.0.1", "10.0.0.2");
+            try (Rebalancer rebalancer = new Rebalancer(catalog, replicas, "10.0.0.2", state, unreachable)) {
+                CompletableFuture<Void> moves = rebalancer.rebalance(everything("10.0.0.3"), 1, null);
+                assertThrows(ExecutionException.class, () -> moves.get(5, TimeUnit.SECONDS));
+            }
+
+            // The replica was deleted while the node was down, its journaled move is forgotten
+            Files.delete(replicas.toPath().resolve("a.txt"));
+            try (Rebalancer rebalancer = new Rebalancer(catalog, replicas, "10.0.0.2", state, unreachable)) {
+                rebalancer.resume().get(5, TimeUnit.SECONDS);
+                assertEquals(0, rebalancer.progress().pending());
+            }
+            try (Rebalancer rebalancer = new Rebalancer(catalog, replicas, "10.0.0.2", state, unreachable)) {
+                assertEquals(0, rebalancer.progress().pending());
+            }
+            assertTrue(catalog.isEmpty());
+        }
+    }
+
+    @Test
+    void holderThatDoesNotSendDropsItsCopyRightAway() throws Exception {
+        File replicas = Files.createDirectory(dir.resolve("replicas")).toFile();
+        Files.writeString(replicas.toPath().resolve("b.txt"), "b");
+        AtomicBoolean sent = new AtomicBoolean();
+        Rebalancer.Transport transport = (target, filename, localOwnerIP, holders) -> {
+            sent.set(true);
+            return CompletableFuture.completedFuture(false);
+        };
+
+        try (ReplicaCatalog catalog = new ReplicaCatalog(dir.toFile());
+             Rebalancer rebalancer = new Rebalancer(catalog, replicas, "10.0.0.2", dir.resolve("state").toFile(),
+                     transport)) {
+            catalog.put("b.txt", "10.0.0.1", "10.0.0.2", List.of("10.0.0.4", "10.0.0.2"));
+            // 10.0.0.4 sends the file to 10.0.0.3, this node is no longer a holder and does not wait for it
+            rebalancer.rebalance(everything("10.0.0.3", "10.0.0.4"), 2, null).get(5, TimeUnit.SECONDS);
+
+            assertFalse(sent.get());
+            assertFalse(new File(replicas, "b.txt").exists());
+            assertNull(catalog.get("b.txt"));
+            assertEquals(0, rebalancer.progress().pending());
+        }
+    }
+}
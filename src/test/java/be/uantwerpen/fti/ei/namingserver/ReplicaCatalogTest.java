@@ -0,0 +1,102 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicaCatalogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void indexesByFilenameAndOwnerAndSurvivesRestart() throws Exception {
+        File directory = dir.toFile();
+        try (ReplicaCatalog catalog = new ReplicaCatalog(directory)) {
+            catalog.put("a.txt", "10.0.0.1", "10.0.0.9");
+            catalog.put("b.txt", "10.0.0.1", "10.0.0.9");
+            catalog.put("c.txt", "10.0.0.2", "10.0.0.9");
+            // A new owner replaces the old entry in both indexes
+            catalog.put("b.txt", "10.0.0.2", "10.0.0.9");
+            catalog.remove("c.txt");
+        }
+
+        try (ReplicaCatalog catalog = new ReplicaCatalog(directory)) {
+            assertEquals(2, catalog.size());
+            assertEquals(Set.of("a.txt"), catalog.filesOwnedBy("10.0.0.1"));
+            assertEquals(Set.of("b.txt"), catalog.filesOwnedBy("10.0.0.2"));
+            assertEquals("10.0.0.9", catalog.get("a.txt").replicatedOwnerIP());
+            assertNull(catalog.get("c.txt"));
+        }
+    }
+
+    @Test
+    void concurrentWritersDoNotLoseUpdates() throws Exception {
+        File log = dir.resolve("replicas.journal").toFile();
+        File snapshot = dir.resolve("replicas.snapshot").toFile();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        // A low threshold compacts while the writers are running
+        try (ReplicaCatalog catalog = new ReplicaCatalog(log, snapshot, 100)) {
+            List<Future<?>> writes = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                writes.add(pool.submit(() -> {
+                    for (int i = 0; i < 250; i++) {
+                        catalog.put("file-" + thread + "-" + i, "10.0.0." + thread, "10.0.0.100");
+                    }
+                }));
+            }
+            for (Future<?> write : writes) {
+                write.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        try (ReplicaCatalog catalog = new ReplicaCatalog(log, snapshot, 100)) {
+            assertEquals(2000, catalog.size());
+            assertEquals(250, catalog.filesOwnedBy("10.0.0.3").size());
+        }
+    }
+
+    @Test
+    void recordsTheReplicaSetAndReadsOlderRecords() throws Exception {
+        File log = dir.resolve("replicas.journal").toFile();
+        File snapshot = dir.resolve("replicas.snapshot").toFile();
+        Files.writeString(log.toPath(), "PUT\told.txt\t10.0.0.1\t10.0.0.9\n");
+        try (ReplicaCatalog catalog = new ReplicaCatalog(log, snapshot, 1000)) {
+            catalog.put("new.txt", "10.0.0.1", "10.0.0.9", List.of("10.0.0.8", "10.0.0.9", "10.0.0.7"));
+        }
+
+        try (ReplicaCatalog catalog = new ReplicaCatalog(log, snapshot, 1000)) {
+            assertEquals(List.of("10.0.0.9"), catalog.get("old.txt").replicas());
+            assertEquals(List.of("10.0.0.8", "10.0.0.9", "10.0.0.7"), catalog.get("new.txt").replicas());
+        }
+    }
+
+    @Test
+    void batchIsRecordedLikeSinglePuts() throws Exception {
+        File directory = dir.toFile();
+        try (ReplicaCatalog catalog = new ReplicaCatalog(directory)) {
+            catalog.put("a.txt", "10.0.0.2", "10.0.0.9");
+            catalog.putAll(List.of("a.txt", "b.txt"), "10.0.0.1", "10.0.0.9", List.of("10.0.0.9", "10.0.0.8"));
+        }
+
+        try (ReplicaCatalog catalog = new ReplicaCatalog(directory)) {
+            assertEquals(Set.of("a.txt", "b.txt"), catalog.filesOwnedBy("10.0.0.1"));
+            assertEquals(Set.of(), catalog.filesOwnedBy("10.0.0.2"));
+            assertEquals(List.of("10.0.0.9", "10.0.0.8"), catalog.get("b.txt").replicas());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.hash.Hashing;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingTest {
+
+    private static Ring ringOf(int... ids) throws Exception {
+        Map<Long, NodeInfo> nodes = new HashMap<>();
+        for (int id : ids) {
+            nodes.put((long) id, NodeInfo.of(id, "10.0.0." + (id % 250 + 1)));
+        }
+        return Ring.of(nodes);
+    }
+
+    @Test
+    void ownerIsLargestIdBelowHash() throws Exception {
+        Ring ring = ringOf(300, 100, 200);
+
+        assertEquals(100, ring.ownerOf(150));
+        assertEquals(200, ring.ownerOf(201));
+        // An exact match belongs to the node before it
+        assertEquals(100, ring.ownerOf(200));
+        // Nothing smaller, the biggest node owns it
+        assertEquals(300, ring.ownerOf(50));
+        assertEquals(300, ring.ownerOf(100));
+    }
+
+    @Test
+    void previousAndNextWrapAround() throws Exception {
+        Ring ring = ringOf(300, 100, 200);
+
+        assertEquals(300, ring.previousOf(100));
+        assertEquals(100, ring.previousOf(200));
+        assertEquals(100, ring.nextOf(300));
+        assertEquals(300, ring.nextOf(200));
+        // IDs that are not in the ring resolve to their neighbours
+        assertEquals(200, ring.previousOf(250));
+        assertEquals(300, ring.nextOf(250));
+    }
+
+    @Test
+    void recordsFollowTheirIds() throws Exception {
+        Ring ring = ringOf(7, 3, 5);
+
+        assertEquals(3, ring.size());
+        assertEquals(InetAddress.getByName("10.0.0.6"), ring.node(5).address());
+        assertEquals("10.0.0.6", ring.node(5).host());
+        assertNull(ring.node(4));
+        assertTrue(ring.contains(7));
+    }
+
+    @Test
+    void emptyRingHasNoOwner() {
+        assertThrows(NoSuchElementException.class, () -> Ring.empty().ownerOf(10));
+    }
+
+    // Largest share of the ring a node owns, relative to the average share
+    private static double imbalance(Ring ring) {
+        double max = 0;
+        double total = 0;
+        for (double share : ring.ownership().values()) {
+            max = Math.max(max, share);
+            total += share;
+        }
+        assertEquals(1.0, total, 1e-9);
+        return max * ring.size();
+    }
+
+    @Test
+    void virtualTokensEvenOutOwnership() throws Exception {
+        for (HashStrategy strategy : new HashStrategy[] { HashStrategy.LEGACY, HashStrategy.MURMUR3 }) {
+            Map<Long, NodeInfo> nodes = new HashMap<>();
+            for (int i = 1; i <= 40; i++) {
+                String ip = "10.0.1." + i;
+                nodes.put(strategy.hash(ip), NodeInfo.of(strategy.hash(ip), ip));
+            }
+            Ring single = Ring.of(nodes, 1, strategy);
+            Ring virtual = Ring.of(nodes, 64, strategy);
+
+            assertEquals(single.size(), virtual.size());
+            assertTrue(imbalance(virtual) < 1.6, strategy.name() + " imbalance " + imbalance(virtual));
+            assertTrue(imbalance(virtual) < imbalance(single));
+
+            // Neighbours and replacement owners are always another node
+            Random random = new Random(1);
+            for (long id : virtual.ownership().keySet()) {
+                assertNotEquals(id, virtual.previousOf(id));
+                assertNotEquals(id, virtual.nextOf(id));
+                for (int i = 0; i < 300; i++) {
+                    long hash = strategy.range() == 0 ? random.nextLong() : random.nextInt((int) strategy.range());
+                    assertNotEquals(id, virtual.ownerOf(hash, id));
+                }
+            }
+        }
+    }
+
+    @Test
+    void murmur3MatchesReferenceImplementation() {
+        // Reference values of the first 64 bits of MurmurHash3 x64 128 with seed 0
+        for (String key : new String[] { "", "a", "10.0.0.1", "file-with-a-longer-name-than-16-bytes.txt" }) {
+            long expected = Hashing.murmur3_128().hashBytes(key.getBytes(StandardCharsets.UTF_8)).asLong();
+            assertEquals(expected, HashStrategy.MURMUR3.hash(key), key);
+        }
+    }
+
+    @Test
+    void replicasAreDistinctSuccessiveOwners() throws Exception {
+        Ring ring = ringOf(100, 200, 300, 400);
+
+        // Owner first, then the nodes that take the file over when the ones before them leave
+        assertArrayEquals(new long[] { 200, 100, 400 }, ring.replicasOf(250, 300, 3));
+        // The local owner is skipped wherever it falls in the chain
+        assertArrayEquals(new long[] { 300, 100 }, ring.replicasOf(350, 200, 2));
+        // Never more than the other nodes of the ring
+        assertArrayEquals(new long[] { 400, 300, 200 }, ring.replicasOf(50, 100, 5));
+
+        Map<Long, NodeInfo> nodes = new HashMap<>();
+        for (int i = 1; i <= 5; i++) {
+            String ip = "10.0.1." + i;
+            nodes.put(HashStrategy.MURMUR3.hash(ip), NodeInfo.of(HashStrategy.MURMUR3.hash(ip), ip));
+        }
+        Ring virtual = Ring.of(nodes, 32, HashStrategy.MURMUR3);
+        long excluded = HashStrategy.MURMUR3.hash("10.0.1.1");
+        for (int i = 0; i < 100; i++) {
+            long hash = HashStrategy.MURMUR3.hash("file-" + i);
+            long[] replicas = virtual.replicasOf(hash, excluded, 3);
+            assertEquals(3, replicas.length);
+            assertEquals(virtual.ownerOf(hash, excluded), replicas[0]);
+            assertEquals(3, Arrays.stream(replicas).distinct().count());
+            assertFalse(Arrays.stream(replicas).anyMatch(id -> id == excluded));
+        }
+    }
+
+    @Test
+    void movedRangesCoverExactlyTheHashesWhoseOwnersChanged() throws Exception {
+        Ring before = ringOf(100, 200, 300, 400);
+        Ring joined = ringOf(100, 200, 250, 300, 400);
+
+        // With two owners per hash the join moves (200, 300]: (200, 250] gets 250 first, (250, 300] second
+        assertEquals(2, Ring.movedRanges(before, joined, 2).size());
+        Ring left = ringOf(100, 300, 400);
+        for (Ring[] change : new Ring[][] { { before, joined }, { joined, before }, { before, left } }) {
+            List<Ring.Range> ranges = Ring.movedRanges(change[0], change[1], 2);
+            for (long hash = -50; hash < 500; hash++) {
+                long[] old = change[0].replicasOf(hash, -1, 2);
+                long[] now = change[1].replicasOf(hash, -1, 2);
+                long probe = hash;
+                List<Ring.Range> holding = ranges.stream().filter(range -> range.contains(probe)).toList();
+                if (Arrays.equals(old, now)) {
+                    assertTrue(holding.isEmpty(), "hash " + hash + " did not move");
+                } else {
+                    assertEquals(1, holding.size(), "hash " + hash);
+                    assertArrayEquals(now, holding.get(0).owners(), "hash " + hash);
+                }
+            }
+        }
+        assertTrue(Ring.movedRanges(before, before, 2).isEmpty());
+    }
+}
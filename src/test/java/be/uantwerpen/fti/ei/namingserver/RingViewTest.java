@@ -0,0 +1,113 @@
+package be.uantwerpen.fti.ei.namingserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingViewTest {
+
+    private static Ring ringOf(String... ips) throws Exception {
+        Map<Long, NodeInfo> nodes = new HashMap<>();
+        for (String ip : ips) {
+            long id = Utils.hash(ip);
+            nodes.put(id, NodeInfo.of(id, ip));
+        }
+        return Ring.of(nodes, 4, Utils.hashStrategy());
+    }
+
+    private static void receive(RingView view, List<byte[]> frames) {
+        Message message = new Message();
+        for (byte[] frame : frames) {
+            assertTrue(message.next(ByteBuffer.wrap(frame)));
+            view.snapshot(message);
+        }
+    }
+
+    @Test
+    void deltasAreAppliedInOrderAndGapsFetchASnapshot() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        RingView view = new RingView(requests::incrementAndGet);
+
+        // Nothing to apply a delta to yet
+        view.delta("1", 3, "ADD", "10.0.0.4");
+        assertEquals(1, requests.get());
+        assertEquals("", view.ownerOf("a.txt"));
+
+        // The snapshot does not fit in one frame, the ring is only replaced once all of them arrived
+        String[] ips = new String[200];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = "10.0." + i / 250 + "." + (i % 250 + 1);
+        }
+        Ring server = ringOf(ips);
+        List<byte[]> frames = RingView.snapshotFrames("1", 2, server, UnicastSender.MAX_DATAGRAM);
+        assertTrue(frames.size() > 1);
+        receive(view, frames.subList(0, 1));
+        assertTrue(view.ring().isEmpty());
+        receive(view, frames.subList(1, frames.size()));
+        assertEquals(2, view.epoch());
+        assertEquals(200, view.ring().size());
+        assertEquals(4, view.ring().tokensPerNode());
+        for (int i = 0; i < 100; i++) {
+            String filename = "file-" + i;
+            assertEquals(server.node(server.ownerOf(Utils.hash(filename))).ip(), view.ownerOf(filename));
+        }
+
+        // Epoch 4 waits for 3, which arrives late, repeated and old deltas are dropped
+        view.delta("1", 4, "REMOVE", "10.0.0.1");
+        assertEquals(2, view.epoch());
+        view.delta("1", 3, "ADD", "10.0.9.9");
+        view.delta("1", 3, "ADD", "10.0.9.9");
+        assertEquals(4, view.epoch());
+        assertEquals(200, view.ring().size());
+        assertTrue(view.ring().contains(Utils.hash("10.0.9.9")));
+        assertFalse(view.ring().contains(Utils.hash("10.0.0.1")));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void restartedServerIsFollowedFromItsSnapshot() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        RingView view = new RingView(requests::incrementAndGet);
+        receive(view, RingView.snapshotFrames("1", 10, ringOf("10.0.0.1", "10.0.0.2"), UnicastSender.MAX_DATAGRAM));
+
+        // The restarted server counts from 0 again, its deltas are not applied on the old ring
+        view.delta("2", 1, "ADD", "10.0.0.3");
+        assertEquals(1, requests.get());
+        assertEquals(10, view.epoch());
+
+        receive(view, RingView.snapshotFrames("2", 0, ringOf(), UnicastSender.MAX_DATAGRAM));
+        assertTrue(view.ring().isEmpty());
+        view.delta("2", 1, "ADD", "10.0.0.3");
+        assertEquals(1, view.epoch());
+        assertEquals("10.0.0.3", view.ownerOf("a.txt"));
+    }
+
+    @Test
+    void lostFrameIsOnlyMadeUpByTheResentSnapshot() throws Exception {
+        RingView view = new RingView(() -> { });
+        String[] ips = new String[200];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = "10.0." + i / 250 + "." + (i % 250 + 1);
+        }
+        List<byte[]> frames = RingView.snapshotFrames("1", 2, ringOf(ips), UnicastSender.MAX_DATAGRAM);
+        assertTrue(frames.size() > 2);
+
+        // The second frame is lost, the request is answered again with the same snapshot
+        receive(view, List.of(frames.get(0)));
+        receive(view, frames.subList(2, frames.size()));
+        receive(view, List.of(frames.get(0)));
+        receive(view, frames.subList(2, frames.size()));
+        assertTrue(view.ring().isEmpty());
+        assertEquals(-1, view.epoch());
+
+        receive(view, List.of(frames.get(1)));
+        assertEquals(2, view.epoch());
+        assertEquals(200, view.ring().size());
+    }
+}